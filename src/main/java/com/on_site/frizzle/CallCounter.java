@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the calls to one of an engine's entry points, and the time
+ * spent in them. The counters may be read from any thread.
+ */
+final class CallCounter {
+    private final String name;
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    CallCounter(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Records a call that started at {@code start}, as returned by
+     * {@link System#nanoTime}, and has just finished.
+     */
+    void record(long start) {
+        totalNanos.addAndGet(System.nanoTime() - start);
+        callCount.incrementAndGet();
+    }
+
+    CallStats getStats() {
+        return new CallStats(name, callCount.get(), totalNanos.get());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * A snapshot of how often one engine entry point (e.g., one of
+ * Sizzle's functions) has been called, and how long those calls took
+ * in total. Instances are immutable.
+ *
+ * @see Frizzle#getCallStats
+ */
+public final class CallStats {
+    private final String name;
+    private final long callCount;
+    private final long totalNanos;
+
+    CallStats(String name, long callCount, long totalNanos) {
+        this.name = name;
+        this.callCount = callCount;
+        this.totalNanos = totalNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * Returns the total time spent in calls, in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Returns the mean time per call, in nanoseconds, or zero if there
+     * have been no calls.
+     */
+    public double getAverageNanos() {
+        return callCount == 0 ? 0 : (double) totalNanos / callCount;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("name", name)
+                .add("callCount", callCount)
+                .add("totalNanos", totalNanos)
+                .toString();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import com.google.common.base.Preconditions;
+import com.on_site.frizzle.selector.SelectorList;
+
+/**
+ * A selector that has been parsed once, by {@link Frizzle#compile}, so
+ * that it can be used repeatedly without being parsed again. Instances
+ * are immutable, and may be shared freely between threads and between
+ * {@link Frizzle} instances (and hence documents).
+ *
+ * <p>The pure-Java engine evaluates the parsed form directly, so a
+ * compiled selector is never parsed again. The Sizzle engines cannot
+ * share Sizzle's matcher functions between instances: each
+ * {@link Frizzle} compiles the selector with {@code Sizzle.compile} the
+ * first time it sees it, and reuses that function for as long as both
+ * are reachable. Each call still has Sizzle look up the selector's
+ * tokens, which it keeps in a cache of its own; every compiled selector
+ * an instance has seen adds one to the size of that cache (see
+ * {@link FrizzleOptions.Builder#cacheLength}), so its tokens are only
+ * worked out again once Sizzle has tokenized that many other selectors
+ * since.
+ */
+public final class CompiledSelector {
+    private final SelectorList selectors;
+
+    CompiledSelector(SelectorList selectors) {
+        this.selectors = Preconditions.checkNotNull(selectors);
+    }
+
+    SelectorList getSelectorList() {
+        return selectors;
+    }
+
+    /**
+     * Returns the selector text this was compiled from.
+     */
+    public String getSelector() {
+        return selectors.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getSelector();
+    }
+}
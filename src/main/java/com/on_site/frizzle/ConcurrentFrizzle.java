@@ -0,0 +1,722 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.on_site.frizzle.selector.ElementIndex;
+import com.on_site.frizzle.selector.SelectorList;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Thread-safe counterpart of {@link Frizzle}, for querying one document
+ * from many threads at once. It keeps a fixed pool of {@code Frizzle}
+ * instances over the same document; each call borrows an instance for
+ * its duration, waiting if all of them are in use. Since each instance
+ * has a Sizzle scope of its own, calls on different threads run in
+ * parallel, and throughput scales with the pool size (up to the number
+ * of cores).
+ *
+ * <p>The document must not be modified while this object is in use.
+ * Note that some DOM implementations build nodes lazily as they are
+ * first read (for example, the Xerces DOM that {@code DocumentBuilder}
+ * returns by default), which is itself a modification; so the builder
+ * reads the whole document once before anything is shared. Sizzle also
+ * briefly adds test elements to the document while it is being set up,
+ * which is why all the instances are created, one at a time, by
+ * {@link Builder#build}.
+ *
+ * <p>A single large query can also be split across the pool, with
+ * {@link #selectParallel(CompiledSelector, CompiledSelector)}. Unless
+ * the builder is given a fork/join pool to run it on, this makes one,
+ * which {@link #close} shuts down.
+ *
+ * <p>Unlike {@code Frizzle}, custom pseudos can only be registered
+ * through the builder, and the document cannot be changed afterwards.
+ * There is also no {@code iterate}, since a lazy result would outlive
+ * the call that borrowed an instance for it.
+ */
+public final class ConcurrentFrizzle implements AutoCloseable {
+    /**
+     * Sets up a {@link ConcurrentFrizzle}. By default, the pool has one
+     * instance per available processor, uses {@link Engine#getDefault}
+     * with {@link FrizzleOptions#DEFAULT}, runs no warm-up selectors,
+     * and runs parallel selections on a fork/join pool of its own, with
+     * the same parallelism as the pool.
+     */
+    public static final class Builder {
+        private final Document doc;
+        private int poolSize = Runtime.getRuntime().availableProcessors();
+        private Engine engine = Engine.getDefault();
+        private FrizzleOptions options = FrizzleOptions.DEFAULT;
+        private final ImmutableList.Builder<String> warmUp = ImmutableList.builder();
+        private final Map<String, Pseudo> pseudos = Maps.newLinkedHashMap();
+        private ForkJoinPool forkJoinPool;
+        private String[] indexAttributes;
+
+        private Builder(Document doc) {
+            this.doc = Preconditions.checkNotNull(doc);
+        }
+
+        /**
+         * Sets the number of {@code Frizzle} instances, which is the
+         * largest number of calls that can run at once.
+         */
+        public Builder poolSize(int poolSize) {
+            Preconditions.checkArgument(poolSize > 0, "Pool size must be positive: %s",
+                    poolSize);
+            this.poolSize = poolSize;
+            return this;
+        }
+
+        public Builder engine(Engine engine) {
+            this.engine = Preconditions.checkNotNull(engine);
+            return this;
+        }
+
+        public Builder options(FrizzleOptions options) {
+            this.options = Preconditions.checkNotNull(options);
+            return this;
+        }
+
+        /**
+         * Adds selectors to run against the document on each instance
+         * as it is created, so that the selectors (and the instance's
+         * caches) are already compiled before the first real call.
+         */
+        public Builder warmUp(String... selectors) {
+            warmUp.add(selectors);
+            return this;
+        }
+
+        public Builder pseudo(String name, Pseudo pseudo) {
+            pseudos.put(Preconditions.checkNotNull(name), Preconditions.checkNotNull(pseudo));
+            return this;
+        }
+
+        /**
+         * Sets the fork/join pool that runs the tasks of parallel
+         * selections. The caller keeps ownership of it: it is not shut
+         * down by {@link ConcurrentFrizzle#close}.
+         */
+        public Builder forkJoinPool(ForkJoinPool forkJoinPool) {
+            this.forkJoinPool = Preconditions.checkNotNull(forkJoinPool);
+            return this;
+        }
+
+        /**
+         * Builds an {@link ElementIndex} of the document, shared by all
+         * the instances, to narrow down the candidates for
+         * {@code select}.
+         *
+         * @param attributes the names of any attributes, besides
+         * {@code id} and {@code class}, whose values should be indexed
+         */
+        public Builder index(String... attributes) {
+            this.indexAttributes = attributes.clone();
+            return this;
+        }
+
+        public ConcurrentFrizzle build() {
+            return new ConcurrentFrizzle(this);
+        }
+    }
+
+    private final Document doc;
+    private final Engine engine;
+    private final FrizzleOptions options;
+    private final ImmutableMap<String, Pseudo> pseudos;
+    private final BlockingQueue<Frizzle> pool;
+    private final int poolSize;
+    private final ForkJoinPool forkJoinPool;
+    private final boolean ownsForkJoinPool;
+    private final ElementIndex index;
+
+    private ConcurrentFrizzle(Builder builder) {
+        this.doc = builder.doc;
+        this.engine = builder.engine;
+        this.options = builder.options;
+        this.pseudos = ImmutableMap.copyOf(builder.pseudos);
+        this.poolSize = builder.poolSize;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+        this.ownsForkJoinPool = builder.forkJoinPool == null;
+        this.forkJoinPool = ownsForkJoinPool ? new ForkJoinPool(poolSize)
+                : builder.forkJoinPool;
+        List<String> warmUp = builder.warmUp.build();
+
+        expand(doc);
+        this.index = builder.indexAttributes == null ? null
+                : new ElementIndex(doc, builder.indexAttributes);
+        for (int i = 0; i < poolSize; ++i) {
+            Frizzle frizzle = new Frizzle(doc, engine, options);
+            frizzle.setIndex(index);
+            for (Map.Entry<String, Pseudo> entry : pseudos.entrySet()) {
+                frizzle.createPseudo(entry.getKey(), entry.getValue());
+            }
+            for (String selector : warmUp) {
+                frizzle.select(selector);
+            }
+            pool.add(frizzle);
+        }
+    }
+
+    public static Builder builder(Document doc) {
+        return new Builder(doc);
+    }
+
+    /**
+     * Reads every node of the given document (without recursion, since
+     * documents can be deep), so that a DOM that builds its nodes on
+     * first access has built them all.
+     */
+    private static void expand(Document doc) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(doc);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            node.getNodeValue();
+            NamedNodeMap attrs = node.getAttributes();
+            if (attrs != null) {
+                for (int i = 0; i < attrs.getLength(); ++i) {
+                    ((Attr) attrs.item(i)).getValue();
+                }
+            }
+            for (Node child = node.getFirstChild(); child != null;
+                    child = child.getNextSibling()) {
+                pending.push(child);
+            }
+        }
+    }
+
+    /**
+     * A call made with an instance borrowed from the pool.
+     */
+    private interface Query<T> {
+        T run(Frizzle frizzle);
+    }
+
+    private <T> T run(Query<T> query) {
+        Frizzle frizzle = borrow();
+        try {
+            return query.run(frizzle);
+        } finally {
+            release(frizzle);
+        }
+    }
+
+    /**
+     * Takes an instance from the pool, waiting (uninterruptibly) for
+     * one if need be. The wait is a managed block, so that a fork/join
+     * pool with more threads than there are instances can make up for
+     * the threads that are waiting.
+     */
+    private Frizzle borrow() {
+        Frizzle frizzle = pool.poll();
+        if (frizzle != null) {
+            return frizzle;
+        }
+        Borrower borrower = new Borrower();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    ForkJoinPool.managedBlock(borrower);
+                    return borrower.frizzle;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void release(Frizzle frizzle) {
+        pool.add(frizzle);
+    }
+
+    private final class Borrower implements ForkJoinPool.ManagedBlocker {
+        Frizzle frizzle;
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (frizzle == null) {
+                frizzle = pool.take();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return frizzle != null || (frizzle = pool.poll()) != null;
+        }
+    }
+
+    public Document getDocument() {
+        return doc;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public FrizzleOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Returns the index shared by the instances, or null if the
+     * builder was not asked for one.
+     */
+    public ElementIndex getIndex() {
+        return index;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public boolean hasPseudo(String name) {
+        return pseudos.containsKey(name);
+    }
+
+    /**
+     * Shuts down the fork/join pool for parallel selections, if the
+     * builder made one (rather than being given one). After this,
+     * {@code selectParallel} may no longer be used; the other calls
+     * still work.
+     */
+    @Override
+    public void close() {
+        if (ownsForkJoinPool) {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    public Element[] select(String selector) {
+        return select(selector, null);
+    }
+
+    public Element[] select(final String selector, final Element context) {
+        return run(new Query<Element[]>() {
+            @Override
+            public Element[] run(Frizzle frizzle) {
+                return frizzle.select(selector, context);
+            }
+        });
+    }
+
+    public Element[] select(CompiledSelector selector) {
+        return select(selector, null);
+    }
+
+    public Element[] select(final CompiledSelector selector, final Element context) {
+        return run(new Query<Element[]>() {
+            @Override
+            public Element[] run(Frizzle frizzle) {
+                return frizzle.select(selector, context);
+            }
+        });
+    }
+
+    public Element selectFirst(String selector) {
+        return selectFirst(selector, null);
+    }
+
+    public Element selectFirst(final String selector, final Element context) {
+        return run(new Query<Element>() {
+            @Override
+            public Element run(Frizzle frizzle) {
+                return frizzle.selectFirst(selector, context);
+            }
+        });
+    }
+
+    public Element selectFirst(CompiledSelector selector) {
+        return selectFirst(selector, null);
+    }
+
+    public Element selectFirst(final CompiledSelector selector, final Element context) {
+        return run(new Query<Element>() {
+            @Override
+            public Element run(Frizzle frizzle) {
+                return frizzle.selectFirst(selector, context);
+            }
+        });
+    }
+
+    public boolean exists(String selector) {
+        return exists(selector, null);
+    }
+
+    public boolean exists(final String selector, final Element context) {
+        return run(new Query<Boolean>() {
+            @Override
+            public Boolean run(Frizzle frizzle) {
+                return frizzle.exists(selector, context);
+            }
+        });
+    }
+
+    public boolean exists(CompiledSelector selector) {
+        return exists(selector, null);
+    }
+
+    public boolean exists(final CompiledSelector selector, final Element context) {
+        return run(new Query<Boolean>() {
+            @Override
+            public Boolean run(Frizzle frizzle) {
+                return frizzle.exists(selector, context);
+            }
+        });
+    }
+
+    public int count(String selector) {
+        return count(selector, null);
+    }
+
+    public int count(final String selector, final Element context) {
+        return run(new Query<Integer>() {
+            @Override
+            public Integer run(Frizzle frizzle) {
+                return frizzle.count(selector, context);
+            }
+        });
+    }
+
+    public int count(CompiledSelector selector) {
+        return count(selector, null);
+    }
+
+    public int count(final CompiledSelector selector, final Element context) {
+        return run(new Query<Integer>() {
+            @Override
+            public Integer run(Frizzle frizzle) {
+                return frizzle.count(selector, context);
+            }
+        });
+    }
+
+    public boolean matchesSelector(final Element element, final String selector) {
+        return run(new Query<Boolean>() {
+            @Override
+            public Boolean run(Frizzle frizzle) {
+                return frizzle.matchesSelector(element, selector);
+            }
+        });
+    }
+
+    public boolean matchesSelector(final Element element, final CompiledSelector selector) {
+        return run(new Query<Boolean>() {
+            @Override
+            public Boolean run(Frizzle frizzle) {
+                return frizzle.matchesSelector(element, selector);
+            }
+        });
+    }
+
+    public Element[] matches(final String selector, final NodeList elements) {
+        return run(new Query<Element[]>() {
+            @Override
+            public Element[] run(Frizzle frizzle) {
+                return frizzle.matches(selector, elements);
+            }
+        });
+    }
+
+    public Element[] matches(final String selector, final Element[] elements) {
+        return run(new Query<Element[]>() {
+            @Override
+            public Element[] run(Frizzle frizzle) {
+                return frizzle.matches(selector, elements);
+            }
+        });
+    }
+
+    public Element[] matches(final CompiledSelector selector, final NodeList elements) {
+        return run(new Query<Element[]>() {
+            @Override
+            public Element[] run(Frizzle frizzle) {
+                return frizzle.matches(selector, elements);
+            }
+        });
+    }
+
+    public Element[] matches(final CompiledSelector selector, final Element[] elements) {
+        return run(new Query<Element[]>() {
+            @Override
+            public Element[] run(Frizzle frizzle) {
+                return frizzle.matches(selector, elements);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #select(CompiledSelector)}, but splits the work
+     * across the pool; see {@link #selectParallel(CompiledSelector,
+     * CompiledSelector)}. The document is split into the subtrees under
+     * the children of its root element.
+     */
+    public Element[] selectParallel(CompiledSelector selector) {
+        return selectParallel(selector, null);
+    }
+
+    public Element[] selectParallel(String selector) {
+        return selectParallel(Frizzle.compile(selector), null);
+    }
+
+    public Element[] selectParallel(String selector, String partition) {
+        return selectParallel(Frizzle.compile(selector), Frizzle.compile(partition));
+    }
+
+    /**
+     * Same as {@link #select(CompiledSelector)}, with the same results,
+     * but splits the work across the pool. The document is split into
+     * independent subtrees, one under each element that matches
+     * {@code partition} (ignoring matches nested in other matches), or
+     * under each child of the root element if {@code partition} is null.
+     * The elements within each subtree are then matched against the
+     * selector in fork/join tasks, each borrowing an instance from the
+     * pool; the elements outside them (including the partition
+     * elements themselves) are matched by the calling thread. Elements
+     * whose tag rules them out are skipped; the others are matched
+     * against the whole document, exactly as in
+     * {@link #matches(CompiledSelector, Element[])}, and the results
+     * are merged back in document order.
+     *
+     * <p>The partitions should be numerous enough to keep the pool
+     * busy; for a document made up of many records, they would
+     * typically be the records. Selectors with positional pseudos (such
+     * as {@code :first}), whose matches depend on each other, and
+     * selectors that start with a combinator are not split, and run as
+     * a plain {@code select}.
+     */
+    public Element[] selectParallel(CompiledSelector selector, CompiledSelector partition) {
+        Preconditions.checkState(!forkJoinPool.isShutdown(), "Fork/join pool is shut down");
+        SelectorList list = selector.getSelectorList();
+        Element root = doc.getDocumentElement();
+        if (list.needsContext() || list.isRelative() || root == null) {
+            return select(selector);
+        }
+        List<Element> partitions = partition == null ? childElements(root)
+                : outermost(select(partition));
+        Set<Node> partitionSet = Sets.newIdentityHashSet();
+        partitionSet.addAll(partitions);
+
+        /*
+         * The "spine" holds the elements outside the partitions, in
+         * document order; each partition element is followed by the
+         * matches from within its subtree.
+         */
+        List<Element> spine = new ArrayList<>();
+        List<Element> candidates = new ArrayList<>();
+        Set<String> types = list.getSubjectTypes();
+        for (Node node = doc; node != null;
+                node = following(node, doc, !partitionSet.contains(node))) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                spine.add((Element) node);
+                if (isCandidate(node, types)) {
+                    candidates.add((Element) node);
+                }
+            }
+        }
+
+        Element[][] partitionMatches = new Element[partitions.size()][];
+        int batch = Math.max(1, partitions.size() / (poolSize * 4));
+        ForkJoinTask task = new ForkJoinTask(selector, types, partitions, partitionMatches,
+                0, partitions.size(), batch);
+        forkJoinPool.execute(task);
+        Set<Element> spineMatches = Sets.newIdentityHashSet();
+        if (!candidates.isEmpty()) {
+            for (Element elem : matches(selector,
+                    candidates.toArray(new Element[candidates.size()]))) {
+                spineMatches.add(elem);
+            }
+        }
+        task.join();
+
+        List<Element> result = new ArrayList<>();
+        int next = 0;
+        for (Element elem : spine) {
+            if (spineMatches.contains(elem)) {
+                result.add(elem);
+            }
+            if (next < partitions.size() && elem == partitions.get(next)) {
+                result.addAll(ImmutableList.copyOf(partitionMatches[next++]));
+            }
+        }
+        return result.toArray(new Element[result.size()]);
+    }
+
+    /**
+     * Matches the elements within a range of partitions, splitting the
+     * range in halves down to the given batch size.
+     */
+    private final class ForkJoinTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledSelector selector;
+        private final Set<String> types;
+        private final List<Element> partitions;
+        private final Element[][] results;
+        private final int from;
+        private final int to;
+        private final int batch;
+
+        ForkJoinTask(CompiledSelector selector, Set<String> types, List<Element> partitions,
+                Element[][] results, int from, int to, int batch) {
+            this.selector = selector;
+            this.types = types;
+            this.partitions = partitions;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.batch = batch;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > batch) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ForkJoinTask(selector, types, partitions, results, from, mid, batch),
+                        new ForkJoinTask(selector, types, partitions, results, mid, to, batch));
+                return;
+            }
+            Frizzle frizzle = borrow();
+            try {
+                for (int i = from; i < to; ++i) {
+                    Element root = partitions.get(i);
+                    List<Element> elems = new ArrayList<>();
+                    for (Node node = following(root, root, true); node != null;
+                            node = following(node, root, true)) {
+                        if (node.getNodeType() == Node.ELEMENT_NODE && isCandidate(node, types)) {
+                            elems.add((Element) node);
+                        }
+                    }
+                    results[i] = elems.isEmpty() ? new Element[0]
+                            : frizzle.matches(selector, elems.toArray(new Element[elems.size()]));
+                }
+            } finally {
+                release(frizzle);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the given element can match a selector whose
+     * subject types are {@code types} (see
+     * {@link SelectorList#getSubjectTypes}).
+     */
+    private static boolean isCandidate(Node elem, Set<String> types) {
+        return types == null || types.contains(elem.getNodeName().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the node after {@code node} in document order, within the
+     * subtree of {@code root}, or null if there is none. The children
+     * of {@code node} are skipped unless {@code descend} is true.
+     */
+    private static Node following(Node node, Node root, boolean descend) {
+        Node next = descend ? node.getFirstChild() : null;
+        while (next == null && node != root) {
+            next = node.getNextSibling();
+            if (next == null) {
+                node = node.getParentNode();
+            }
+        }
+        return next;
+    }
+
+    private static List<Element> childElements(Element parent) {
+        List<Element> result = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null;
+                child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                result.add((Element) child);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given elements (which are in document order) minus
+     * those that are descendants of another.
+     */
+    private static List<Element> outermost(Element[] elems) {
+        List<Element> result = new ArrayList<>();
+        for (Element elem : elems) {
+            if (result.isEmpty() || !SizzleUtil.contains(result.get(result.size() - 1), elem)) {
+                result.add(elem);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * The utility methods are plain Java over a read-only DOM, so they
+     * need no instance from the pool.
+     */
+
+    public boolean contains(Element parent, Element child) {
+        return SizzleUtil.contains(parent, child);
+    }
+
+    public String getText(Element elem) {
+        return SizzleUtil.getText(elem);
+    }
+
+    public String getText(NodeList elems) {
+        return SizzleUtil.getText(elems);
+    }
+
+    public String getText(Element[] elems) {
+        return SizzleUtil.getText(elems);
+    }
+
+    public String attr(Element elem, String name) {
+        return SizzleUtil.attr(elem, name);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Functions for the DOM methods that Sizzle calls most often, which
+ * {@link NativeDOMNode} returns instead of the {@code NativeJavaMethod}s
+ * Rhino would find by reflection. Each calls its DOM method directly,
+ * without going through overload resolution and argument conversion.
+ * There is just one (sealed) instance of each, so looking a method up
+ * allocates nothing.
+ */
+abstract class DOMMethod extends BaseFunction {
+    static final DOMMethod GET_ATTRIBUTE = new DOMMethod("getAttribute", Element.class) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        Object call(Node node, Object[] args) {
+            return ((Element) node).getAttribute(stringArg(args));
+        }
+    };
+
+    static final DOMMethod GET_ATTRIBUTE_NODE = new DOMMethod("getAttributeNode", Element.class) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        Object call(Node node, Object[] args) {
+            return ((Element) node).getAttributeNode(stringArg(args));
+        }
+    };
+
+    static final DOMMethod HAS_ATTRIBUTE = new DOMMethod("hasAttribute", Element.class) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        Object call(Node node, Object[] args) {
+            return ((Element) node).hasAttribute(stringArg(args));
+        }
+    };
+
+    static final DOMMethod GET_ELEMENTS_BY_TAG_NAME = new DOMMethod("getElementsByTagName", Node.class) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        Object call(Node node, Object[] args) {
+            String name = stringArg(args);
+            if (node instanceof Element) {
+                return ((Element) node).getElementsByTagName(name);
+            }
+            if (node instanceof Document) {
+                return ((Document) node).getElementsByTagName(name);
+            }
+            throw incompatibleCall();
+        }
+    };
+
+    static final DOMMethod GET_ELEMENT_BY_ID = new DOMMethod("getElementById", Document.class) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        Object call(Node node, Object[] args) {
+            return ((Document) node).getElementById(stringArg(args));
+        }
+    };
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final Class<? extends Node> type;
+
+    private DOMMethod(String name, Class<? extends Node> type) {
+        super(SharedScope.get(), ScriptableObject.getFunctionPrototype(SharedScope.get()));
+        this.name = name;
+        this.type = type;
+        sealObject();
+    }
+
+    /**
+     * Calls the DOM method on the given node, which is known to be an
+     * instance of this method's type. The result is wrapped by the
+     * caller.
+     */
+    abstract Object call(Node node, Object[] args);
+
+    /**
+     * Converts the first argument to a string, as Rhino would for a
+     * {@code String} parameter: {@code null} stays {@code null}.
+     */
+    static String stringArg(Object[] args) {
+        Object arg = args.length == 0 ? Undefined.instance : args[0];
+        return arg == null ? null : Context.toString(arg);
+    }
+
+    RuntimeException incompatibleCall() {
+        return ScriptRuntime.typeError1("msg.incompat.call", name);
+    }
+
+    @Override
+    public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+        Object self = thisObj instanceof Wrapper ? ((Wrapper) thisObj).unwrap() : null;
+        if (!type.isInstance(self)) {
+            throw incompatibleCall();
+        }
+        return Context.javaToJS(call((Node) self, args),
+                ScriptableObject.getTopLevelScope(thisObj));
+    }
+
+    @Override
+    public String getFunctionName() {
+        return name;
+    }
+
+    @Override
+    public int getArity() {
+        return 1;
+    }
+
+    @Override
+    public int getLength() {
+        return 1;
+    }
+}
@@ -23,6 +23,9 @@
 
 package com.on_site.frizzle;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.on_site.frizzle.debug.LoggingDOMCollection;
 import com.on_site.frizzle.debug.LoggingDOMNode;
 import com.on_site.frizzle.debug.LoggingJavaObject;
@@ -36,16 +39,83 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+/**
+ * {@link WrapFactory} that wraps DOM nodes and collections so that they
+ * behave more like browser DOM objects to scripts.
+ *
+ * <p>A factory can optionally cache the wrappers it makes for nodes, so
+ * that a node that crosses into JavaScript repeatedly (as when Sizzle
+ * walks up through {@code parentNode}) gets the same wrapper each time,
+ * rather than a new one. The cache is bounded, and holds both nodes and
+ * wrappers weakly; a wrapper is only reused for the scope it was made
+ * for, so a caching factory is best kept to a single scope.
+ */
 public class DOMWrapFactory extends WrapFactory {
     private static final boolean DEBUG = Boolean.getBoolean("com.on_site.frizzle.debug");
 
+    /**
+     * The cache size used by {@link Frizzle}.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private final Cache<Node, Scriptable> cache;
+
+    /**
+     * Creates a factory that does not cache wrappers.
+     */
     public DOMWrapFactory() {
+        this(0);
+    }
+
+    /**
+     * Creates a factory that caches up to {@code cacheSize} node
+     * wrappers, or none if {@code cacheSize} is zero.
+     */
+    public DOMWrapFactory(int cacheSize) {
         setJavaPrimitiveWrap(false);
+        cache = cacheSize == 0 ? null : CacheBuilder.newBuilder()
+                .weakKeys()
+                .weakValues()
+                .maximumSize(cacheSize)
+                .recordStats()
+                .<Node, Scriptable>build();
+    }
+
+    /**
+     * Returns the hit and miss counts of the wrapper cache; these are
+     * all zero if wrappers are not cached.
+     */
+    public CacheStats getCacheStats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    /**
+     * Discards all cached wrappers, such as when the nodes they wrap
+     * are no longer going to be used.
+     */
+    public void clearCache() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
     }
 
     @Override
     public Scriptable wrapAsJavaObject(Context cx, Scriptable scope,
             Object javaObject, Class<?> staticType) {
+        if (cache == null || !(javaObject instanceof Node)) {
+            return wrapUncached(scope, javaObject, staticType);
+        }
+        Node node = (Node) javaObject;
+        Scriptable wrapper = cache.getIfPresent(node);
+        if (wrapper == null || wrapper.getParentScope() != scope) {
+            wrapper = wrapUncached(scope, node, staticType);
+            cache.put(node, wrapper);
+        }
+        return wrapper;
+    }
+
+    private static Scriptable wrapUncached(Scriptable scope,
+            Object javaObject, Class<?> staticType) {
         return DEBUG ? wrapWithLogging(scope, javaObject, staticType)
                 : wrapWithoutLogging(scope, javaObject, staticType);
     }
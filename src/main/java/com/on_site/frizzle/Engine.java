@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.Locale;
+
+import org.w3c.dom.Document;
+
+/**
+ * The selector engines that {@link Frizzle} can use.
+ *
+ * <p>The default engine is {@link #SIZZLE}, unless the
+ * {@code com.on_site.frizzle.engine} system property names another
+ * (e.g., {@code -Dcom.on_site.frizzle.engine=native}).
+ */
+public enum Engine {
+    /**
+     * Runs Sizzle itself under Rhino, with DOM nodes wrapped to look
+     * like browser DOM objects.
+     */
+    SIZZLE {
+        @Override
+        SelectorEngine create(Document doc, FrizzleOptions options) {
+            return new SizzleEngine(doc, options);
+        }
+    },
+
+    /**
+     * Parses and evaluates selectors in Java, directly against the DOM.
+     * This supports the same grammar and pseudos as Sizzle (including
+     * custom pseudos), but with two deliberate differences: tag names
+     * are always compared case-sensitively, and attribute presence
+     * tests such as {@code [name]} only match elements that actually
+     * have the attribute. Also, when testing given elements against a
+     * selector with positional pseudos (as {@code matches} and
+     * {@code matchesSelector} do, and as {@code :not} does with its
+     * argument), positions are taken from a selection over the whole
+     * document rather than from the given elements.
+     */
+    NATIVE {
+        @Override
+        SelectorEngine create(Document doc, FrizzleOptions options) {
+            return new NativeEngine(doc, options);
+        }
+    },
+
+    /**
+     * Runs Sizzle under Nashorn, the JavaScript engine that comes with
+     * Java 8 to 14 (or whichever engine is registered with
+     * {@code javax.script} under the name {@code nashorn}), with DOM
+     * nodes wrapped in script objects of its own. Of the
+     * {@link FrizzleOptions}, only the cache length, the time limit, and
+     * cancellation apply. Results are the same as with {@link #SIZZLE}.
+     *
+     * @see #isAvailable
+     */
+    NASHORN {
+        @Override
+        SelectorEngine create(Document doc, FrizzleOptions options) {
+            return new NashornEngine(doc, options);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return NashornEngine.isAvailable();
+        }
+    };
+
+    private static final String PROPERTY = "com.on_site.frizzle.engine";
+
+    /**
+     * @throws IllegalStateException if the engine is not available
+     */
+    abstract SelectorEngine create(Document doc, FrizzleOptions options);
+
+    /**
+     * Returns whether this engine can be used in this JVM. Only
+     * {@link #NASHORN} may not be, since it needs a script engine that
+     * not every Java version has.
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Returns the engine named by the {@code com.on_site.frizzle.engine}
+     * system property, or {@link #SIZZLE} if it is unset.
+     */
+    public static Engine getDefault() {
+        String name = System.getProperty(PROPERTY);
+        return name == null ? SIZZLE : valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
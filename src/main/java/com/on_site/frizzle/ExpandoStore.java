@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.w3c.dom.Node;
+
+/**
+ * Side table holding the script properties ("expandos") that have been
+ * set on DOM nodes, such as the caches Sizzle keeps on each element
+ * under its {@code expando} name. Java DOM nodes have nowhere to put
+ * such properties, and a node may have any number of wrappers over its
+ * lifetime, so they are kept here instead.
+ *
+ * <p>There is one store per top-level scope (it is kept as an
+ * associated value of the scope), and it holds the nodes weakly, so it
+ * lives exactly as long as either. Keeping the stores apart matters
+ * when several Sizzle instances work on the same document: Sizzle
+ * derives its {@code expando} name from the current time, so instances
+ * created in the same millisecond would otherwise read each other's
+ * caches. A store may be used from several threads at once.
+ */
+final class ExpandoStore {
+    private static final String KEY = ExpandoStore.class.getName();
+
+    /**
+     * Stands in for {@code null} values, which concurrent maps cannot
+     * hold.
+     */
+    private static final Object NULL = new Object();
+
+    private final ConcurrentMap<Node, ConcurrentMap<String, Object>> properties
+            = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * The number of the current call into the scope's Sizzle.
+     */
+    private volatile int run;
+
+    /**
+     * Returns the store for the top-level scope of the given object,
+     * creating it if need be.
+     */
+    static ExpandoStore forScope(Scriptable scope) {
+        ScriptableObject toplevel = (ScriptableObject) ScriptableObject.getTopLevelScope(scope);
+        ExpandoStore store = (ExpandoStore) toplevel.getAssociatedValue(KEY);
+        if (store == null) {
+            /* associateValue keeps whichever value got there first. */
+            store = (ExpandoStore) toplevel.associateValue(KEY, new ExpandoStore());
+        }
+        return store;
+    }
+
+    /**
+     * Returns the expando properties of the given node, or null if it
+     * has none and {@code create} is false.
+     */
+    Properties get(Node node, boolean create) {
+        ConcurrentMap<String, Object> map = properties.get(node);
+        if (map == null) {
+            if (!create) {
+                return null;
+            }
+            ConcurrentMap<String, Object> newMap = new ConcurrentHashMap<>(4);
+            map = properties.putIfAbsent(node, newMap);
+            if (map == null) {
+                map = newMap;
+            }
+        }
+        return new Properties(map);
+    }
+
+    /**
+     * Returns the number of the current call into the scope's Sizzle.
+     * Positions that wrappers keep between accesses to the DOM (unlike
+     * expandos, which Sizzle manages itself) are only good for the call
+     * they were found in.
+     */
+    int getRun() {
+        return run;
+    }
+
+    /**
+     * Starts another call into the scope's Sizzle. Only the thread that
+     * is running the scope calls this.
+     */
+    void nextRun() {
+        ++run;
+    }
+
+    /**
+     * The expando properties of a single node.
+     */
+    static final class Properties {
+        private final ConcurrentMap<String, Object> map;
+
+        private Properties(ConcurrentMap<String, Object> map) {
+            this.map = map;
+        }
+
+        boolean has(String name) {
+            return map.containsKey(name);
+        }
+
+        /**
+         * Returns the value of the named property, or
+         * {@code Scriptable.NOT_FOUND} if it is not set.
+         */
+        Object get(String name) {
+            Object value = map.get(name);
+            return value == null ? Scriptable.NOT_FOUND : value == NULL ? null : value;
+        }
+
+        void put(String name, Object value) {
+            map.put(name, value == null ? NULL : value);
+        }
+
+        void delete(String name) {
+            map.remove(name);
+        }
+    }
+}
@@ -23,73 +23,221 @@
 
 package com.on_site.frizzle;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.net.URL;
-
-import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
-import com.on_site.util.ContextCloseable;
+import com.on_site.frizzle.selector.DocumentOrder;
+import com.on_site.frizzle.selector.ElementIndex;
+import com.on_site.frizzle.selector.ElementSet;
+import com.on_site.frizzle.selector.SelectorList;
 
+import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Function;
-import org.mozilla.javascript.Script;
-import org.mozilla.javascript.Scriptable;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 /**
  * Wrapper for the <a href="http://sizzlejs.com/">Sizzle</a> library.
- * Each instance of this class can only be used on a single thread.
+ * Each instance of this class can only be used on a single thread; to
+ * query a document from several threads, use {@link ConcurrentFrizzle}.
+ *
+ * <p>By default, Sizzle itself is run under Rhino; Sizzle under Nashorn,
+ * or a pure-Java engine that evaluates the same selectors, can be
+ * chosen instead, by passing an {@link Engine} to the constructor or by
+ * setting the {@code com.on_site.frizzle.engine} system property. Either
+ * way, the utility methods ({@code getText}, {@code attr}, and
+ * {@code contains}) are implemented in Java, with the same results as
+ * Sizzle's. How the Sizzle engine runs under Rhino can be tuned with
+ * {@link FrizzleOptions}.
  *
  * @author Chris K. Jester-Young
  */
 public class Frizzle {
-    private static final Script SIZZLE_SCRIPT = compileSizzle();
+    /**
+     * A run of calls that share one Rhino context, opened by
+     * {@link #openSession}. While a session is open, calls made on the
+     * owning {@code Frizzle} skip entering a context and installing a
+     * wrap factory, which otherwise happens on every call. The session
+     * itself is only a handle for closing it again, which must be done
+     * on the thread that opened it.
+     */
+    public final class Session implements AutoCloseable {
+        private boolean open = true;
 
-    private final Set<String> pseudos = Sets.newHashSet();
-    private final Scriptable toplevel;
-    private final Function sizzle;
-
-    private static Script compileSizzle() {
-        URL sizzlejs = Frizzle.class.getResource("sizzle.js");
-        try (Reader in = new InputStreamReader(sizzlejs.openStream(), Charsets.UTF_8);
-                ContextCloseable cc = new ContextCloseable()) {
-            return cc.getContext().compileReader(in, sizzlejs.toString(), 1, null);
-        } catch (IOException e) {
-            throw new AssertionError(e);
+        private Session() {
+            engine.openSession();
+        }
+
+        public Frizzle getFrizzle() {
+            return Frizzle.this;
         }
-    }
 
-    private Object toJS(Object javaObject) {
-        return Context.javaToJS(javaObject, toplevel);
+        /**
+         * Ends the session. Closing an already closed session does
+         * nothing.
+         */
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                session = null;
+                engine.closeSession();
+            }
+        }
     }
 
+    private final Set<String> pseudos = Sets.newHashSet();
+    private final Engine engineType;
+    private final FrizzleOptions options;
+    private final SelectorEngine engine;
+    private ElementIndex index;
+    private boolean ordered = true;
+    private Session session;
+
     public Frizzle(Document doc) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            this.toplevel = cx.initSafeStandardObjects();
-            toplevel.put("document", toplevel, toJS(doc));
-            toplevel.put("window", toplevel, toplevel);
-            SIZZLE_SCRIPT.exec(cx, toplevel);
-            this.sizzle = (Function) toplevel.get("Sizzle", toplevel);
-        }
+        this(doc, Engine.getDefault());
+    }
+
+    public Frizzle(Document doc, Engine engine) {
+        this(doc, engine, FrizzleOptions.DEFAULT);
+    }
+
+    public Frizzle(Document doc, Engine engine, FrizzleOptions options) {
+        this.engineType = engine;
+        this.options = Preconditions.checkNotNull(options);
+        this.engine = engine.create(doc, options);
+    }
+
+    /**
+     * Parses the given selector into a form that can be reused with any
+     * number of {@code Frizzle} instances, on any thread, without being
+     * parsed again.
+     *
+     * @throws IllegalArgumentException if the selector is not
+     * syntactically valid
+     */
+    public static CompiledSelector compile(String selector) {
+        return new CompiledSelector(SelectorList.parse(selector));
+    }
+
+    /**
+     * Rebinds this instance to another document, so that it can be
+     * reused without the cost of setting up a new instance. Custom
+     * pseudos stay registered. With the Sizzle engine, this reuses the
+     * existing Sizzle scope and simply calls {@code Sizzle.setDocument};
+     * note that the scope keeps a reference to the document it was
+     * created with for as long as this instance lives. Any index set
+     * with {@link #setIndex} is dropped.
+     */
+    public void setDocument(Document doc) {
+        engine.setDocument(doc);
+        index = null;
+    }
+
+    /**
+     * Uses the given index of the current document to narrow down the
+     * elements that {@code select} (and its lazy variants) check, or
+     * stops using one if null. Selectors the index cannot help with are
+     * evaluated as usual. The document must not be modified while an
+     * index is in use, since the index would not reflect the change.
+     *
+     * @throws IllegalArgumentException if the index is of a different
+     * document
+     */
+    public void setIndex(ElementIndex index) {
+        engine.setIndex(index);
+        this.index = index;
+    }
+
+    public ElementIndex getIndex() {
+        return index;
+    }
+
+    private DocumentOrder getDocumentOrder() {
+        Preconditions.checkState(index != null, "No index is set");
+        return index.getDocumentOrder();
+    }
+
+    /**
+     * Sets whether {@code select} (and its lazy variants) return
+     * elements in document order, which is the default. Only results
+     * that combine positional pseudos with other selectors need
+     * sorting; callers that do not care about the order can skip that
+     * sort by turning this off. Results never contain duplicates
+     * either way.
+     */
+    public void setOrdered(boolean ordered) {
+        engine.setOrdered(ordered);
+        this.ordered = ordered;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Opens a session, which should be closed (preferably with
+     * try-with-resources) when the calls on this instance that it
+     * covers are done.
+     *
+     * @throws IllegalStateException if this instance already has an
+     * open session
+     */
+    public Session openSession() {
+        Preconditions.checkState(session == null, "A session is already open");
+        session = new Session();
+        return session;
+    }
+
+    /**
+     * Stops the call in progress on this instance, if any, which then
+     * throws a {@link QueryAbortedException}. Unlike the rest of this
+     * class, this may be called from any thread; it has no effect on
+     * calls made after it. The call stops at its next checkpoint (see
+     * {@link FrizzleOptions}), so it may run on briefly.
+     *
+     * @throws IllegalStateException if this instance's options do not
+     * allow cancellation
+     * @see FrizzleOptions.Builder#cancellable
+     */
+    public void cancel() {
+        engine.cancel();
+    }
+
+    public Engine getEngine() {
+        return engineType;
+    }
+
+    public FrizzleOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Returns the hit and miss counts of the cache that maps each DOM
+     * node to a single script wrapper. This is only used by the engines
+     * that run Sizzle; with the pure-Java engine, all counts are zero.
+     */
+    public CacheStats getWrapperCacheStats() {
+        return engine.getWrapperCacheStats();
+    }
+
+    /**
+     * Returns the number of calls made into each of Sizzle's functions,
+     * and the total time spent in them, keyed by function name (e.g.,
+     * {@code Sizzle.matchesSelector}). This is empty with the pure-Java
+     * engine.
+     */
+    public Map<String, CallStats> getCallStats() {
+        return engine.getCallStats();
     }
 
     public void createPseudo(String name, Pseudo pseudo) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            Scriptable selectors = (Scriptable) sizzle.get("selectors", sizzle);
-            Function createPseudo = (Function) selectors.get("createPseudo", selectors);
-            Object object = createPseudo.call(cx, toplevel, selectors, new Object[] { pseudo.toJS() });
-            Scriptable pseudos = (Scriptable) selectors.get("pseudos", selectors);
-            pseudos.put(name, pseudos, object);
-            this.pseudos.add(name);
-        }
+        engine.createPseudo(name, pseudo);
+        this.pseudos.add(name);
     }
 
     public boolean hasPseudo(String name) {
@@ -97,110 +245,264 @@ public class Frizzle {
     }
 
     public Element[] select(String selector) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (Element[]) Context.jsToJava(
-                    sizzle.call(cx, toplevel, null, new Object[] {selector}),
-                    Element[].class);
-        }
+        return engine.select(selector, null);
     }
 
     public Element[] select(String selector, Element context) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (Element[]) Context.jsToJava(
-                    sizzle.call(cx, toplevel, null, new Object[] {selector,
-                            toJS(context)}),
-                    Element[].class);
-        }
+        return engine.select(selector, context);
     }
 
     public Element[] select(String selector, Document context) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (Element[]) Context.jsToJava(
-                    sizzle.call(cx, toplevel, null, new Object[] {selector,
-                            toJS(context)}),
-                    Element[].class);
+        return engine.select(selector, context);
+    }
+
+    public Element[] select(CompiledSelector selector) {
+        return engine.select(selector, null);
+    }
+
+    public Element[] select(CompiledSelector selector, Element context) {
+        return engine.select(selector, context);
+    }
+
+    public Element[] select(CompiledSelector selector, Document context) {
+        return engine.select(selector, context);
+    }
+
+    /**
+     * Returns the first element {@code select} would return, or null if
+     * there is none. With the pure-Java engine, the search stops at the
+     * first match, unless the selector has a positional pseudo.
+     */
+    public Element selectFirst(String selector) {
+        return Iterables.getFirst(engine.iterate(selector, null), null);
+    }
+
+    public Element selectFirst(String selector, Element context) {
+        return Iterables.getFirst(engine.iterate(selector, context), null);
+    }
+
+    public Element selectFirst(String selector, Document context) {
+        return Iterables.getFirst(engine.iterate(selector, context), null);
+    }
+
+    public Element selectFirst(CompiledSelector selector) {
+        return Iterables.getFirst(engine.iterate(selector, null), null);
+    }
+
+    public Element selectFirst(CompiledSelector selector, Element context) {
+        return Iterables.getFirst(engine.iterate(selector, context), null);
+    }
+
+    public Element selectFirst(CompiledSelector selector, Document context) {
+        return Iterables.getFirst(engine.iterate(selector, context), null);
+    }
+
+    /**
+     * Returns whether {@code select} would return any elements, stopping
+     * at the first match where the engine can.
+     */
+    public boolean exists(String selector) {
+        return !Iterables.isEmpty(engine.iterate(selector, null));
+    }
+
+    public boolean exists(String selector, Element context) {
+        return !Iterables.isEmpty(engine.iterate(selector, context));
+    }
+
+    public boolean exists(String selector, Document context) {
+        return !Iterables.isEmpty(engine.iterate(selector, context));
+    }
+
+    public boolean exists(CompiledSelector selector) {
+        return !Iterables.isEmpty(engine.iterate(selector, null));
+    }
+
+    public boolean exists(CompiledSelector selector, Element context) {
+        return !Iterables.isEmpty(engine.iterate(selector, context));
+    }
+
+    public boolean exists(CompiledSelector selector, Document context) {
+        return !Iterables.isEmpty(engine.iterate(selector, context));
+    }
+
+    /**
+     * Returns the number of elements {@code select} would return,
+     * without collecting them into an array.
+     */
+    public int count(String selector) {
+        return Iterables.size(engine.iterate(selector, null));
+    }
+
+    public int count(String selector, Element context) {
+        return Iterables.size(engine.iterate(selector, context));
+    }
+
+    public int count(String selector, Document context) {
+        return Iterables.size(engine.iterate(selector, context));
+    }
+
+    public int count(CompiledSelector selector) {
+        return Iterables.size(engine.iterate(selector, null));
+    }
+
+    public int count(CompiledSelector selector, Element context) {
+        return Iterables.size(engine.iterate(selector, context));
+    }
+
+    public int count(CompiledSelector selector, Document context) {
+        return Iterables.size(engine.iterate(selector, context));
+    }
+
+    /**
+     * Returns the elements {@code select} would return, without copying
+     * them into an array. With the pure-Java engine, matches are found
+     * as the result is iterated (each iterator starting a new search),
+     * unless the selector has a positional pseudo; the document must not
+     * be modified while an iterator is in use. With the Sizzle engine,
+     * Sizzle finds all the matches up front, and the result is a view of
+     * its array.
+     */
+    public Iterable<Element> iterate(String selector) {
+        return engine.iterate(selector, null);
+    }
+
+    public Iterable<Element> iterate(String selector, Element context) {
+        return engine.iterate(selector, context);
+    }
+
+    public Iterable<Element> iterate(String selector, Document context) {
+        return engine.iterate(selector, context);
+    }
+
+    public Iterable<Element> iterate(CompiledSelector selector) {
+        return engine.iterate(selector, null);
+    }
+
+    public Iterable<Element> iterate(CompiledSelector selector, Element context) {
+        return engine.iterate(selector, context);
+    }
+
+    public Iterable<Element> iterate(CompiledSelector selector, Document context) {
+        return engine.iterate(selector, context);
+    }
+
+    /**
+     * Returns the elements {@code select} would return, as a set over
+     * the ordinals of the current index, which can be combined cheaply
+     * with other such sets.
+     *
+     * @throws IllegalStateException if no index is set
+     * @see #setIndex
+     */
+    public ElementSet selectSet(String selector) {
+        return ElementSet.of(getDocumentOrder(), engine.iterate(selector, null));
+    }
+
+    public ElementSet selectSet(String selector, Element context) {
+        return ElementSet.of(getDocumentOrder(), engine.iterate(selector, context));
+    }
+
+    public ElementSet selectSet(String selector, Document context) {
+        return ElementSet.of(getDocumentOrder(), engine.iterate(selector, context));
+    }
+
+    public ElementSet selectSet(String selector, ElementSet context) {
+        return selectSet(compile(selector), context);
+    }
+
+    public ElementSet selectSet(CompiledSelector selector) {
+        return ElementSet.of(getDocumentOrder(), engine.iterate(selector, null));
+    }
+
+    public ElementSet selectSet(CompiledSelector selector, Element context) {
+        return ElementSet.of(getDocumentOrder(), engine.iterate(selector, context));
+    }
+
+    public ElementSet selectSet(CompiledSelector selector, Document context) {
+        return ElementSet.of(getDocumentOrder(), engine.iterate(selector, context));
+    }
+
+    /**
+     * Returns the union of the elements {@code select} would return
+     * within each element of {@code context}. Context elements inside
+     * another one are skipped where they cannot add anything (that is,
+     * unless the selector starts with a combinator or uses positional
+     * pseudos).
+     *
+     * @throws IllegalStateException if no index is set
+     */
+    public ElementSet selectSet(CompiledSelector selector, ElementSet context) {
+        SelectorList selectors = selector.getSelectorList();
+        boolean skipNested = !selectors.isRelative() && !selectors.needsContext();
+        ElementSet.Builder result = ElementSet.builder(getDocumentOrder());
+        Element outer = null;
+        for (Element elem : context) {
+            if (skipNested && outer != null && SizzleUtil.contains(outer, elem)) {
+                continue;
+            }
+            outer = elem;
+            result.addAll(engine.iterate(selector, elem));
         }
+        return result.build();
     }
 
     public boolean matchesSelector(Element element, String selector) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (Boolean) Context.jsToJava(
-                    ((Function) sizzle.get("matchesSelector", sizzle))
-                        .call(cx, toplevel, sizzle, new Object[] {toJS(element),
-                                selector}),
-                    Boolean.class);
-        }
+        return engine.matchesSelector(element, selector);
+    }
+
+    public boolean matchesSelector(Element element, CompiledSelector selector) {
+        return engine.matchesSelector(element, selector);
     }
 
     public Element[] matches(String selector, NodeList elements) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (Element[]) Context.jsToJava(((Function) sizzle.get("matches", sizzle))
-                    .call(cx, toplevel, sizzle, new Object[] {selector, toJS(elements)}),
-                    Element[].class);
-        }
+        return engine.matches(selector, elements);
     }
 
     public Element[] matches(String selector, Element[] elements) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (Element[]) Context.jsToJava(((Function) sizzle.get("matches", sizzle))
-                    .call(cx, toplevel, sizzle, new Object[] {selector, toJS(elements)}),
-                    Element[].class);
-        }
+        return engine.matches(selector, elements);
+    }
+
+    public Element[] matches(CompiledSelector selector, NodeList elements) {
+        return engine.matches(selector, elements);
+    }
+
+    public Element[] matches(CompiledSelector selector, Element[] elements) {
+        return engine.matches(selector, elements);
     }
 
     public boolean contains(Element parent, Element child) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (Boolean) Context.jsToJava(((Function) sizzle.get("contains", sizzle))
-                    .call(cx, toplevel, sizzle, new Object[] {toJS(parent), toJS(child)}),
-                    Boolean.class);
-        }
+        return SizzleUtil.contains(parent, child);
     }
 
     public String getText(Element elem) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (String) Context.jsToJava(((Function) sizzle.get("getText", sizzle))
-                    .call(cx, toplevel, sizzle, new Object[] {toJS(elem)}), String.class);
-        }
+        return SizzleUtil.getText(elem);
     }
 
     public String getText(NodeList elems) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (String) Context.jsToJava(((Function) sizzle.get("getText", sizzle))
-                    .call(cx, toplevel, sizzle, new Object[] {toJS(elems)}), String.class);
-        }
+        return SizzleUtil.getText(elems);
     }
 
     public String getText(Element[] elems) {
-        /*
-         * NativeJavaArray doesn't like having nonexisting properties
-         * (like nodeType) accessed on it, so traverse elements manually
-         * just like Sizzle.getText actually does.
-         */
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            StringBuilder sb = new StringBuilder();
-            for (Element elem : elems) {
-                sb.append(Context.jsToJava(((Function) sizzle.get("getText", sizzle))
-                    .call(cx, toplevel, sizzle, new Object[] {toJS(elem)}), String.class));
-            }
-            return sb.toString();
-        }
+        return SizzleUtil.getText(elems);
+    }
+
+    /**
+     * Appends the same text as {@link #getText(Element)} would return,
+     * without building it as a string first.
+     */
+    public void appendText(Element elem, Appendable out) throws IOException {
+        SizzleUtil.appendText(elem, out);
+    }
+
+    public void appendText(NodeList elems, Appendable out) throws IOException {
+        SizzleUtil.appendText(elems, out);
+    }
+
+    public void appendText(Element[] elems, Appendable out) throws IOException {
+        SizzleUtil.appendText(elems, out);
     }
 
     public String attr(Element elem, String name) {
-        try (ContextCloseable cc = new WrappedContextCloseable()) {
-            Context cx = cc.getContext();
-            return (String) Context.jsToJava(((Function) sizzle.get("attr", sizzle))
-                    .call(cx, toplevel, sizzle, new Object[] {toJS(elem), name}), String.class);
-        }
+        return SizzleUtil.attr(elem, name);
     }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * {@link ContextFactory} that sets up each context it makes as the
+ * given {@link FrizzleOptions} say, and passes instruction counts on to
+ * their observer, and to the {@link QueryGuard} of the call in
+ * progress.
+ */
+final class FrizzleContextFactory extends ContextFactory {
+    private final FrizzleOptions options;
+
+    FrizzleContextFactory(FrizzleOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    protected Context makeContext() {
+        Context cx = super.makeContext();
+        cx.setOptimizationLevel(options.getOptimizationLevel());
+        cx.setLanguageVersion(options.getLanguageVersion());
+        if (options.isObserved()) {
+            cx.setInstructionObserverThreshold(options.getObserverThreshold());
+            cx.setGenerateObserverCount(true);
+        }
+        return cx;
+    }
+
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount) {
+        FrizzleOptions.InstructionObserver observer = options.getInstructionObserver();
+        if (observer != null) {
+            observer.observe(instructionCount);
+        }
+        QueryGuard guard = QueryGuard.current();
+        if (guard != null) {
+            guard.countInstructions(instructionCount);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * Settings for how the Sizzle engine runs Sizzle under Rhino: how
+ * {@code sizzle.js} is compiled, how big its caches are, and whether
+ * scripts report their progress. The pure-Java engine runs no scripts,
+ * and ignores them; the Nashorn engine only uses the cache length. All
+ * engines apply the limits on each call, as described below.
+ *
+ * <p>The defaults suit most uses. A long-running server that runs many
+ * different selectors might raise the optimization level and the cache
+ * sizes; a short job that only runs a few selectors might run Sizzle
+ * interpreted (optimization level -1), which avoids generating classes,
+ * and keep the caches small.
+ *
+ * <p>A call (such as one {@code select}) can be given a time limit, an
+ * instruction limit, or both, and calls can be made cancellable from
+ * other threads with {@link Frizzle#cancel}. A call that runs past a
+ * limit, or is cancelled, stops with a {@link QueryAbortedException},
+ * which bounds the damage one pathological selector can do. The limits
+ * are checked at points along the way, not continuously: under Rhino,
+ * every {@link #CHECK_INSTRUCTIONS} script instructions (or at the
+ * instruction observer's threshold, if that is lower); in the pure-Java
+ * engine, every thousand or so steps of matching; and in the Nashorn
+ * engine, every thousand or so node lookups. Only Rhino counts
+ * instructions, so the instruction limit applies to the Sizzle engine
+ * alone. An iteration from {@code iterate} is checked step by step,
+ * each step counting as a call of its own.
+ *
+ * <p>Only the optimization level and language version that Sizzle is
+ * compiled with by the build (the defaults) can use the precompiled
+ * Sizzle; with any others, or with an instruction observer, limits, or
+ * cancellation, Sizzle is compiled from source on first use (once per
+ * combination, for the life of the process), to count instructions.
+ *
+ * <p>The settings are applied to each Rhino {@link Context} that the
+ * engine enters, through a {@link ContextFactory} of its own. A call
+ * that is made while the thread is already in a context (such as from
+ * a custom pseudo) runs in that context instead, with its settings.
+ *
+ * <p>Instances are immutable, and may be shared between threads.
+ */
+public final class FrizzleOptions {
+    /**
+     * Receives the number of script instructions run since it was last
+     * called, each time the threshold is passed (or more often, if there
+     * are also limits). It may throw an unchecked exception to stop the
+     * script, which is then thrown out of the Frizzle call that was
+     * running it.
+     */
+    public interface InstructionObserver {
+        void observe(int instructionCount);
+    }
+
+    /**
+     * Sets up a {@link FrizzleOptions}; see {@link FrizzleOptions#DEFAULT}
+     * for the defaults.
+     */
+    public static final class Builder {
+        private int optimizationLevel = 0;
+        private int languageVersion = Context.VERSION_DEFAULT;
+        private int cacheLength = DEFAULT_CACHE_LENGTH;
+        private int wrapperCacheSize = DOMWrapFactory.DEFAULT_CACHE_SIZE;
+        private int instructionThreshold;
+        private InstructionObserver instructionObserver;
+        private long timeLimit;
+        private long instructionLimit;
+        private boolean cancellable;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets Rhino's optimization level: -1 to interpret scripts, 0 to
+         * compile them to bytecode, or 1 to 9 to also optimize them.
+         *
+         * @see Context#setOptimizationLevel
+         */
+        public Builder optimizationLevel(int optimizationLevel) {
+            Preconditions.checkArgument(Context.isValidOptimizationLevel(optimizationLevel),
+                    "Invalid optimization level: %s", optimizationLevel);
+            this.optimizationLevel = optimizationLevel;
+            return this;
+        }
+
+        /**
+         * Sets the JavaScript language version, as one of the
+         * {@code Context.VERSION_*} constants.
+         *
+         * @see Context#setLanguageVersion
+         */
+        public Builder languageVersion(int languageVersion) {
+            Preconditions.checkArgument(Context.isValidLanguageVersion(languageVersion),
+                    "Invalid language version: %s", languageVersion);
+            this.languageVersion = languageVersion;
+            return this;
+        }
+
+        /**
+         * Sets Sizzle's {@code cacheLength}: the number of selectors
+         * whose tokens, and whose compiled matchers, Sizzle keeps. Each
+         * instance adds one to this for every {@link CompiledSelector}
+         * it has used.
+         */
+        public Builder cacheLength(int cacheLength) {
+            Preconditions.checkArgument(cacheLength > 0, "Cache length must be positive: %s",
+                    cacheLength);
+            this.cacheLength = cacheLength;
+            return this;
+        }
+
+        /**
+         * Sets the number of DOM node wrappers that each instance
+         * caches, or zero to make a new wrapper each time a node is
+         * passed to Sizzle.
+         *
+         * @see DOMWrapFactory#DOMWrapFactory(int)
+         */
+        public Builder wrapperCacheSize(int wrapperCacheSize) {
+            Preconditions.checkArgument(wrapperCacheSize >= 0,
+                    "Wrapper cache size must not be negative: %s", wrapperCacheSize);
+            this.wrapperCacheSize = wrapperCacheSize;
+            return this;
+        }
+
+        /**
+         * Has {@code observer} called about every {@code threshold}
+         * script instructions.
+         *
+         * @see Context#setInstructionObserverThreshold
+         */
+        public Builder instructionObserver(int threshold, InstructionObserver observer) {
+            Preconditions.checkArgument(threshold > 0, "Threshold must be positive: %s",
+                    threshold);
+            this.instructionThreshold = threshold;
+            this.instructionObserver = Preconditions.checkNotNull(observer);
+            return this;
+        }
+
+        /**
+         * Limits each call to about the given time, or removes the
+         * limit if it is zero.
+         */
+        public Builder timeLimit(long timeLimit, TimeUnit unit) {
+            Preconditions.checkArgument(timeLimit >= 0, "Time limit must not be negative: %s",
+                    timeLimit);
+            this.timeLimit = unit.toNanos(timeLimit);
+            return this;
+        }
+
+        /**
+         * Limits each call to about the given number of script
+         * instructions (under Rhino only), or removes the limit if it is
+         * zero.
+         */
+        public Builder instructionLimit(long instructionLimit) {
+            Preconditions.checkArgument(instructionLimit >= 0,
+                    "Instruction limit must not be negative: %s", instructionLimit);
+            this.instructionLimit = instructionLimit;
+            return this;
+        }
+
+        /**
+         * Sets whether calls can be stopped from another thread with
+         * {@link Frizzle#cancel}.
+         */
+        public Builder cancellable(boolean cancellable) {
+            this.cancellable = cancellable;
+            return this;
+        }
+
+        public FrizzleOptions build() {
+            return new FrizzleOptions(this);
+        }
+    }
+
+    /**
+     * Sizzle's own default {@code cacheLength}.
+     */
+    public static final int DEFAULT_CACHE_LENGTH = 50;
+
+    /**
+     * The number of script instructions between checks of the limits
+     * under Rhino.
+     */
+    public static final int CHECK_INSTRUCTIONS = 10000;
+
+    /**
+     * The options used when none are given: optimization level 0, the
+     * default language version, Sizzle's default cache length, a
+     * wrapper cache of {@link DOMWrapFactory#DEFAULT_CACHE_SIZE}, no
+     * instruction observer, no limits, and no cancellation.
+     */
+    public static final FrizzleOptions DEFAULT = builder().build();
+
+    private final int optimizationLevel;
+    private final int languageVersion;
+    private final int cacheLength;
+    private final int wrapperCacheSize;
+    private final int instructionThreshold;
+    private final InstructionObserver instructionObserver;
+    private final long timeLimit;
+    private final long instructionLimit;
+    private final boolean cancellable;
+    private final ContextFactory contextFactory;
+
+    private FrizzleOptions(Builder builder) {
+        this.optimizationLevel = builder.optimizationLevel;
+        this.languageVersion = builder.languageVersion;
+        this.cacheLength = builder.cacheLength;
+        this.wrapperCacheSize = builder.wrapperCacheSize;
+        this.instructionThreshold = builder.instructionThreshold;
+        this.instructionObserver = builder.instructionObserver;
+        this.timeLimit = builder.timeLimit;
+        this.instructionLimit = builder.instructionLimit;
+        this.cancellable = builder.cancellable;
+        this.contextFactory = new FrizzleContextFactory(this);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    public int getLanguageVersion() {
+        return languageVersion;
+    }
+
+    public int getCacheLength() {
+        return cacheLength;
+    }
+
+    public int getWrapperCacheSize() {
+        return wrapperCacheSize;
+    }
+
+    /**
+     * Returns the instruction observer's threshold, or zero if there is
+     * no observer.
+     */
+    public int getInstructionThreshold() {
+        return instructionThreshold;
+    }
+
+    /**
+     * Returns the instruction observer, or null if there is none.
+     */
+    public InstructionObserver getInstructionObserver() {
+        return instructionObserver;
+    }
+
+    /**
+     * Returns the time limit of each call in the given unit, or zero if
+     * there is none.
+     */
+    public long getTimeLimit(TimeUnit unit) {
+        return unit.convert(timeLimit, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the instruction limit of each call, or zero if there is
+     * none.
+     */
+    public long getInstructionLimit() {
+        return instructionLimit;
+    }
+
+    public boolean isCancellable() {
+        return cancellable;
+    }
+
+    /**
+     * Returns whether calls have limits, or can be cancelled.
+     */
+    boolean isGuarded() {
+        return timeLimit > 0 || instructionLimit > 0 || cancellable;
+    }
+
+    /**
+     * Returns whether scripts must count the instructions they run,
+     * for the instruction observer or the limits.
+     */
+    boolean isObserved() {
+        return instructionObserver != null || isGuarded();
+    }
+
+    /**
+     * Returns the number of instructions after which Rhino is to report
+     * its count: the observer's threshold, or if there are limits, at
+     * most {@link #CHECK_INSTRUCTIONS}.
+     */
+    int getObserverThreshold() {
+        if (!isGuarded()) {
+            return instructionThreshold;
+        }
+        return instructionObserver == null ? CHECK_INSTRUCTIONS
+                : Math.min(instructionThreshold, CHECK_INSTRUCTIONS);
+    }
+
+    /**
+     * Returns the factory for the contexts that scripts run in with
+     * these options.
+     */
+    ContextFactory getContextFactory() {
+        return contextFactory;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("optimizationLevel", optimizationLevel)
+                .add("languageVersion", languageVersion)
+                .add("cacheLength", cacheLength)
+                .add("wrapperCacheSize", wrapperCacheSize)
+                .add("instructionThreshold", instructionThreshold)
+                .add("timeLimitNanos", timeLimit)
+                .add("instructionLimit", instructionLimit)
+                .add("cancellable", cancellable)
+                .toString();
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.on_site.frizzle.selector.ElementIndex;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * {@link SelectorEngine} that runs Sizzle under Nashorn, found through
+ * {@code javax.script}. The DOM is wrapped by {@code nashorn-adapter.js}
+ * rather than by a Rhino wrap factory; see {@link NashornHost}.
+ *
+ * <p>The scripts are compiled once, by one script engine shared by all
+ * instances; each instance runs them in a global of its own.
+ */
+class NashornEngine implements SelectorEngine {
+    /**
+     * The Nashorn script engine, or null if there is none.
+     */
+    private static final ScriptEngine SCRIPT_ENGINE
+            = new ScriptEngineManager().getEngineByName("nashorn");
+
+    private static CompiledScript adapterScript;
+    private static CompiledScript sizzleScript;
+    private static CompiledScript apiScript;
+
+    private final NashornHost host;
+    private final NashornSizzle api;
+    private final QueryGuard guard;
+    private final CallCounter sizzle = new CallCounter("Sizzle");
+    private final CallCounter select = new CallCounter("Sizzle.select");
+    private final CallCounter compile = new CallCounter("Sizzle.compile");
+    private final CallCounter setDocument = new CallCounter("Sizzle.setDocument");
+    private final CallCounter matchesSelector = new CallCounter("Sizzle.matchesSelector");
+    private final CallCounter createPseudo = new CallCounter("Sizzle.selectors.createPseudo");
+    private final Map<CompiledSelector, Object> compiled = new WeakHashMap<>();
+    private final int cacheLength;
+    private final ParsedSelectors parsed;
+    private boolean inSession;
+
+    static boolean isAvailable() {
+        return SCRIPT_ENGINE != null;
+    }
+
+    private static CompiledScript compileResource(String name) throws ScriptException {
+        URL url = Frizzle.class.getResource(name);
+        try (Reader in = new InputStreamReader(url.openStream(), Charsets.UTF_8)) {
+            SCRIPT_ENGINE.put(ScriptEngine.FILENAME, url.toString());
+            return ((Compilable) SCRIPT_ENGINE).compile(in);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Compiles the adapter, Sizzle, and the call that returns the API
+     * object, on first use. Called with the script engine locked.
+     */
+    private static void compileScripts() throws ScriptException {
+        if (apiScript == null) {
+            adapterScript = compileResource("nashorn-adapter.js");
+            sizzleScript = compileResource("sizzle.js");
+            apiScript = ((Compilable) SCRIPT_ENGINE).compile("frizzleApi()");
+        }
+    }
+
+    NashornEngine(Document doc, FrizzleOptions options) {
+        Preconditions.checkState(SCRIPT_ENGINE != null, "No Nashorn script engine is available");
+        this.guard = new QueryGuard(options);
+        this.host = new NashornHost(doc, options.isGuarded() ? guard : null);
+        Bindings global = SCRIPT_ENGINE.createBindings();
+        global.put("frizzleHost", host);
+        ScriptContext context = new SimpleScriptContext();
+        context.setBindings(global, ScriptContext.ENGINE_SCOPE);
+        synchronized (SCRIPT_ENGINE) {
+            try {
+                compileScripts();
+                adapterScript.eval(context);
+                sizzleScript.eval(context);
+                this.api = ((Invocable) SCRIPT_ENGINE).getInterface(apiScript.eval(context),
+                        NashornSizzle.class);
+            } catch (ScriptException e) {
+                throw new AssertionError(e);
+            }
+        }
+        this.cacheLength = options.getCacheLength();
+        this.parsed = new ParsedSelectors(cacheLength);
+        api.setCacheLength(cacheLength);
+    }
+
+    @Override
+    public void setDocument(Document doc) {
+        long start = System.nanoTime();
+        guard.enter();
+        try {
+            host.setDocument(doc);
+            api.setDocument(doc);
+        } finally {
+            guard.close();
+            setDocument.record(start);
+        }
+    }
+
+    @Override
+    public void setIndex(ElementIndex index) {
+        host.setIndex(index);
+    }
+
+    @Override
+    public void setOrdered(boolean ordered) {
+        host.setOrdered(ordered);
+    }
+
+    @Override
+    public CacheStats getWrapperCacheStats() {
+        return host.getCacheStats();
+    }
+
+    /**
+     * Calls need no setup of their own under Nashorn, so a session only
+     * checks that it is opened and closed in turn.
+     */
+    @Override
+    public void openSession() {
+        Preconditions.checkState(!inSession, "A session is already open");
+        inSession = true;
+    }
+
+    @Override
+    public void closeSession() {
+        inSession = false;
+    }
+
+    @Override
+    public void cancel() {
+        guard.cancel();
+    }
+
+    @Override
+    public Map<String, CallStats> getCallStats() {
+        ImmutableMap.Builder<String, CallStats> builder = ImmutableMap.builder();
+        for (CallCounter counter : ImmutableList.of(sizzle, select, compile, setDocument,
+                matchesSelector, createPseudo)) {
+            builder.put(counter.getName(), counter.getStats());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void createPseudo(String name, Pseudo pseudo) {
+        long start = System.nanoTime();
+        try {
+            api.createPseudo(name, pseudo);
+        } finally {
+            createPseudo.record(start);
+        }
+    }
+
+    /**
+     * Returns the Sizzle matcher function for the given selector,
+     * compiling it on first use; see {@code SizzleEngine}.
+     */
+    private Object getCompiled(CompiledSelector selector) {
+        Object fn = compiled.get(selector);
+        if (fn == null) {
+            api.setCacheLength(cacheLength + compiled.size() + 1);
+            long start = System.nanoTime();
+            try {
+                fn = api.compile(SizzleUtil.trim(selector.getSelector()));
+            } finally {
+                compile.record(start);
+            }
+            compiled.put(selector, fn);
+        }
+        return fn;
+    }
+
+    private Element[] run(CompiledSelector selector, Node context, Node[] seed) {
+        guard.enter();
+        try {
+            Object fn = getCompiled(selector);
+            long start = System.nanoTime();
+            try {
+                return api.select(fn, context, seed);
+            } finally {
+                select.record(start);
+            }
+        } finally {
+            guard.close();
+        }
+    }
+
+    private Element[] run(String selector, Node context, Node[] seed) {
+        long start = System.nanoTime();
+        guard.enter();
+        try {
+            return api.sizzle(selector, context, seed);
+        } finally {
+            guard.close();
+            sizzle.record(start);
+        }
+    }
+
+    private Element[] matches(String selector, Node[] elements) {
+        long start = System.nanoTime();
+        guard.enter();
+        try {
+            return api.matches(selector, elements);
+        } finally {
+            guard.close();
+            sizzle.record(start);
+        }
+    }
+
+    @Override
+    public Element[] select(String selector, Node context) {
+        return run(selector, context, SizzleUtil.findSeed(host.getIndex(), parsed, selector,
+                context));
+    }
+
+    @Override
+    public Element[] select(CompiledSelector selector, Node context) {
+        return run(selector, context,
+                SizzleUtil.findSeed(host.getIndex(), selector.getSelectorList(), context));
+    }
+
+    /**
+     * Sizzle always finds every match before returning, so this is just
+     * a view of {@code select}.
+     */
+    @Override
+    public Iterable<Element> iterate(String selector, Node context) {
+        return Collections.unmodifiableList(Arrays.asList(select(selector, context)));
+    }
+
+    @Override
+    public Iterable<Element> iterate(CompiledSelector selector, Node context) {
+        return Collections.unmodifiableList(Arrays.asList(select(selector, context)));
+    }
+
+    @Override
+    public boolean matchesSelector(Element element, String selector) {
+        long start = System.nanoTime();
+        guard.enter();
+        try {
+            return api.matchesSelector(element, selector);
+        } finally {
+            guard.close();
+            matchesSelector.record(start);
+        }
+    }
+
+    @Override
+    public boolean matchesSelector(Element element, CompiledSelector selector) {
+        return run(selector, null, new Node[] {element}).length != 0;
+    }
+
+    @Override
+    public Element[] matches(String selector, NodeList elements) {
+        return matches(selector, host.toArray(elements));
+    }
+
+    @Override
+    public Element[] matches(String selector, Element[] elements) {
+        return matches(selector, (Node[]) elements);
+    }
+
+    @Override
+    public Element[] matches(CompiledSelector selector, NodeList elements) {
+        return run(selector, null, host.toArray(elements));
+    }
+
+    @Override
+    public Element[] matches(CompiledSelector selector, Element[] elements) {
+        return run(selector, null, elements);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.on_site.frizzle.selector.DocumentOrder;
+import com.on_site.frizzle.selector.ElementIndex;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The Java side of the Nashorn engine's DOM wrappers, which its script
+ * calls as {@code frizzleHost}. It keeps the wrapper of each node, so
+ * that a node always has the same one (Sizzle compares nodes with
+ * {@code ===}, and keeps its caches on them), and does the work that is
+ * cheaper in Java than in script.
+ *
+ * <p>This is not for use outside Frizzle; it is only public because
+ * Nashorn only lets scripts call public classes.
+ */
+public final class NashornHost {
+    /**
+     * The wrapper of each node. A wrapper refers to its node, so the
+     * entries stay until the engine moves to another document. This is
+     * a plain identity map: with a Guava cache, as Rhino's wrappers use,
+     * selections took over three times as long. Hits and misses are
+     * counted for {@link #getCacheStats}.
+     */
+    private final Map<Node, Object> wrappers = new IdentityHashMap<>();
+    private long hitCount;
+    private long missCount;
+    private final QueryGuard guard;
+    private Document doc;
+    private ElementIndex index;
+    private boolean ordered = true;
+
+    /**
+     * The number of wrapper lookups between checks of the guard, less
+     * one (as a mask).
+     */
+    private static final int CHECK_MASK = 1023;
+
+    /**
+     * @param guard the guard to check every so many wrapper lookups,
+     * which is the closest thing Nashorn has to an instruction count, or
+     * null for none
+     */
+    NashornHost(Document doc, QueryGuard guard) {
+        this.doc = doc;
+        this.guard = guard;
+    }
+
+    public Document getDocument() {
+        return doc;
+    }
+
+    /**
+     * Returns the script wrapper of the node, or null if it has none
+     * yet. This is also where a call is stopped if it is over its
+     * budget.
+     */
+    public Object getWrapper(Node node) {
+        Object wrapper = wrappers.get(node);
+        if (wrapper != null) {
+            ++hitCount;
+        } else {
+            ++missCount;
+        }
+        if (guard != null && ((hitCount + missCount) & CHECK_MASK) == 0) {
+            guard.check();
+        }
+        return wrapper;
+    }
+
+    public void putWrapper(Node node, Object wrapper) {
+        wrappers.put(node, wrapper);
+    }
+
+    /**
+     * Copies a node list into an array. The lists this is given come
+     * from {@code getElementsByTagName}, which makes a new one for each
+     * call, with a position cache of its own, so several threads can
+     * read the same DOM this way; child lists, whose cache is shared by
+     * the whole document, go through {@link #getChildNodes} instead.
+     */
+    public Node[] toArray(NodeList list) {
+        Node[] nodes = new Node[list.getLength()];
+        for (int i = 0; i < nodes.length; ++i) {
+            nodes[i] = list.item(i);
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns the children of the node, found by walking its siblings
+     * rather than through its node list (see {@code NativeDOMNode}).
+     */
+    public Node[] getChildNodes(Node node) {
+        List<Node> children = new ArrayList<>();
+        for (Node child = node.getFirstChild(); child != null;
+                child = child.getNextSibling()) {
+            children.add(child);
+        }
+        return children.toArray(new Node[children.size()]);
+    }
+
+    public String getInnerHTML(Node node) {
+        return NativeDOMNode.getInnerHtml(node);
+    }
+
+    public void setInnerHTML(Node node, String value) {
+        NativeDOMNode.setInnerHtml(node, value);
+    }
+
+    /**
+     * Does the work of {@code Sizzle.uniqueSort}: returns the elements
+     * without duplicates, and in document order (by their ordinals, if
+     * there is an index) unless they are the top-level results of a
+     * call that does not need them ordered.
+     *
+     * @param top whether the elements are the top-level results
+     */
+    public Element[] uniqueSort(Element[] elems, boolean top) {
+        List<Element> result = ordered || !top
+                ? DocumentOrder.uniqueSort(Arrays.asList(elems),
+                        index == null ? null : index.getDocumentOrder())
+                : DocumentOrder.unique(Arrays.asList(elems));
+        return result.toArray(new Element[result.size()]);
+    }
+
+    /**
+     * Moves to another document, dropping the wrappers of the old one,
+     * and the index.
+     */
+    void setDocument(Document doc) {
+        this.doc = doc;
+        this.index = null;
+        wrappers.clear();
+    }
+
+    void setIndex(ElementIndex index) {
+        Preconditions.checkArgument(index == null || index.getDocument() == doc,
+                "Index is of another document");
+        this.index = index;
+    }
+
+    ElementIndex getIndex() {
+        return index;
+    }
+
+    void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    CacheStats getCacheStats() {
+        return new CacheStats(hitCount, missCount, 0, 0, 0, 0);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The calls the Nashorn engine makes into its script, which implements
+ * them on top of Sizzle, converting between DOM nodes and their
+ * wrappers. A null context means the whole document, and a null seed
+ * means none.
+ *
+ * <p>This is not for use outside Frizzle; it is only public because
+ * Nashorn can only implement public interfaces.
+ */
+public interface NashornSizzle {
+    /**
+     * Points Sizzle at the given document with {@code Sizzle.setDocument}.
+     */
+    void setDocument(Document doc);
+
+    void setCacheLength(int cacheLength);
+
+    void createPseudo(String name, Pseudo pseudo);
+
+    /**
+     * Returns Sizzle's matcher function for the selector.
+     */
+    Object compile(String selector);
+
+    /**
+     * Runs a matcher from {@link #compile} via {@code Sizzle.select}.
+     */
+    Element[] select(Object compiled, Node context, Node[] seed);
+
+    /**
+     * Runs a selector string via {@code Sizzle}.
+     */
+    Element[] sizzle(String selector, Node context, Node[] seed);
+
+    /**
+     * Returns those of the elements that match the selector. Unlike
+     * {@link #sizzle}, the results are always in document order.
+     */
+    Element[] matches(String selector, Node[] elements);
+
+    boolean matchesSelector(Element element, String selector);
+}
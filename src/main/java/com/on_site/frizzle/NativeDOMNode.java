@@ -23,10 +23,13 @@
 
 package com.on_site.frizzle;
 
+import java.util.AbstractList;
+
 import com.google.common.base.MoreObjects.ToStringHelper;
 import com.google.common.collect.ImmutableMap;
 import com.on_site.util.DOMUtil;
 import com.on_site.util.NodeListIterable;
+import org.mozilla.javascript.Context;
 import org.mozilla.javascript.NativeJavaObject;
 import org.mozilla.javascript.Scriptable;
 import org.w3c.dom.Document;
@@ -38,7 +41,10 @@ import org.w3c.dom.NodeList;
 /**
  * A specialisation of {@link NativeJavaObject} with special behaviour
  * for DOM nodes. In particular, the {@code id}, {@code className}, and
- * {@code innerHTML} properties are added.
+ * {@code innerHTML} properties are added. Also, the properties and
+ * methods that Sizzle uses most are looked up directly rather than via
+ * reflection (see {@link DOMMethod}), and other properties that scripts
+ * set on nodes are kept in an {@link ExpandoStore}.
  *
  * @author Chris K. Jester-Young
  */
@@ -48,30 +54,94 @@ public class NativeDOMNode extends NativeDOMCommon {
                               "className", "class");
 
     private final Node elem;
+    private ExpandoStore.Properties expandos;
+
+    /**
+     * The children of a node that is also its own {@code NodeList} (as
+     * Xerces nodes are). They are found by walking siblings rather than
+     * through {@code item}, since Xerces keeps the position that
+     * {@code item} works from in a cache shared by the whole document,
+     * which Sizzle instances on other threads would be moving too.
+     * Sizzle reads {@code childNodes[i]} with increasing {@code i} as it
+     * counts {@code :nth-child} positions, so the last position reached
+     * is kept, but only for the rest of the call (see
+     * {@link ExpandoStore#getRun}), since the children may change
+     * between calls.
+     */
+    private static final class ChildList extends AbstractList<Node> {
+        private final Scriptable scope;
+        private final Node node;
+        private ExpandoStore store;
+        private int run;
+        private Node cursor;
+        private int cursorIndex;
+
+        ChildList(Scriptable scope, Node node) {
+            this.scope = scope;
+            this.node = node;
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (Node child = node.getFirstChild(); child != null;
+                    child = child.getNextSibling()) {
+                ++size;
+            }
+            return size;
+        }
+
+        @Override
+        public Node get(int index) {
+            if (index < 0) {
+                return null;
+            }
+            if (store == null) {
+                store = ExpandoStore.forScope(scope);
+            }
+            int current = store.getRun();
+            if (cursor == null || run != current || index < cursorIndex) {
+                cursor = node.getFirstChild();
+                cursorIndex = 0;
+                run = current;
+            }
+            while (cursor != null && cursorIndex < index) {
+                cursor = cursor.getNextSibling();
+                ++cursorIndex;
+            }
+            return cursor;
+        }
+    }
 
     public NativeDOMNode(Scriptable scope, Node elem) {
         super(scope, elem, Node.class,
-                elem instanceof NodeList ? new NodeListIterable((NodeList) elem) : null);
+                elem instanceof NodeList ? new ChildList(scope, elem) : null);
         this.elem = elem;
     }
 
     @Override
     public boolean has(String name, Scriptable start) {
         return elem instanceof Element && PROPERTY_TO_ATTRIBUTE.containsKey(name)
-                || name.equals("innerHTML") || super.has(name, start);
+                || name.equals("innerHTML") || getFast(name) != NOT_FOUND
+                || super.has(name, start) || hasExpando(name);
     }
 
     @Override
     public Object get(String name, Scriptable start) {
+        Object value = getFast(name);
+        if (value != NOT_FOUND) {
+            return value;
+        }
         if (elem instanceof Element) {
             if (PROPERTY_TO_ATTRIBUTE.containsKey(name)) {
                 return getAttr(PROPERTY_TO_ATTRIBUTE.get(name));
             }
         }
         if (name.equals("innerHTML")) {
-            return getInnerHtml();
+            return getInnerHtml(elem);
         }
-        return super.get(name, start);
+        value = super.get(name, start);
+        return value != NOT_FOUND ? value : getExpando(name);
     }
 
     @Override
@@ -83,10 +153,44 @@ public class NativeDOMNode extends NativeDOMCommon {
             }
         }
         if (name.equals("innerHTML")) {
-            setInnerHtml(value.toString());
+            setInnerHtml(elem, value.toString());
             return;
         }
-        super.put(name, start, value);
+        if (super.has(name, start)) {
+            super.put(name, start, value);
+        } else {
+            getExpandos(true).put(name, value);
+        }
+    }
+
+    @Override
+    public void delete(String name) {
+        ExpandoStore.Properties props = getExpandos(false);
+        if (props != null) {
+            props.delete(name);
+        }
+    }
+
+    /**
+     * Returns the expando properties of the node, which hold any script
+     * properties that are not Java members (such as Sizzle's caches).
+     * They are shared by all wrappers of the node within this scope.
+     */
+    private ExpandoStore.Properties getExpandos(boolean create) {
+        if (expandos == null) {
+            expandos = ExpandoStore.forScope(parent).get(elem, create);
+        }
+        return expandos;
+    }
+
+    private boolean hasExpando(String name) {
+        ExpandoStore.Properties props = getExpandos(false);
+        return props != null && props.has(name);
+    }
+
+    private Object getExpando(String name) {
+        ExpandoStore.Properties props = getExpandos(false);
+        return props == null ? NOT_FOUND : props.get(name);
     }
 
     @Override
@@ -95,6 +199,56 @@ public class NativeDOMNode extends NativeDOMCommon {
                 .add("element", elem);
     }
 
+    /**
+     * Returns the value of one of the hot properties or methods, or
+     * {@code NOT_FOUND} for anything else (including methods that the
+     * node does not have), which is then left to reflection. Note that
+     * {@code compareDocumentPosition} is deliberately not handled here,
+     * since Sizzle inspects its source text to decide whether to use it.
+     */
+    private Object getFast(String name) {
+        switch (name) {
+        case "nodeType":
+            return (int) elem.getNodeType();
+        case "nodeName":
+            return elem.getNodeName();
+        case "nodeValue":
+            return elem.getNodeValue();
+        case "parentNode":
+            return wrap(elem.getParentNode());
+        case "firstChild":
+            return wrap(elem.getFirstChild());
+        case "lastChild":
+            return wrap(elem.getLastChild());
+        case "previousSibling":
+            return wrap(elem.getPreviousSibling());
+        case "nextSibling":
+            return wrap(elem.getNextSibling());
+        case "ownerDocument":
+            return wrap(elem.getOwnerDocument());
+        case "documentElement":
+            return elem instanceof Document
+                    ? wrap(((Document) elem).getDocumentElement()) : NOT_FOUND;
+        case "getAttribute":
+            return elem instanceof Element ? DOMMethod.GET_ATTRIBUTE : NOT_FOUND;
+        case "getAttributeNode":
+            return elem instanceof Element ? DOMMethod.GET_ATTRIBUTE_NODE : NOT_FOUND;
+        case "hasAttribute":
+            return elem instanceof Element ? DOMMethod.HAS_ATTRIBUTE : NOT_FOUND;
+        case "getElementsByTagName":
+            return elem instanceof Element || elem instanceof Document
+                    ? DOMMethod.GET_ELEMENTS_BY_TAG_NAME : NOT_FOUND;
+        case "getElementById":
+            return elem instanceof Document ? DOMMethod.GET_ELEMENT_BY_ID : NOT_FOUND;
+        default:
+            return NOT_FOUND;
+        }
+    }
+
+    private Object wrap(Node node) {
+        return Context.javaToJS(node, parent);
+    }
+
     private String getAttr(String name) {
         return ((Element) elem).getAttribute(name);
     }
@@ -103,7 +257,10 @@ public class NativeDOMNode extends NativeDOMCommon {
         ((Element) elem).setAttribute(name, value);
     }
 
-    private String getInnerHtml() {
+    /**
+     * Returns the markup of the node's children, for {@code innerHTML}.
+     */
+    static String getInnerHtml(Node elem) {
         Document doc = elem.getOwnerDocument();
         DocumentFragment frag = doc.createDocumentFragment();
         for (Node node : new NodeListIterable(elem.getChildNodes())) {
@@ -112,7 +269,11 @@ public class NativeDOMNode extends NativeDOMCommon {
         return DOMUtil.stringFromNode(frag);
     }
 
-    private void setInnerHtml(String value) {
+    /**
+     * Replaces the node's children with the given markup, for
+     * {@code innerHTML}.
+     */
+    static void setInnerHtml(Node elem, String value) {
         /*
          * This is all shades of broken, but that's because I can't find
          * any usable implementation of parseWithContext. :-(
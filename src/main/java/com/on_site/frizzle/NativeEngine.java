@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.on_site.frizzle.selector.ElementIndex;
+import com.on_site.frizzle.selector.SelectorEvaluator;
+import com.on_site.frizzle.selector.SelectorList;
+import com.on_site.util.NodeListIterable;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * {@link SelectorEngine} that evaluates selectors in Java, using
+ * {@link SelectorEvaluator}.
+ */
+class NativeEngine implements SelectorEngine {
+    private Document doc;
+    private ElementIndex index;
+    private final Map<String, Function<String, Predicate<Element>>> pseudos = Maps.newHashMap();
+    private final SelectorEvaluator evaluator = new SelectorEvaluator(pseudos);
+    private final QueryGuard guard;
+    private final boolean guarded;
+
+    /**
+     * Of the options, only the limits and cancellation apply, which the
+     * evaluator's checkpoint enforces.
+     */
+    NativeEngine(Document doc, FrizzleOptions options) {
+        this.doc = doc;
+        this.guard = new QueryGuard(options);
+        this.guarded = options.isGuarded();
+        if (guarded) {
+            evaluator.setCheckpoint(guard);
+        }
+    }
+
+    @Override
+    public void setDocument(Document doc) {
+        this.doc = doc;
+        this.index = null;
+        evaluator.setDocumentOrder(null);
+    }
+
+    @Override
+    public void setIndex(ElementIndex index) {
+        Preconditions.checkArgument(index == null || index.getDocument() == doc,
+                "Index is of another document");
+        this.index = index;
+        evaluator.setDocumentOrder(index == null ? null : index.getDocumentOrder());
+    }
+
+    @Override
+    public void setOrdered(boolean ordered) {
+        evaluator.setOrdered(ordered);
+    }
+
+    private List<Element> select(SelectorList selectors, Node context) {
+        Node root = context == null ? doc : context;
+        List<Element> candidates = index == null ? null : index.getCandidates(selectors, root);
+        return candidates == null ? evaluator.select(selectors, root)
+                : evaluator.select(selectors, root, candidates);
+    }
+
+    private Iterable<Element> iterate(SelectorList selectors, Node context) {
+        Node root = context == null ? doc : context;
+        return guarded(evaluator.iterate(selectors, root,
+                index == null ? null : index.getCandidates(selectors, root)));
+    }
+
+    /**
+     * Returns an iteration whose start, and each step, are guarded as
+     * calls of their own, since the matching is done as it goes.
+     */
+    private Iterable<Element> guarded(final Iterable<Element> elems) {
+        if (!guarded) {
+            return elems;
+        }
+        return new Iterable<Element>() {
+            @Override
+            public Iterator<Element> iterator() {
+                final Iterator<Element> iterator;
+                guard.enter();
+                try {
+                    iterator = elems.iterator();
+                } finally {
+                    guard.close();
+                }
+                return new AbstractIterator<Element>() {
+                    @Override
+                    protected Element computeNext() {
+                        guard.enter();
+                        try {
+                            return iterator.hasNext() ? iterator.next() : endOfData();
+                        } finally {
+                            guard.close();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns all-zero stats, since nodes are never wrapped.
+     */
+    @Override
+    public CacheStats getWrapperCacheStats() {
+        return new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Returns an empty map, since there is no script to call into.
+     */
+    @Override
+    public Map<String, CallStats> getCallStats() {
+        return ImmutableMap.of();
+    }
+
+    /**
+     * Does nothing, as calls need no setup.
+     */
+    @Override
+    public void openSession() {
+    }
+
+    @Override
+    public void closeSession() {
+    }
+
+    @Override
+    public void cancel() {
+        guard.cancel();
+    }
+
+    private static Element[] toArray(List<Element> elems) {
+        return elems.toArray(new Element[elems.size()]);
+    }
+
+    /**
+     * Adapts a pseudo to the function the evaluators in the selector
+     * package take, so that {@link Pseudo} itself need not implement it.
+     */
+    static Function<String, Predicate<Element>> asFunction(Pseudo pseudo) {
+        return new PseudoFunction(pseudo);
+    }
+
+    private static class PseudoFunction implements Function<String, Predicate<Element>> {
+        private final Pseudo pseudo;
+
+        private PseudoFunction(Pseudo pseudo) {
+            this.pseudo = pseudo;
+        }
+
+        @Override
+        public Predicate<Element> apply(String argument) {
+            return pseudo.apply(argument);
+        }
+    }
+
+    @Override
+    public void createPseudo(String name, Pseudo pseudo) {
+        pseudos.put(name, asFunction(pseudo));
+    }
+
+    @Override
+    public Element[] select(String selector, Node context) {
+        guard.enter();
+        try {
+            return toArray(select(SelectorList.parse(selector), context));
+        } finally {
+            guard.close();
+        }
+    }
+
+    @Override
+    public Element[] select(CompiledSelector selector, Node context) {
+        guard.enter();
+        try {
+            return toArray(select(selector.getSelectorList(), context));
+        } finally {
+            guard.close();
+        }
+    }
+
+    @Override
+    public Iterable<Element> iterate(String selector, Node context) {
+        return iterate(SelectorList.parse(selector), context);
+    }
+
+    @Override
+    public Iterable<Element> iterate(CompiledSelector selector, Node context) {
+        return iterate(selector.getSelectorList(), context);
+    }
+
+    @Override
+    public boolean matchesSelector(Element element, String selector) {
+        guard.enter();
+        try {
+            return evaluator.matches(element, SelectorList.parse(selector));
+        } finally {
+            guard.close();
+        }
+    }
+
+    @Override
+    public boolean matchesSelector(Element element, CompiledSelector selector) {
+        guard.enter();
+        try {
+            return evaluator.matches(element, selector.getSelectorList());
+        } finally {
+            guard.close();
+        }
+    }
+
+    @Override
+    public Element[] matches(String selector, NodeList elements) {
+        guard.enter();
+        try {
+            return toArray(evaluator.filter(SelectorList.parse(selector),
+                    new NodeListIterable(elements)));
+        } finally {
+            guard.close();
+        }
+    }
+
+    @Override
+    public Element[] matches(String selector, Element[] elements) {
+        guard.enter();
+        try {
+            return toArray(evaluator.filter(SelectorList.parse(selector),
+                    ImmutableList.copyOf(elements)));
+        } finally {
+            guard.close();
+        }
+    }
+
+    @Override
+    public Element[] matches(CompiledSelector selector, NodeList elements) {
+        guard.enter();
+        try {
+            return toArray(evaluator.filter(selector.getSelectorList(),
+                    new NodeListIterable(elements)));
+        } finally {
+            guard.close();
+        }
+    }
+
+    @Override
+    public Element[] matches(CompiledSelector selector, Element[] elements) {
+        guard.enter();
+        try {
+            return toArray(evaluator.filter(selector.getSelectorList(),
+                    ImmutableList.copyOf(elements)));
+        } finally {
+            guard.close();
+        }
+    }
+}
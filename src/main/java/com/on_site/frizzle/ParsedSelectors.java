@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.on_site.frizzle.selector.SelectorList;
+
+/**
+ * The parsed forms of the selector strings that an engine has looked
+ * up seeds for, so that with an index set, a selector is not parsed in
+ * Java on every call as well as tokenized by Sizzle. Like Sizzle's own
+ * caches, this holds the {@code cacheLength} most recent selectors;
+ * those that do not parse are remembered as such.
+ */
+final class ParsedSelectors {
+    private final Cache<String, Optional<SelectorList>> cache;
+
+    ParsedSelectors(int size) {
+        cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumSize(size)
+                .<String, Optional<SelectorList>>build();
+    }
+
+    /**
+     * Returns the parsed selector, or null if it does not parse (leaving
+     * Sizzle to report the error in its own way).
+     */
+    SelectorList get(String selector) {
+        Optional<SelectorList> parsed = cache.getIfPresent(selector);
+        if (parsed == null) {
+            try {
+                parsed = Optional.of(SelectorList.parse(selector));
+            } catch (IllegalArgumentException e) {
+                parsed = Optional.absent();
+            }
+            cache.put(selector, parsed);
+        }
+        return parsed.orNull();
+    }
+}
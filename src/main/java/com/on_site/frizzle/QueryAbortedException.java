@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+/**
+ * Thrown out of a Frizzle call that was stopped before it finished,
+ * because it ran past one of the limits set in its
+ * {@link FrizzleOptions}, or was cancelled with
+ * {@link Frizzle#cancel}. The instance can still be used afterwards.
+ */
+public class QueryAbortedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why a call was stopped.
+     */
+    public enum Reason {
+        /** {@link Frizzle#cancel} was called. */
+        CANCELLED,
+
+        /** The call ran past its time limit. */
+        TIME_LIMIT,
+
+        /** The call ran more script instructions than its limit. */
+        INSTRUCTION_LIMIT
+    }
+
+    private final Reason reason;
+
+    public QueryAbortedException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
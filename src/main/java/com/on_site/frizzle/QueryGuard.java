@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.on_site.frizzle.selector.SelectorEvaluator;
+
+/**
+ * Enforces the per-call limits of an engine's {@link FrizzleOptions},
+ * and cancellation. The engine enters the guard for the length of each
+ * call, which starts the call's budget afresh; the checkpoints in the
+ * engine's hot paths (Rhino's instruction observer, the native
+ * evaluator's {@link SelectorEvaluator.Checkpoint}, or the Nashorn
+ * engine's wrapper lookups) then call {@link #check}, which throws a
+ * {@link QueryAbortedException} once the call is over its budget or
+ * has been cancelled.
+ *
+ * <p>Each engine has a guard of its own, and is used on one thread at a
+ * time; only {@link #cancel} may be called from other threads. With
+ * options that set no limits and do not allow cancellation, the guard
+ * does nothing.
+ */
+final class QueryGuard implements SelectorEvaluator.Checkpoint {
+    /**
+     * The innermost guard entered on each thread, which is the one that
+     * Rhino's instruction counts go to.
+     */
+    private static final ThreadLocal<QueryGuard> CURRENT = new ThreadLocal<>();
+
+    private final boolean enabled;
+    private final boolean cancellable;
+    private final long timeLimit;
+    private final long instructionLimit;
+    private volatile boolean cancelled;
+    private int depth;
+    private QueryGuard outer;
+    private long start;
+    private long instructions;
+
+    QueryGuard(FrizzleOptions options) {
+        this.enabled = options.isGuarded();
+        this.cancellable = options.isCancellable();
+        this.timeLimit = options.getTimeLimit(TimeUnit.NANOSECONDS);
+        this.instructionLimit = options.getInstructionLimit();
+    }
+
+    /**
+     * Returns the guard of the call in progress on this thread, or null
+     * if there is none.
+     */
+    static QueryGuard current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts a call, unless one is already in progress (as when a
+     * custom pseudo calls back into the same instance), in which case
+     * the nested call shares its budget. Each call to this is matched
+     * by a call to {@link #close}, in a {@code finally} block.
+     */
+    void enter() {
+        if (enabled && depth++ == 0) {
+            cancelled = false;
+            instructions = 0;
+            start = System.nanoTime();
+            outer = CURRENT.get();
+            CURRENT.set(this);
+        }
+    }
+
+    /**
+     * Ends a call that {@link #enter} started.
+     */
+    void close() {
+        if (enabled && --depth == 0) {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+                outer = null;
+            }
+        }
+    }
+
+    /**
+     * Stops the call in progress, if any, at its next checkpoint.
+     *
+     * @throws IllegalStateException if the options do not allow
+     * cancellation
+     */
+    void cancel() {
+        Preconditions.checkState(cancellable,
+                "Calls are not cancellable; see FrizzleOptions.Builder.cancellable");
+        cancelled = true;
+    }
+
+    /**
+     * Throws if the call in progress has been cancelled or is past its
+     * time limit. Once it has thrown, it throws at every later check of
+     * the same call, so that a script that catches the exception still
+     * stops at its next checkpoint.
+     */
+    @Override
+    public void check() {
+        if (depth == 0) {
+            return;
+        }
+        if (cancelled) {
+            throw new QueryAbortedException(QueryAbortedException.Reason.CANCELLED,
+                    "Call was cancelled");
+        }
+        if (timeLimit > 0 && System.nanoTime() - start > timeLimit) {
+            throw new QueryAbortedException(QueryAbortedException.Reason.TIME_LIMIT,
+                    "Call ran past its time limit of "
+                    + TimeUnit.NANOSECONDS.toMillis(timeLimit) + " ms");
+        }
+    }
+
+    /**
+     * Adds to the script instructions run by the call in progress, then
+     * checks it as {@link #check} does.
+     */
+    void countInstructions(int count) {
+        if (depth == 0) {
+            return;
+        }
+        instructions += count;
+        if (instructionLimit > 0 && instructions > instructionLimit) {
+            throw new QueryAbortedException(QueryAbortedException.Reason.INSTRUCTION_LIMIT,
+                    "Call ran more than its limit of " + instructionLimit + " instructions");
+        }
+        check();
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Splits a large XML feed made up of repeated records into one small
+ * document per record, and runs a fixed set of queries against each,
+ * in parallel. The feed is read as a stream (see {@link StreamMatcher}),
+ * so only the records in flight are ever in memory.
+ *
+ * <p>The calling thread parses the feed and hands each record over to
+ * a bounded queue, blocking when it is full; a fixed number of worker
+ * threads take records off the queue, each reusing a single
+ * {@link Frizzle} for all its records (rebound to each with
+ * {@link Frizzle#setDocument}), and pass the results on to a
+ * {@link Consumer}.
+ *
+ * <p>A record is an element matching the record selector (often just
+ * an element name) that is not inside another record. A pipeline is
+ * immutable, and may be run any number of times, from any thread.
+ */
+public final class RecordPipeline {
+    /**
+     * The results of the queries for a single record.
+     */
+    public static final class Record {
+        private final long index;
+        private final Document document;
+        private final ImmutableMap<CompiledSelector, Element[]> results;
+
+        private Record(long index, Document document,
+                ImmutableMap<CompiledSelector, Element[]> results) {
+            this.index = index;
+            this.document = document;
+            this.results = results;
+        }
+
+        /**
+         * Returns the zero-based position of this record in the feed.
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the record's own document, whose root element is the
+         * record.
+         */
+        public Document getDocument() {
+            return document;
+        }
+
+        public Element getElement() {
+            return document.getDocumentElement();
+        }
+
+        /**
+         * Returns the elements the given query selected.
+         *
+         * @throws IllegalArgumentException if the query is not one of
+         * the pipeline's
+         */
+        public Element[] getResults(CompiledSelector query) {
+            Element[] elems = results.get(query);
+            Preconditions.checkArgument(elems != null, "Not a query of this pipeline: %s",
+                    query);
+            return elems;
+        }
+
+        /**
+         * Returns the elements the query with the given source text
+         * selected.
+         *
+         * @throws IllegalArgumentException if the query is not one of
+         * the pipeline's
+         */
+        public Element[] getResults(String query) {
+            for (Map.Entry<CompiledSelector, Element[]> entry : results.entrySet()) {
+                if (entry.getKey().getSelector().equals(query)) {
+                    return entry.getValue();
+                }
+            }
+            throw new IllegalArgumentException("Not a query of this pipeline: " + query);
+        }
+
+        /**
+         * Returns the results of all the queries, in the order they
+         * were added to the pipeline.
+         */
+        public ImmutableMap<CompiledSelector, Element[]> getResults() {
+            return results;
+        }
+    }
+
+    /**
+     * Receives the records. It is called from the worker threads, so
+     * it must be thread-safe; records arrive roughly, but not exactly,
+     * in feed order (see {@link Record#getIndex}).
+     */
+    public interface Consumer {
+        void accept(Record record);
+    }
+
+    /**
+     * Sets up a {@link RecordPipeline}. By default, there is one worker
+     * per available processor, the queue holds four records per worker,
+     * and {@link Engine#getDefault} is used, with
+     * {@link FrizzleOptions#DEFAULT}.
+     */
+    public static final class Builder {
+        private final CompiledSelector record;
+        private final ImmutableList.Builder<CompiledSelector> queries = ImmutableList.builder();
+        private final Map<String, Pseudo> pseudos = Maps.newLinkedHashMap();
+        private Engine engine = Engine.getDefault();
+        private FrizzleOptions options = FrizzleOptions.DEFAULT;
+        private int workers = Runtime.getRuntime().availableProcessors();
+        private int queueCapacity = -1;
+
+        private Builder(CompiledSelector record) {
+            this.record = Preconditions.checkNotNull(record);
+        }
+
+        public Builder query(String... selectors) {
+            for (String selector : selectors) {
+                queries.add(Frizzle.compile(selector));
+            }
+            return this;
+        }
+
+        public Builder query(CompiledSelector... selectors) {
+            queries.add(selectors);
+            return this;
+        }
+
+        public Builder pseudo(String name, Pseudo pseudo) {
+            pseudos.put(Preconditions.checkNotNull(name), Preconditions.checkNotNull(pseudo));
+            return this;
+        }
+
+        public Builder engine(Engine engine) {
+            this.engine = Preconditions.checkNotNull(engine);
+            return this;
+        }
+
+        public Builder options(FrizzleOptions options) {
+            this.options = Preconditions.checkNotNull(options);
+            return this;
+        }
+
+        public Builder workers(int workers) {
+            Preconditions.checkArgument(workers > 0, "Worker count must be positive: %s",
+                    workers);
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * Sets the number of parsed records that may wait for a worker
+         * before parsing pauses.
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            Preconditions.checkArgument(queueCapacity > 0,
+                    "Queue capacity must be positive: %s", queueCapacity);
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public RecordPipeline build() {
+            return new RecordPipeline(this);
+        }
+    }
+
+    /**
+     * Tells workers to stop.
+     */
+    private static final Record END = new Record(-1, null, null);
+
+    private final StreamMatcher matcher;
+    private final ImmutableList<CompiledSelector> queries;
+    private final ImmutableMap<String, Pseudo> pseudos;
+    private final Engine engine;
+    private final FrizzleOptions options;
+    private final int workers;
+    private final int queueCapacity;
+
+    private RecordPipeline(Builder builder) {
+        this.matcher = new StreamMatcher(builder.record, true);
+        this.queries = builder.queries.build();
+        this.pseudos = ImmutableMap.copyOf(builder.pseudos);
+        this.engine = builder.engine;
+        this.options = builder.options;
+        this.workers = builder.workers;
+        this.queueCapacity = builder.queueCapacity > 0 ? builder.queueCapacity
+                : 4 * builder.workers;
+    }
+
+    /**
+     * @param record the selector for records, which must be streamable
+     * (see {@link StreamMatcher#isStreamable})
+     */
+    public static Builder builder(String record) {
+        return new Builder(Frizzle.compile(record));
+    }
+
+    public static Builder builder(CompiledSelector record) {
+        return new Builder(record);
+    }
+
+    public ImmutableList<CompiledSelector> getQueries() {
+        return queries;
+    }
+
+    /**
+     * Parses the feed on the calling thread, returning once every
+     * record has been passed to the consumer. If a worker or the
+     * consumer throws, parsing stops and the exception is rethrown.
+     */
+    public void run(InputStream xml, Consumer consumer) throws XMLStreamException,
+            InterruptedException {
+        Run run = new Run(consumer);
+        try {
+            matcher.match(xml, run);
+        } catch (Abort e) {
+            /* A worker failed; finish() rethrows its exception. */
+        } finally {
+            run.finish();
+        }
+    }
+
+    public void run(Reader xml, Consumer consumer) throws XMLStreamException,
+            InterruptedException {
+        Run run = new Run(consumer);
+        try {
+            matcher.match(xml, run);
+        } catch (Abort e) {
+            /* A worker failed; finish() rethrows its exception. */
+        } finally {
+            run.finish();
+        }
+    }
+
+    /**
+     * Breaks out of parsing when a worker has failed.
+     */
+    private static final class Abort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A single run of the pipeline. The stream handler side runs on the
+     * parsing thread; {@link Worker} runs on each worker thread.
+     */
+    private final class Run implements StreamMatcher.Handler {
+        private final Consumer consumer;
+        private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final List<Thread> threads;
+        private final DocumentBuilder builder;
+        private Document last;
+        private long count;
+
+        Run(Consumer consumer) {
+            this.consumer = consumer;
+            try {
+                this.builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new AssertionError(e);
+            }
+            ImmutableList.Builder<Thread> threads = ImmutableList.builder();
+            for (int i = 0; i < workers; ++i) {
+                Thread thread = new Thread(new Worker(), "RecordPipeline-worker-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            this.threads = threads.build();
+        }
+
+        /**
+         * Moves the record into a document of its own, and queues it.
+         * Records nested in the previous one came along with it, and
+         * are skipped.
+         */
+        @Override
+        public void match(Element element) {
+            if (element.getOwnerDocument() == last) {
+                return;
+            }
+            Document doc = builder.newDocument();
+            doc.appendChild(doc.adoptNode(element));
+            last = doc;
+            Record record = new Record(count++, doc, null);
+            try {
+                while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                    checkFailure();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+            }
+            checkFailure();
+        }
+
+        private void checkFailure() {
+            if (failure.get() != null) {
+                throw new Abort();
+            }
+        }
+
+        void finish() throws XMLStreamException, InterruptedException {
+            for (int i = 0; i < threads.size() && failure.get() == null; ) {
+                if (queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                    ++i;
+                }
+            }
+            if (failure.get() != null) {
+                for (Thread thread : threads) {
+                    thread.interrupt();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Throwable e = failure.get();
+            if (e != null) {
+                Throwables.propagateIfInstanceOf(e, InterruptedException.class);
+                Throwables.propagateIfInstanceOf(e, XMLStreamException.class);
+                throw Throwables.propagate(e);
+            }
+        }
+
+        /**
+         * Runs the queries of one record at a time. Each record is a
+         * document of its own, which the worker's {@code Frizzle} is
+         * rebound to. Moving records into one host document instead
+         * would skip Sizzle's per-document setup, but Sizzle only
+         * looks at the root element (for {@code :root}, and for whether
+         * the document is HTML) as part of that setup.
+         */
+        private final class Worker implements Runnable {
+            private Frizzle frizzle;
+
+            @Override
+            public void run() {
+                try {
+                    Record record;
+                    while ((record = queue.take()) != END) {
+                        consumer.accept(query(record));
+                    }
+                } catch (InterruptedException e) {
+                    /* Another thread failed, and we are being stopped. */
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+
+            private Record query(Record record) {
+                Document doc = record.getDocument();
+                if (frizzle == null) {
+                    frizzle = new Frizzle(doc, engine, options);
+                    for (Map.Entry<String, Pseudo> entry : pseudos.entrySet()) {
+                        frizzle.createPseudo(entry.getKey(), entry.getValue());
+                    }
+                } else {
+                    frizzle.setDocument(doc);
+                }
+                ImmutableMap.Builder<CompiledSelector, Element[]> results
+                        = ImmutableMap.builder();
+                for (CompiledSelector query : queries) {
+                    results.put(query, frizzle.select(query));
+                }
+                return new Record(record.getIndex(), doc, results.build());
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.on_site.frizzle.selector.RuleEvaluator;
+import com.on_site.frizzle.selector.SelectorList;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A fixed set of selectors (rules) to classify the elements of
+ * documents with, the way browser style engines match style sheets:
+ * rather than running each selector over the whole document, the rules
+ * are indexed by the id, class, attribute, or tag name their rightmost
+ * part requires, and the document is walked once, checking each element
+ * against only the rules that could match it. With hundreds of rules,
+ * this is much cheaper than selecting each one in turn.
+ *
+ * <p>Matching follows the pure-Java engine's semantics, whichever
+ * engine the selectors would otherwise be used with. Rules cannot start
+ * with a combinator.
+ *
+ * <p>Instances are immutable, and may be shared between threads and
+ * used on any number of documents at once.
+ *
+ * @see RuleEvaluator
+ */
+public final class RuleSet {
+    /**
+     * Sets up a {@link RuleSet}. Rules are numbered from zero, in the
+     * order they are added.
+     */
+    public static final class Builder {
+        private final ImmutableList.Builder<CompiledSelector> rules = ImmutableList.builder();
+        private final Map<String, Pseudo> pseudos = Maps.newLinkedHashMap();
+
+        private Builder() {
+        }
+
+        public Builder add(String... selectors) {
+            for (String selector : selectors) {
+                rules.add(Frizzle.compile(selector));
+            }
+            return this;
+        }
+
+        public Builder add(CompiledSelector... selectors) {
+            for (CompiledSelector selector : selectors) {
+                rules.add(Preconditions.checkNotNull(selector));
+            }
+            return this;
+        }
+
+        public Builder pseudo(String name, Pseudo pseudo) {
+            pseudos.put(Preconditions.checkNotNull(name), Preconditions.checkNotNull(pseudo));
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if some rule starts with a
+         * combinator
+         */
+        public RuleSet build() {
+            return new RuleSet(this);
+        }
+    }
+
+    /**
+     * Receives each element that matches any rule, in document order.
+     */
+    public interface Handler {
+        /**
+         * @param rules the numbers of the matching rules, in ascending
+         * order
+         */
+        void match(Element element, int[] rules);
+    }
+
+    private final ImmutableList<CompiledSelector> rules;
+    private final RuleEvaluator evaluator;
+
+    private RuleSet(Builder builder) {
+        this.rules = builder.rules.build();
+        ImmutableList.Builder<SelectorList> lists = ImmutableList.builder();
+        for (CompiledSelector rule : rules) {
+            lists.add(rule.getSelectorList());
+        }
+        ImmutableMap.Builder<String, Function<String, Predicate<Element>>> pseudos =
+                ImmutableMap.builder();
+        for (Map.Entry<String, Pseudo> entry : builder.pseudos.entrySet()) {
+            pseudos.put(entry.getKey(), NativeEngine.asFunction(entry.getValue()));
+        }
+        this.evaluator = new RuleEvaluator(lists.build(), pseudos.build());
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the number of rules.
+     */
+    public int size() {
+        return rules.size();
+    }
+
+    public CompiledSelector getRule(int rule) {
+        return rules.get(rule);
+    }
+
+    public List<CompiledSelector> getRules() {
+        return rules;
+    }
+
+    public void match(Document doc, Handler handler) {
+        match((Node) doc, handler);
+    }
+
+    /**
+     * Walks the elements within {@code context} once, handing each one
+     * that matches any rule to {@code handler}.
+     */
+    public void match(Element context, Handler handler) {
+        match((Node) context, handler);
+    }
+
+    private void match(Node context, final Handler handler) {
+        evaluator.evaluate(context, new RuleEvaluator.Handler() {
+            @Override
+            public void match(Element element, int[] rules) {
+                handler.match(element, rules);
+            }
+        });
+    }
+
+    public Element[][] select(Document doc) {
+        return select((Node) doc);
+    }
+
+    /**
+     * Returns the elements within {@code context} that match each rule,
+     * in document order, indexed by rule number; the same as selecting
+     * each rule in turn, but in a single walk.
+     */
+    public Element[][] select(Element context) {
+        return select((Node) context);
+    }
+
+    private Element[][] select(Node context) {
+        List<List<Element>> matches = evaluator.selectAll(context);
+        Element[][] result = new Element[matches.size()][];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = matches.get(i).toArray(new Element[0]);
+        }
+        return result;
+    }
+}
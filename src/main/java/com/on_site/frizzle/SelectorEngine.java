@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.Map;
+
+import com.google.common.cache.CacheStats;
+import com.on_site.frizzle.selector.ElementIndex;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The operations {@link Frizzle} delegates to its selector engine. Each
+ * engine instance is bound to one document at a time.
+ *
+ * @see Engine
+ */
+interface SelectorEngine {
+    /**
+     * Rebinds this engine to another document, keeping any custom
+     * pseudos and compiled selectors.
+     */
+    void setDocument(Document doc);
+
+    /**
+     * Sets the index to narrow down the candidates for {@code select}
+     * and {@code iterate} with, or null for none. Rebinding to another
+     * document drops the index.
+     *
+     * @throws IllegalArgumentException if the index is of a different
+     * document
+     */
+    void setIndex(ElementIndex index);
+
+    /**
+     * Sets whether {@code select} and {@code iterate} must return
+     * elements in document order. If not, the engine may skip sorting
+     * its results, which are still free of duplicates.
+     */
+    void setOrdered(boolean ordered);
+
+    /**
+     * Returns the hit and miss counts of the cache of script wrappers
+     * for DOM nodes.
+     */
+    CacheStats getWrapperCacheStats();
+
+    /**
+     * Starts a session, during which calls on the current thread share
+     * whatever per-call setup the engine needs.
+     *
+     * @throws IllegalStateException if a session is already open
+     */
+    void openSession();
+
+    void closeSession();
+
+    /**
+     * Stops the call in progress, if any; may be called from any
+     * thread.
+     *
+     * @throws IllegalStateException if the engine's options do not
+     * allow cancellation
+     * @see QueryGuard#cancel
+     */
+    void cancel();
+
+    /**
+     * Returns call counts and timings for the engine's entry points,
+     * keyed by name.
+     */
+    Map<String, CallStats> getCallStats();
+
+    void createPseudo(String name, Pseudo pseudo);
+
+    /**
+     * @param context the document or element to search within, or null
+     * to search the whole document
+     */
+    Element[] select(String selector, Node context);
+
+    Element[] select(CompiledSelector selector, Node context);
+
+    /**
+     * Returns the same elements as {@code select}, without first
+     * copying them into an array. Engines that can find matches one at
+     * a time do so as the result is iterated, so callers that stop
+     * early skip the rest of the search.
+     */
+    Iterable<Element> iterate(String selector, Node context);
+
+    Iterable<Element> iterate(CompiledSelector selector, Node context);
+
+    boolean matchesSelector(Element element, String selector);
+
+    boolean matchesSelector(Element element, CompiledSelector selector);
+
+    Element[] matches(String selector, NodeList elements);
+
+    Element[] matches(String selector, Element[] elements);
+
+    Element[] matches(CompiledSelector selector, NodeList elements);
+
+    Element[] matches(CompiledSelector selector, Element[] elements);
+}
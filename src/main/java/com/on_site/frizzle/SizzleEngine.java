@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) 2013, 2014, 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.on_site.frizzle.selector.DocumentOrder;
+import com.on_site.frizzle.selector.ElementIndex;
+import com.on_site.frizzle.selector.SelectorList;
+import com.on_site.util.ContextCloseable;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Wrapper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * {@link SelectorEngine} that runs Sizzle under Rhino.
+ */
+class SizzleEngine implements SelectorEngine {
+    private final ContextFactory contextFactory;
+    private final DOMWrapFactory wrapFactory;
+    private final QueryGuard guard;
+    private final Scriptable toplevel;
+    private final ExpandoStore expandos;
+    private final SizzleFunction sizzle;
+    private final SizzleFunction select;
+    private final SizzleFunction compile;
+    private final SizzleFunction setDocument;
+    private final SizzleFunction matchesSelector;
+    private final SizzleFunction createPseudo;
+    private final Scriptable pseudos;
+    private final Scriptable selectors;
+    private final int cacheLength;
+    private final ParsedSelectors parsed;
+    private Object document;
+    private Document doc;
+    private ElementIndex index;
+    private boolean ordered = true;
+    private Scriptable topResults;
+    private Call session;
+    private final Map<CompiledSelector, Function> compiled = new WeakHashMap<>();
+
+    /**
+     * The class that the build compiles {@code sizzle.js} into, with
+     * Rhino's {@code jsc}.
+     */
+    private static final String PRECOMPILED_SIZZLE = "com.on_site.frizzle.SizzleScript";
+
+    /**
+     * Sizzle, compiled for each combination of optimization level,
+     * language version, and whether instructions are counted.
+     */
+    private static final ConcurrentMap<List<Object>, Script> SCRIPTS
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Returns Sizzle as a script, compiled as the given options say. For
+     * the default options, this loads the class it was compiled to at
+     * build time if there is one, which avoids parsing and compiling it
+     * on first use. Otherwise (as when running from sources that have
+     * not been through the build, or with other options), {@code
+     * sizzle.js} is compiled now.
+     */
+    private static Script getSizzleScript(FrizzleOptions options) {
+        boolean observed = options.isObserved();
+        List<Object> key = ImmutableList.<Object>of(options.getOptimizationLevel(),
+                options.getLanguageVersion(), observed);
+        Script script = SCRIPTS.get(key);
+        if (script == null) {
+            if (options.getOptimizationLevel() == 0
+                    && options.getLanguageVersion() == Context.VERSION_DEFAULT && !observed) {
+                script = loadPrecompiledSizzle();
+            }
+            if (script == null) {
+                script = compileSizzle(options);
+            }
+            Script existing = SCRIPTS.putIfAbsent(key, script);
+            if (existing != null) {
+                script = existing;
+            }
+        }
+        return script;
+    }
+
+    /**
+     * Compiles {@code sizzle.js} as the given options say. The thread
+     * may already be in a context that was not made for these options,
+     * so they are set on the context for the duration.
+     */
+    private static Script compileSizzle(FrizzleOptions options) {
+        URL sizzlejs = Frizzle.class.getResource("sizzle.js");
+        try (Reader in = new InputStreamReader(sizzlejs.openStream(), Charsets.UTF_8);
+                ContextCloseable cc = new ContextCloseable(options.getContextFactory())) {
+            Context cx = cc.getContext();
+            int savedLevel = cx.getOptimizationLevel();
+            int savedVersion = cx.getLanguageVersion();
+            boolean savedObserverCount = cx.generateObserverCount;
+            cx.setOptimizationLevel(options.getOptimizationLevel());
+            cx.setLanguageVersion(options.getLanguageVersion());
+            cx.setGenerateObserverCount(options.isObserved());
+            try {
+                return cx.compileReader(in, sizzlejs.toString(), 1, null);
+            } finally {
+                cx.setOptimizationLevel(savedLevel);
+                cx.setLanguageVersion(savedVersion);
+                cx.setGenerateObserverCount(savedObserverCount);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Script loadPrecompiledSizzle() {
+        try {
+            return Class.forName(PRECOMPILED_SIZZLE).asSubclass(Script.class)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private Object toJS(Object javaObject) {
+        return Context.javaToJS(javaObject, toplevel);
+    }
+
+    SizzleEngine(Document doc, FrizzleOptions options) {
+        this.contextFactory = options.getContextFactory();
+        this.wrapFactory = new DOMWrapFactory(options.getWrapperCacheSize());
+        this.guard = new QueryGuard(options);
+        try (ContextCloseable cc = new WrappedContextCloseable(contextFactory, wrapFactory)) {
+            Context cx = cc.getContext();
+            this.toplevel = restoreScope(cx, doc, getSizzleScript(options));
+            this.expandos = ExpandoStore.forScope(toplevel);
+            this.document = toplevel.get("document", toplevel);
+            this.doc = doc;
+
+            Function sizzleFn = (Function) toplevel.get("Sizzle", toplevel);
+            this.selectors = (Scriptable) sizzleFn.get("selectors", sizzleFn);
+            this.sizzle = new SizzleFunction("Sizzle", sizzleFn, toplevel, null);
+            this.select = SizzleFunction.method("Sizzle", sizzleFn, "select", toplevel);
+            this.compile = SizzleFunction.method("Sizzle", sizzleFn, "compile", toplevel);
+            this.setDocument = SizzleFunction.method("Sizzle", sizzleFn, "setDocument", toplevel);
+            this.matchesSelector = SizzleFunction.method("Sizzle", sizzleFn, "matchesSelector",
+                    toplevel);
+            this.createPseudo = SizzleFunction.method("Sizzle.selectors", selectors,
+                    "createPseudo", toplevel);
+            this.pseudos = (Scriptable) selectors.get("pseudos", selectors);
+            this.cacheLength = options.getCacheLength();
+            this.parsed = new ParsedSelectors(cacheLength);
+            selectors.put("cacheLength", selectors, cacheLength);
+            sizzleFn.put("uniqueSort", sizzleFn, new UniqueSort());
+        }
+    }
+
+    /**
+     * Returns a new top-level scope, without any globals of its own. The
+     * standard objects come from the shared scope, via the prototype
+     * chain; only Sizzle's own globals live here.
+     */
+    static Scriptable newToplevel(Context cx) {
+        Scriptable toplevel = cx.newObject(SharedScope.get());
+        toplevel.setPrototype(SharedScope.get());
+        toplevel.setParentScope(null);
+        return toplevel;
+    }
+
+    /**
+     * Returns a new top-level scope with Sizzle set up against the given
+     * document, by running the given Sizzle script.
+     */
+    static Scriptable newScope(Context cx, Document doc, Script sizzle) {
+        Scriptable toplevel = newToplevel(cx);
+        toplevel.put("document", toplevel, Context.javaToJS(doc, toplevel));
+        toplevel.put("window", toplevel, toplevel);
+        sizzle.exec(cx, toplevel);
+        return toplevel;
+    }
+
+    /**
+     * Returns a new top-level scope with Sizzle set up against the given
+     * document: restored from the {@link SizzleSnapshot} for documents
+     * like it, or if there is none, by running Sizzle.
+     */
+    private static Scriptable restoreScope(Context cx, Document doc, Script sizzle) {
+        SizzleSnapshot snapshot = SizzleSnapshot.get(doc, sizzle);
+        if (snapshot != null) {
+            Scriptable toplevel = newToplevel(cx);
+            try {
+                snapshot.restore(toplevel, doc);
+                return toplevel;
+            } catch (IOException | ClassNotFoundException e) {
+                /* Fall back on running Sizzle, below. */
+            }
+        }
+        return newScope(cx, doc, sizzle);
+    }
+
+    /**
+     * Replaces {@code Sizzle.uniqueSort}, which Sizzle calls to sort the
+     * results of selectors with positional pseudos into document order.
+     * Sizzle's own version compares nodes by walking up their parents
+     * through the script wrappers, for every comparison; this one
+     * unwraps the elements once, and sorts them in Java, by their
+     * ordinals if there is an index. The top-level results are only
+     * de-duplicated when ordered results are not required.
+     */
+    private final class UniqueSort extends BaseFunction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            Scriptable results = (Scriptable) args[0];
+            int length = (int) Context.toNumber(ScriptableObject.getProperty(results, "length"));
+            Map<Element, Object> wrappers = new IdentityHashMap<>(length);
+            List<Element> elems = new ArrayList<>(length);
+            for (int i = 0; i < length; ++i) {
+                Object wrapper = ScriptableObject.getProperty(results, i);
+                Element elem = (Element) ((Wrapper) wrapper).unwrap();
+                if (wrappers.put(elem, wrapper) == null) {
+                    elems.add(elem);
+                }
+            }
+            if (ordered || results != topResults) {
+                elems = DocumentOrder.uniqueSort(elems,
+                        index == null ? null : index.getDocumentOrder());
+            }
+            for (int i = 0; i < elems.size(); ++i) {
+                ScriptableObject.putProperty(results, i, wrappers.get(elems.get(i)));
+            }
+            ScriptableObject.putProperty(results, "length", elems.size());
+            return results;
+        }
+    }
+
+    /**
+     * The context a call runs in. Normally, each call enters a context
+     * (with this engine's wrap factory) of its own; while a session is
+     * open, all calls share the session's context instead. Either way,
+     * each call enters the guard, which starts its budget, and starts a
+     * new run of the scope's expando store.
+     */
+    private final class Call implements AutoCloseable {
+        private final ContextCloseable cc = new WrappedContextCloseable(contextFactory,
+                wrapFactory);
+
+        Context getContext() {
+            return cc.getContext();
+        }
+
+        @Override
+        public void close() {
+            guard.close();
+            if (this != session) {
+                cc.close();
+            }
+        }
+    }
+
+    private Call enter() {
+        Call call = session != null ? session : new Call();
+        guard.enter();
+        expandos.nextRun();
+        return call;
+    }
+
+    @Override
+    public void openSession() {
+        Preconditions.checkState(session == null, "A session is already open");
+        session = new Call();
+    }
+
+    @Override
+    public void closeSession() {
+        Call call = session;
+        session = null;
+        call.cc.close();
+    }
+
+    @Override
+    public void cancel() {
+        guard.cancel();
+    }
+
+    /**
+     * Returns the Sizzle matcher function for the given selector,
+     * compiling it on first use. {@code CompiledSelector} does not
+     * override {@code equals}, so entries are keyed by identity, and
+     * go away when the selector is no longer used.
+     *
+     * <p>{@code Sizzle.select} still tokenizes the selector on every
+     * call, through Sizzle's token cache; so Sizzle's
+     * {@code cacheLength} is raised by one for each compiled selector,
+     * which keeps their tokens from pushing each other out of the
+     * cache.
+     */
+    private Function getCompiled(Context cx, CompiledSelector selector) {
+        Function fn = compiled.get(selector);
+        if (fn == null) {
+            String source = SizzleUtil.trim(selector.getSelector());
+            selectors.put("cacheLength", selectors, cacheLength + compiled.size() + 1);
+            fn = (Function) compile.call(cx, source);
+            compiled.put(selector, fn);
+        }
+        return fn;
+    }
+
+    /**
+     * Runs a compiled selector via {@code Sizzle.select}, which is what
+     * {@code Sizzle} itself calls once it has the selector string.
+     */
+    private Element[] select(Context cx, CompiledSelector selector, Object context,
+            Object seed) {
+        return (Element[]) Context.jsToJava(run(cx, selector, context, seed), Element[].class);
+    }
+
+    private Object run(Context cx, CompiledSelector selector, Object context, Object seed) {
+        Scriptable results = cx.newArray(toplevel, 0);
+        Object[] args = {getCompiled(cx, selector), context,
+                results, seed == null ? Context.getUndefinedValue() : seed};
+        Scriptable outer = topResults;
+        topResults = results;
+        try {
+            return select.call(cx, args);
+        } finally {
+            topResults = outer;
+        }
+    }
+
+    /**
+     * Views a result array as a list, without converting it. Rhino's
+     * {@code NativeArray} implements {@code List}, unwrapping each
+     * element as it is read.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Element> asList(Object result) {
+        return Collections.unmodifiableList((List<Element>) result);
+    }
+
+    /**
+     * Points Sizzle at the given document with {@code Sizzle.setDocument},
+     * which is what Sizzle does itself whenever it is handed a node from
+     * a different document. Sizzle still falls back to the document it
+     * was loaded with ({@code preferredDoc}) whenever it is called
+     * without a context, so every call below passes one explicitly.
+     */
+    @Override
+    public void setDocument(Document doc) {
+        try (Call call = enter()) {
+            Context cx = call.getContext();
+            wrapFactory.clearCache();
+            this.doc = doc;
+            this.index = null;
+            document = toJS(doc);
+            toplevel.put("document", toplevel, document);
+            setDocument.call(cx, document);
+        }
+    }
+
+    @Override
+    public void setIndex(ElementIndex index) {
+        Preconditions.checkArgument(index == null || index.getDocument() == doc,
+                "Index is of another document");
+        this.index = index;
+    }
+
+    /**
+     * Returns the candidates the index has for the selector, as a seed
+     * for Sizzle, or null if there are none (see
+     * {@link SizzleUtil#findSeed}).
+     */
+    private Object findSeed(SelectorList selectors, Node context) {
+        Element[] seed = SizzleUtil.findSeed(index, selectors, context);
+        return seed == null ? null : toJS(seed);
+    }
+
+    private Object findSeed(String selector, Node context) {
+        Element[] seed = SizzleUtil.findSeed(index, parsed, selector, context);
+        return seed == null ? null : toJS(seed);
+    }
+
+    /**
+     * Runs a selector string via {@code Sizzle}. The results array is
+     * passed in, so that {@link UniqueSort} can tell it from those of
+     * any nested calls (such as for {@code :has}).
+     */
+    private Object run(Context cx, String selector, Node context) {
+        Object seed = findSeed(selector, context);
+        Object contextJS = context == null ? document : toJS(context);
+        Scriptable results = cx.newArray(toplevel, 0);
+        Scriptable outer = topResults;
+        topResults = results;
+        try {
+            return seed == null ? sizzle.call(cx, selector, contextJS, results)
+                    : sizzle.call(cx, selector, contextJS, results, seed);
+        } finally {
+            topResults = outer;
+        }
+    }
+
+    @Override
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    @Override
+    public CacheStats getWrapperCacheStats() {
+        return wrapFactory.getCacheStats();
+    }
+
+    @Override
+    public Map<String, CallStats> getCallStats() {
+        ImmutableMap.Builder<String, CallStats> builder = ImmutableMap.builder();
+        for (SizzleFunction fn : ImmutableList.of(sizzle, select, compile, setDocument,
+                matchesSelector, createPseudo)) {
+            builder.put(fn.getName(), fn.getStats());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void createPseudo(String name, Pseudo pseudo) {
+        try (Call call = enter()) {
+            Context cx = call.getContext();
+            Object object = createPseudo.call(cx, pseudo.toJS());
+            pseudos.put(name, pseudos, object);
+        }
+    }
+
+    @Override
+    public Element[] select(String selector, Node context) {
+        try (Call call = enter()) {
+            Context cx = call.getContext();
+            return (Element[]) Context.jsToJava(run(cx, selector, context), Element[].class);
+        }
+    }
+
+    @Override
+    public Element[] select(CompiledSelector selector, Node context) {
+        try (Call call = enter()) {
+            return select(call.getContext(), selector,
+                    context == null ? document : toJS(context),
+                    findSeed(selector.getSelectorList(), context));
+        }
+    }
+
+    /**
+     * Sizzle always finds every match before returning, so only the
+     * conversion of the results is deferred.
+     */
+    @Override
+    public Iterable<Element> iterate(String selector, Node context) {
+        try (Call call = enter()) {
+            Context cx = call.getContext();
+            return asList(run(cx, selector, context));
+        }
+    }
+
+    @Override
+    public Iterable<Element> iterate(CompiledSelector selector, Node context) {
+        try (Call call = enter()) {
+            return asList(run(call.getContext(), selector,
+                    context == null ? document : toJS(context),
+                    findSeed(selector.getSelectorList(), context)));
+        }
+    }
+
+    @Override
+    public boolean matchesSelector(Element element, String selector) {
+        try (Call call = enter()) {
+            Context cx = call.getContext();
+            return (Boolean) Context.jsToJava(
+                    matchesSelector.call(cx, toJS(element), selector), Boolean.class);
+        }
+    }
+
+    @Override
+    public Element[] matches(String selector, NodeList elements) {
+        try (Call call = enter()) {
+            Context cx = call.getContext();
+            return (Element[]) Context.jsToJava(
+                    sizzle.call(cx, selector, document, null, toJS(elements)),
+                    Element[].class);
+        }
+    }
+
+    @Override
+    public Element[] matches(String selector, Element[] elements) {
+        try (Call call = enter()) {
+            Context cx = call.getContext();
+            return (Element[]) Context.jsToJava(
+                    sizzle.call(cx, selector, document, null, toJS(elements)),
+                    Element[].class);
+        }
+    }
+
+    @Override
+    public boolean matchesSelector(Element element, CompiledSelector selector) {
+        try (Call call = enter()) {
+            Context cx = call.getContext();
+            Object seed = cx.newArray(toplevel, new Object[] {toJS(element)});
+            return !asList(run(cx, selector, document, seed)).isEmpty();
+        }
+    }
+
+    @Override
+    public Element[] matches(CompiledSelector selector, NodeList elements) {
+        try (Call call = enter()) {
+            return select(call.getContext(), selector, document, toJS(elements));
+        }
+    }
+
+    @Override
+    public Element[] matches(CompiledSelector selector, Element[] elements) {
+        try (Call call = enter()) {
+            return select(call.getContext(), selector, document, toJS(elements));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * A handle on one of Sizzle's functions, looked up once when the engine
+ * is set up rather than on every call. Each handle counts its calls and
+ * the time spent in them, with a {@link CallCounter}.
+ */
+final class SizzleFunction {
+    private final CallCounter counter;
+    private final Function function;
+    private final Scriptable scope;
+    private final Scriptable thisObj;
+
+    SizzleFunction(String name, Function function, Scriptable scope, Scriptable thisObj) {
+        this.counter = new CallCounter(name);
+        this.function = function;
+        this.scope = scope;
+        this.thisObj = thisObj;
+    }
+
+    /**
+     * Looks up the named method of {@code owner}, which is then used as
+     * {@code this} for calls.
+     */
+    static SizzleFunction method(String prefix, Scriptable owner, String name,
+            Scriptable scope) {
+        return new SizzleFunction(prefix + "." + name,
+                (Function) owner.get(name, owner), scope, owner);
+    }
+
+    String getName() {
+        return counter.getName();
+    }
+
+    Object call(Context cx, Object... args) {
+        long start = System.nanoTime();
+        try {
+            return function.call(cx, scope, thisObj, args);
+        } finally {
+            counter.record(start);
+        }
+    }
+
+    CallStats getStats() {
+        return counter.getStats();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Wrapper;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The globals of a Sizzle scope just after Sizzle has been set up,
+ * serialised, so that further scopes can be made by deserialising them
+ * rather than running Sizzle's setup (building its tables, regular
+ * expressions, and caches, and testing the DOM's features) again.
+ *
+ * <p>Sizzle is set up against a small template document of its own.
+ * Its feature tests depend only on the {@link DOMImplementation} and on
+ * whether Sizzle takes the document for HTML (that is, whether its root
+ * element is named {@code HTML}), so there is one snapshot for each
+ * combination of the two (and of the Sizzle script, which is compiled
+ * separately for some {@link FrizzleOptions}), shared by all
+ * instances. A snapshot is only made the second time one is needed, so
+ * that a process that only ever sets Sizzle up once (and cares most
+ * about starting quickly) does not pay for making it. When a snapshot
+ * is restored, every reference to the template document (and its root
+ * element) becomes one to the new document.
+ *
+ * <p>The scope's references to the standard objects and to itself are
+ * also written as placeholders, and resolved against the new scope when
+ * read back. Functions of a Sizzle script compiled at run time are
+ * read back through the class loader that defined the script's class.
+ * A scope that refers to anything else that cannot be serialised (such
+ * as other DOM nodes) has no snapshot, and Sizzle is run afresh for
+ * each instance instead.
+ */
+final class SizzleSnapshot {
+    private static final ConcurrentMap<List<Object>, Optional<SizzleSnapshot>> SNAPSHOTS
+            = new ConcurrentHashMap<>();
+    private static final Set<List<Object>> SEEN = Sets.newConcurrentHashSet();
+
+    private enum Placeholder {
+        SHARED_SCOPE, TOPLEVEL, DOCUMENT, DOCUMENT_ELEMENT
+    }
+
+    private static final class Output extends ScriptableOutputStream {
+        private final Scriptable toplevel;
+        private final Document template;
+
+        Output(OutputStream out, Scriptable toplevel, Document template) throws IOException {
+            super(out, SharedScope.get());
+            this.toplevel = toplevel;
+            this.template = template;
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj == SharedScope.get()) {
+                return Placeholder.SHARED_SCOPE;
+            }
+            if (obj == toplevel) {
+                return Placeholder.TOPLEVEL;
+            }
+            if (obj instanceof Wrapper && ((Wrapper) obj).unwrap() instanceof Node) {
+                Object node = ((Wrapper) obj).unwrap();
+                if (node == template) {
+                    return Placeholder.DOCUMENT;
+                }
+                if (node == template.getDocumentElement()) {
+                    return Placeholder.DOCUMENT_ELEMENT;
+                }
+                throw new NotSerializableException(node.toString());
+            }
+            return super.replaceObject(obj);
+        }
+    }
+
+    private static final class Input extends ScriptableInputStream {
+        /**
+         * The classes named in snapshots. Looking classes up afresh each
+         * time is most of the cost of reading a snapshot, since the
+         * application class loader searches the class path (and throws
+         * an exception) for every array class before it is found.
+         */
+        private static final ConcurrentMap<String, Class<?>> CLASSES
+                = new ConcurrentHashMap<>();
+
+        private final ClassLoader loader;
+        private final Scriptable toplevel;
+        private final Document doc;
+
+        Input(InputStream in, ClassLoader loader, Scriptable toplevel, Document doc)
+                throws IOException {
+            super(in, SharedScope.get());
+            this.loader = loader;
+            this.toplevel = toplevel;
+            this.doc = doc;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            Class<?> cls = CLASSES.get(desc.getName());
+            if (cls == null) {
+                try {
+                    cls = super.resolveClass(desc);
+                } catch (ClassNotFoundException e) {
+                    cls = Class.forName(desc.getName(), false, loader);
+                }
+                CLASSES.put(desc.getName(), cls);
+            }
+            return cls;
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (!(obj instanceof Placeholder)) {
+                return super.resolveObject(obj);
+            }
+            switch ((Placeholder) obj) {
+            case SHARED_SCOPE:
+                return SharedScope.get();
+            case TOPLEVEL:
+                return toplevel;
+            case DOCUMENT:
+                return Context.javaToJS(doc, toplevel);
+            case DOCUMENT_ELEMENT:
+                return Context.javaToJS(doc.getDocumentElement(), toplevel);
+            default:
+                throw new AssertionError(obj);
+            }
+        }
+    }
+
+    private final byte[] globals;
+    private final ClassLoader loader;
+
+    private SizzleSnapshot(byte[] globals, ClassLoader loader) {
+        this.globals = globals;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the snapshot for documents like the given one, making it
+     * if need be, or null if there cannot be one (or this is the first
+     * time one was asked for).
+     */
+    static SizzleSnapshot get(Document doc, Script sizzle) {
+        Element root = doc.getDocumentElement();
+        if (root == null) {
+            return null;
+        }
+        boolean html = root.getNodeName().equals("HTML");
+        List<Object> key = ImmutableList.<Object>of(doc.getImplementation().getClass(), html,
+                sizzle);
+        Optional<SizzleSnapshot> snapshot = SNAPSHOTS.get(key);
+        if (snapshot == null) {
+            if (SEEN.add(key)) {
+                return null;
+            }
+            synchronized (SNAPSHOTS) {
+                snapshot = SNAPSHOTS.get(key);
+                if (snapshot == null) {
+                    snapshot = Optional.fromNullable(
+                            make(doc.getImplementation(), html ? "HTML" : "html", sizzle));
+                    SNAPSHOTS.put(key, snapshot);
+                }
+            }
+        }
+        return snapshot.orNull();
+    }
+
+    /**
+     * Sets Sizzle up against a new document with the given root element
+     * name, and serialises the resulting globals; then checks that they
+     * can be read back.
+     */
+    private static SizzleSnapshot make(DOMImplementation impl, String root, Script sizzle) {
+        Document template = impl.createDocument(null, root, null);
+        try (WrappedContextCloseable cc = new WrappedContextCloseable()) {
+            Context cx = cc.getContext();
+            Scriptable toplevel = SizzleEngine.newScope(cx, template, sizzle);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (Output out = new Output(bytes, toplevel, template)) {
+                Object[] ids = ((ScriptableObject) toplevel).getIds();
+                Object[] values = new Object[ids.length];
+                for (int i = 0; i < ids.length; ++i) {
+                    values[i] = ScriptableObject.getProperty(toplevel, (String) ids[i]);
+                }
+                out.writeObject(ids);
+                out.writeObject(values);
+            }
+            SizzleSnapshot snapshot = new SizzleSnapshot(bytes.toByteArray(),
+                    sizzle.getClass().getClassLoader());
+            snapshot.restore(SizzleEngine.newToplevel(cx), template);
+            return snapshot;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fills the given (empty) top-level scope with Sizzle's globals, set
+     * up against the given document, which must be like the one this
+     * snapshot was got for.
+     */
+    void restore(Scriptable toplevel, Document doc) throws IOException, ClassNotFoundException {
+        try (Input in = new Input(new ByteArrayInputStream(globals), loader, toplevel,
+                doc)) {
+            Object[] ids = (Object[]) in.readObject();
+            Object[] values = (Object[]) in.readObject();
+            for (int i = 0; i < ids.length; ++i) {
+                toplevel.put((String) ids[i], toplevel, values[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableSet;
+import com.on_site.frizzle.selector.ElementIndex;
+import com.on_site.frizzle.selector.SelectorList;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+
+/**
+ * Java implementations of Sizzle's utility functions ({@code getText},
+ * {@code attr}, and {@code contains}), with the same results as Sizzle
+ * gives for Java DOM nodes, but without calling into script.
+ */
+final class SizzleUtil {
+    /**
+     * Sizzle's {@code booleans}: the attributes that get special
+     * treatment from {@code attr} in HTML documents.
+     */
+    private static final ImmutableSet<String> BOOLEANS = ImmutableSet.of(
+            "checked", "selected", "async", "autofocus", "autoplay", "controls",
+            "defer", "disabled", "hidden", "ismap", "loop", "multiple", "open",
+            "readonly", "required", "scoped");
+
+    /**
+     * Sizzle's {@code rtrim}: leading and trailing whitespace, except
+     * for an escaped trailing space.
+     */
+    private static final Pattern TRIM = Pattern.compile(
+            "^[\\x20\\t\\r\\n\\f]+|((?:^|[^\\\\])(?:\\\\.)*)[\\x20\\t\\r\\n\\f]+$");
+
+    private SizzleUtil() {
+        /* Disable instantiation for static class. */
+    }
+
+    /**
+     * Same as Sizzle's {@code isXML}: a document is HTML only if its
+     * root element is named {@code HTML} (in upper case, as browsers
+     * report it), or if it has no root element at all.
+     */
+    static boolean isXML(Node node) {
+        Document doc = node instanceof Document ? (Document) node : node.getOwnerDocument();
+        Element root = doc == null ? null : doc.getDocumentElement();
+        return root != null && !root.getNodeName().equals("HTML");
+    }
+
+    /**
+     * Same as {@code Sizzle.contains}: whether {@code child} is a
+     * strict descendant of {@code parent}. (Sizzle does not trust the
+     * Java {@code compareDocumentPosition}, and walks up the parents of
+     * {@code child}; so does this.)
+     */
+    static boolean contains(Node parent, Node child) {
+        if (child != null) {
+            for (Node node = child.getParentNode(); node != null; node = node.getParentNode()) {
+                if (node == parent) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Trims a selector as Sizzle does before compiling it.
+     */
+    static String trim(String selector) {
+        return TRIM.matcher(selector).replaceAll("$1");
+    }
+
+    /**
+     * Returns the candidates the index has for the selector, as a seed
+     * for Sizzle, or null if there is no index or it cannot narrow them
+     * down. Given a seed, Sizzle only checks the elements in it, rather
+     * than finding its own (which, on XML documents, means a scan of
+     * every element unless the selector names a tag).
+     *
+     * @param context the node to search within, or null for the whole
+     * document
+     */
+    static Element[] findSeed(ElementIndex index, SelectorList selectors, Node context) {
+        if (index == null) {
+            return null;
+        }
+        List<Element> candidates = index.getSizzleCandidates(selectors,
+                context == null ? index.getDocument() : context);
+        return candidates == null ? null : candidates.toArray(new Element[candidates.size()]);
+    }
+
+    /**
+     * Same as {@link #findSeed(ElementIndex, SelectorList, Node)}, for a
+     * selector string, which is parsed through the given cache.
+     */
+    static Element[] findSeed(ElementIndex index, ParsedSelectors parsed, String selector,
+            Node context) {
+        if (index == null) {
+            return null;
+        }
+        SelectorList selectors = parsed.get(selector);
+        return selectors == null ? null : findSeed(index, selectors, context);
+    }
+
+    /**
+     * Same as {@code Sizzle.attr}. That is usually just
+     * {@code getAttribute}, so missing attributes give an empty string;
+     * but in HTML documents, boolean attributes (such as
+     * {@code disabled}) give null when missing.
+     */
+    static String attr(Element elem, String name) {
+        if (BOOLEANS.contains(name.toLowerCase(Locale.ROOT)) && !isXML(elem)) {
+            Attr attr = elem.getAttributeNode(name);
+            return attr != null && attr.getSpecified() ? attr.getValue() : null;
+        }
+        return elem.getAttribute(name);
+    }
+
+    /**
+     * Same as {@code Sizzle.getText} for a single node.
+     */
+    static String getText(Node node) {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+        case Node.DOCUMENT_FRAGMENT_NODE:
+            return node.getTextContent();
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+            return node.getNodeValue();
+        case Node.DOCUMENT_NODE:
+            return getText(new Node[] {node});
+        default:
+            return "";
+        }
+    }
+
+    /**
+     * Appends what {@code Sizzle.getText} would return for the given
+     * node. For elements, the text nodes are appended one by one,
+     * rather than building the whole text content first.
+     */
+    static void appendText(Node node, Appendable out) throws IOException {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+        case Node.DOCUMENT_FRAGMENT_NODE:
+            appendTextContent(node, out);
+            break;
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+            out.append(node.getNodeValue());
+            break;
+        case Node.DOCUMENT_NODE:
+            /*
+             * Documents have no textContent in the DOM, so Sizzle
+             * visits their children instead.
+             */
+            for (Node child = node.getFirstChild(); child != null;
+                    child = child.getNextSibling()) {
+                appendText(child, out);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Same as {@code Sizzle.getText} for an array-like collection: the
+     * concatenated text of each node, up to the first null.
+     */
+    static void appendText(NodeList nodes, Appendable out) throws IOException {
+        if (nodes instanceof Node) {
+            appendText((Node) nodes, out);
+            return;
+        }
+        for (int i = 0; ; ++i) {
+            Node node = nodes.item(i);
+            if (node == null) {
+                break;
+            }
+            appendText(node, out);
+        }
+    }
+
+    static void appendText(Node[] nodes, Appendable out) throws IOException {
+        for (Node node : nodes) {
+            if (node == null) {
+                break;
+            }
+            appendText(node, out);
+        }
+    }
+
+    static String getText(NodeList nodes) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendText(nodes, sb);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    static String getText(Node[] nodes) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendText(nodes, sb);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends the DOM {@code textContent} of an element or fragment: the
+     * text of every descendant text node, except for comments,
+     * processing instructions, and whitespace in element content.
+     */
+    private static void appendTextContent(Node parent, Appendable out) throws IOException {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+            case Node.ELEMENT_NODE:
+            case Node.ENTITY_REFERENCE_NODE:
+                appendTextContent(child, out);
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                if (!((Text) child).isElementContentWhitespace()) {
+                    out.append(child.getNodeValue());
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+}
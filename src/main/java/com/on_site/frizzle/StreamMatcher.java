@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.on_site.frizzle.selector.SelectorList;
+import com.on_site.frizzle.selector.StreamEvaluator;
+import org.w3c.dom.Element;
+
+/**
+ * Matches a selector against an XML document as it is parsed, without
+ * building the document, for documents too big to hold in memory. Only
+ * selectors that can be decided as soon as an element's start tag has
+ * been read are supported: type, id, class, and attribute selectors,
+ * all four combinators, {@code :first-child}, {@code :nth-child}, and
+ * their {@code -of-type} counterparts, {@code :lang}, {@code :root},
+ * and {@code :not} of such selectors. Memory use depends on the depth of
+ * the document rather than its size (plus, if fragments are requested,
+ * the size of the matched elements).
+ *
+ * <p>The elements found are the same as the pure-Java engine's
+ * {@code select} would find on the whole document, in the same order.
+ * Each is handed to a {@link Handler} as an element of a small skeleton
+ * document: either on its own, with its attributes but no children, or
+ * as a fragment with its whole subtree. During the callback, the
+ * element's ancestors (with their attributes) are still attached.
+ *
+ * <p>Instances are immutable, and may be shared between threads.
+ *
+ * @see StreamEvaluator
+ */
+public final class StreamMatcher {
+    /**
+     * Receives the matched elements, in document order.
+     */
+    public interface Handler {
+        void match(Element element);
+    }
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private final CompiledSelector selector;
+    private final StreamEvaluator evaluator;
+
+    /**
+     * @param fragments whether to hand over each matched element with
+     * its subtree, rather than on its own as soon as it starts
+     * @throws IllegalArgumentException if the selector cannot be
+     * evaluated on a stream (see {@link #isStreamable})
+     */
+    public StreamMatcher(CompiledSelector selector, boolean fragments) {
+        this.selector = selector;
+        this.evaluator = new StreamEvaluator(selector.getSelectorList(), fragments);
+    }
+
+    public StreamMatcher(String selector, boolean fragments) {
+        this(Frizzle.compile(selector), fragments);
+    }
+
+    /**
+     * Returns whether the selector can be evaluated on a stream, that
+     * is, whether an element's match only depends on its ancestors and
+     * preceding siblings. Positional pseudos, {@code :last-child},
+     * {@code :empty}, {@code :has}, {@code :contains}, and custom
+     * pseudos, among others, cannot.
+     */
+    public static boolean isStreamable(CompiledSelector selector) {
+        return StreamEvaluator.isStreamable(selector.getSelectorList());
+    }
+
+    public static boolean isStreamable(String selector) {
+        return StreamEvaluator.isStreamable(SelectorList.parse(selector));
+    }
+
+    public CompiledSelector getSelector() {
+        return selector;
+    }
+
+    public void match(InputStream xml, Handler handler) throws XMLStreamException {
+        XMLStreamReader reader;
+        synchronized (FACTORY) {
+            reader = FACTORY.createXMLStreamReader(xml);
+        }
+        match(reader, handler);
+    }
+
+    public void match(Reader xml, Handler handler) throws XMLStreamException {
+        XMLStreamReader reader;
+        synchronized (FACTORY) {
+            reader = FACTORY.createXMLStreamReader(xml);
+        }
+        match(reader, handler);
+    }
+
+    /**
+     * Reads the given stream to the end of the document, handing each
+     * match to {@code handler}. The reader is closed afterwards, but
+     * not its underlying source.
+     */
+    public void match(XMLStreamReader reader, final Handler handler)
+            throws XMLStreamException {
+        try {
+            evaluator.evaluate(reader, new StreamEvaluator.Handler() {
+                @Override
+                public void match(Element elem) {
+                    handler.match(elem);
+                }
+            });
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -23,13 +23,14 @@
 
 package com.on_site.frizzle;
 
+import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.WrapFactory;
 
 import com.on_site.util.ContextCloseable;
 
 /**
  * A {@link ContextCloseable} implmentation that also sets the context
- * up with {@link DOMWrapFactory}.
+ * up with {@link DOMWrapFactory} (or another given factory).
  *
  * @author Chris Jester-Young
  */
@@ -37,8 +38,27 @@ public class WrappedContextCloseable extends ContextCloseable {
     private final WrapFactory savedFactory;
 
     public WrappedContextCloseable() {
+        this(new DOMWrapFactory());
+    }
+
+    /**
+     * Sets the context up with the given factory, which would usually
+     * be a {@link DOMWrapFactory} that is reused across calls, so that
+     * its wrapper cache is too.
+     */
+    public WrappedContextCloseable(WrapFactory factory) {
+        savedFactory = cx.getWrapFactory();
+        cx.setWrapFactory(factory);
+    }
+
+    /**
+     * Enters a context from the given context factory, and sets it up
+     * with the given wrap factory.
+     */
+    public WrappedContextCloseable(ContextFactory contextFactory, WrapFactory factory) {
+        super(contextFactory);
         savedFactory = cx.getWrapFactory();
-        cx.setWrapFactory(new DOMWrapFactory());
+        cx.setWrapFactory(factory);
     }
 
     @Override
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A counting Bloom filter over the tag names, ids, classes, and
+ * attribute names of the ancestors of an element, as browser style
+ * engines keep while walking a document. A selector like {@code a b c}
+ * requires its subject to have an {@code a} and a {@code b} among its
+ * ancestors; if either key is missing from the filter, the candidate can
+ * be rejected without walking up the tree. False positives merely fall
+ * back to the usual walk.
+ *
+ * <p>The filter tracks one element at a time, given by {@link #moveTo}.
+ * Moving to the next element in document order is cheap, since only the
+ * ancestors entered or left on the way are added or removed; any other
+ * move rebuilds the part of the chain that differs.
+ */
+final class AncestorFilter {
+    private static final int KEY_BITS = 12;
+    private static final int KEY_MASK = (1 << KEY_BITS) - 1;
+
+    private static final int TAG_SALT = 0x5f3759df;
+    private static final int ID_SALT = 0x2545f491;
+    private static final int CLASS_SALT = 0x6c8e9cf5;
+    private static final int ATTRIBUTE_SALT = 0x1b873593;
+
+    private static final int[] NO_KEYS = {};
+
+    private final int[] counts = new int[1 << KEY_BITS];
+    private Element[] elements = new Element[16];
+    private int[] frames = new int[16];
+    private int[] keys = new int[64];
+    private int depth;
+    private int size;
+    private Element last;
+
+    /**
+     * Returns the keys an element's ancestors must all have for it to
+     * match the given selector: those of every compound followed by a
+     * child or descendant combinator. Such a compound matches an
+     * ancestor of the subject, whatever the combinators between them.
+     */
+    static int[] ancestorKeys(List<CompoundSelector> compounds, List<Combinator> combinators) {
+        int[] result = NO_KEYS;
+        int n = 0;
+        for (int i = 0; i < combinators.size(); ++i) {
+            Combinator combinator = combinators.get(i);
+            if (combinator != Combinator.CHILD && combinator != Combinator.DESCENDANT) {
+                continue;
+            }
+            for (SimpleSelector simple : compounds.get(i).getSimples()) {
+                int key;
+                if (simple instanceof TypeSelector) {
+                    key = hash(TAG_SALT, ((TypeSelector) simple).getName());
+                } else if (simple instanceof IdSelector) {
+                    key = hash(ID_SALT, ((IdSelector) simple).getId());
+                } else if (simple instanceof ClassSelector) {
+                    key = hash(CLASS_SALT, ((ClassSelector) simple).getClassName());
+                } else if (simple instanceof AttributeSelector
+                        && ((AttributeSelector) simple).getOperator()
+                                != AttributeSelector.Operator.NOT_EQUALS) {
+                    key = hash(ATTRIBUTE_SALT, ((AttributeSelector) simple).getName());
+                } else {
+                    continue;
+                }
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, Math.max(4, n * 2));
+                }
+                result[n++] = key;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Returns whether the current element's ancestors might match the
+     * given selector; if not, it certainly does not match.
+     */
+    boolean mightMatch(ComplexSelector selector) {
+        for (int key : selector.getAncestorKeys()) {
+            if (counts[key & KEY_MASK] == 0 || counts[(key >>> KEY_BITS) & KEY_MASK] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether {@link #moveTo} can reach {@code elem} by only
+     * removing ancestors, or adding the current element, as it does for
+     * each next element of a walk in document order.
+     */
+    boolean isNear(Element elem) {
+        Element parent = Nodes.parentElement(elem);
+        if (parent == null || parent == last) {
+            return true;
+        }
+        for (int i = depth; i > 0; --i) {
+            if (elements[i - 1] == parent) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes the filter hold the ancestors of {@code elem}.
+     */
+    void moveTo(Element elem) {
+        Element parent = Nodes.parentElement(elem);
+        if (parent != null && parent == last) {
+            push(parent);
+        } else {
+            int i = depth;
+            while (i > 0 && elements[i - 1] != parent) {
+                --i;
+            }
+            if (i > 0 || parent == null) {
+                popTo(i);
+            } else {
+                rebuild(parent);
+            }
+        }
+        last = elem;
+    }
+
+    private void rebuild(Element parent) {
+        List<Element> chain = new ArrayList<>();
+        for (Element anc = parent; anc != null; anc = Nodes.parentElement(anc)) {
+            chain.add(anc);
+        }
+        int common = 0;
+        int top = chain.size() - 1;
+        while (common < depth && common <= top && elements[common] == chain.get(top - common)) {
+            ++common;
+        }
+        popTo(common);
+        for (int i = top - common; i >= 0; --i) {
+            push(chain.get(i));
+        }
+    }
+
+    private void push(Element elem) {
+        if (depth == elements.length) {
+            elements = Arrays.copyOf(elements, depth * 2);
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        elements[depth] = elem;
+        frames[depth] = size;
+        ++depth;
+        add(hash(TAG_SALT, elem.getNodeName()));
+        NamedNodeMap attrs = elem.getAttributes();
+        for (int i = 0; i < attrs.getLength(); ++i) {
+            Node attr = attrs.item(i);
+            String name = attr.getNodeName();
+            add(hash(ATTRIBUTE_SALT, name));
+            if (name.equals("id")) {
+                add(hash(ID_SALT, attr.getNodeValue()));
+            } else if (name.equals("class")) {
+                addClasses(attr.getNodeValue());
+            }
+        }
+    }
+
+    private void addClasses(String value) {
+        int start = -1;
+        for (int i = 0; i <= value.length(); ++i) {
+            if (i == value.length() || Nodes.isWhitespace(value.charAt(i))) {
+                if (start >= 0) {
+                    add(hash(CLASS_SALT, value, start, i));
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+    }
+
+    private void add(int key) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        keys[size++] = key;
+        ++counts[key & KEY_MASK];
+        ++counts[(key >>> KEY_BITS) & KEY_MASK];
+    }
+
+    private void popTo(int target) {
+        while (depth > target) {
+            --depth;
+            elements[depth] = null;
+            int frame = frames[depth];
+            while (size > frame) {
+                int key = keys[--size];
+                --counts[key & KEY_MASK];
+                --counts[(key >>> KEY_BITS) & KEY_MASK];
+            }
+        }
+    }
+
+    private static int hash(int salt, String value) {
+        return hash(salt, value, 0, value.length());
+    }
+
+    private static int hash(int salt, String value, int start, int end) {
+        int h = salt;
+        for (int i = start; i < end; ++i) {
+            h = 31 * h + value.charAt(i);
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
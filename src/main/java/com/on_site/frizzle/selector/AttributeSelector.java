@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+
+/**
+ * An attribute selector, such as {@code [name]} or {@code [name^=value]}.
+ * The operators are those of Sizzle, which includes {@code !=}.
+ *
+ * <p>Note that an attribute that is absent does not match a presence
+ * test, unlike when Sizzle runs over the Java DOM (where
+ * {@code getAttribute} returns an empty string for missing
+ * attributes).
+ */
+final class AttributeSelector extends SimpleSelector {
+    enum Operator {
+        EXISTS(""),
+        EQUALS("="),
+        NOT_EQUALS("!="),
+        PREFIX("^="),
+        SUFFIX("$="),
+        SUBSTRING("*="),
+        INCLUDES("~="),
+        DASH_MATCH("|=");
+
+        private final String symbol;
+
+        private Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        static Operator forSymbol(String symbol) {
+            for (Operator op : values()) {
+                if (op.symbol.equals(symbol)) {
+                    return op;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return symbol;
+        }
+    }
+
+    private final String name;
+    private final Operator op;
+    private final String value;
+
+    AttributeSelector(String name, Operator op, String value) {
+        this.name = name;
+        this.op = op;
+        this.value = value;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Operator getOperator() {
+        return op;
+    }
+
+    String getValue() {
+        return value;
+    }
+
+    @Override
+    boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    boolean matches(Element elem, MatchContext cx) {
+        Attr attr = elem.getAttributeNode(name);
+        if (attr == null) {
+            return op == Operator.NOT_EQUALS;
+        }
+        return matchesValue(attr.getValue());
+    }
+
+    boolean matchesValue(String result) {
+        switch (op) {
+        case EXISTS:
+            return true;
+        case EQUALS:
+            return result.equals(value);
+        case NOT_EQUALS:
+            return !result.equals(value);
+        case PREFIX:
+            return !value.isEmpty() && result.startsWith(value);
+        case SUFFIX:
+            return !value.isEmpty() && result.endsWith(value);
+        case SUBSTRING:
+            return !value.isEmpty() && result.contains(value);
+        case INCLUDES:
+            return normaliseSpace(result).contains(" " + value + " ");
+        case DASH_MATCH:
+            return result.equals(value) || result.startsWith(value + "-");
+        default:
+            throw new AssertionError(op);
+        }
+    }
+
+    private static String normaliseSpace(String result) {
+        StringBuilder sb = new StringBuilder(result.length() + 2).append(' ');
+        for (int i = 0; i < result.length(); ++i) {
+            char c = result.charAt(i);
+            sb.append(Nodes.isWhitespace(c) ? ' ' : c);
+        }
+        return sb.append(' ').toString();
+    }
+
+    @Override
+    public String toString() {
+        return op == Operator.EXISTS ? "[" + name + "]"
+                : "[" + name + op + "\"" + value + "\"]";
+    }
+}
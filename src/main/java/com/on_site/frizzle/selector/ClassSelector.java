@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import org.w3c.dom.Element;
+
+/**
+ * A {@code .class} selector, which matches one whitespace-separated
+ * token of the {@code class} attribute.
+ */
+final class ClassSelector extends SimpleSelector {
+    private final String className;
+
+    ClassSelector(String className) {
+        this.className = className;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    @Override
+    boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    boolean matches(Element elem, MatchContext cx) {
+        return containsToken(elem.getAttribute("class"), className);
+    }
+
+    static boolean containsToken(String value, String token) {
+        int len = token.length();
+        int from = 0;
+        int index;
+        while ((index = value.indexOf(token, from)) >= 0) {
+            int after = index + len;
+            if ((index == 0 || Nodes.isWhitespace(value.charAt(index - 1)))
+                    && (after == value.length() || Nodes.isWhitespace(value.charAt(after)))) {
+                return true;
+            }
+            from = index + 1;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "." + className;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A chain of compound selectors joined by combinators, optionally with
+ * a leading combinator that relates the leftmost compound to the
+ * context node (as in {@code > p}).
+ *
+ * <p>Matching runs right to left, starting from the candidate element
+ * and walking up (or back) through the tree as each combinator
+ * requires.
+ */
+final class ComplexSelector {
+    private final Combinator leading;
+    private final ImmutableList<CompoundSelector> compounds;
+    private final ImmutableList<Combinator> combinators;
+    private final boolean needsContext;
+    private final int[] ancestorKeys;
+    private final boolean backtracking;
+
+    ComplexSelector(Combinator leading, List<CompoundSelector> compounds,
+            List<Combinator> combinators) {
+        if (compounds.isEmpty() || combinators.size() != compounds.size() - 1) {
+            throw new IllegalArgumentException("mismatched compounds and combinators");
+        }
+        this.leading = leading;
+        this.compounds = ImmutableList.copyOf(compounds);
+        this.combinators = ImmutableList.copyOf(combinators);
+        boolean needsContext = false;
+        for (CompoundSelector compound : compounds) {
+            needsContext |= compound.needsContext();
+        }
+        this.needsContext = needsContext;
+        this.ancestorKeys = AncestorFilter.ancestorKeys(compounds, combinators);
+        int scanning = 0;
+        for (Combinator combinator : combinators) {
+            if (combinator == Combinator.DESCENDANT || combinator == Combinator.SIBLING) {
+                ++scanning;
+            }
+        }
+        this.backtracking = scanning > 1;
+    }
+
+    Combinator getLeading() {
+        return leading;
+    }
+
+    ImmutableList<CompoundSelector> getCompounds() {
+        return compounds;
+    }
+
+    ImmutableList<Combinator> getCombinators() {
+        return combinators;
+    }
+
+    CompoundSelector getRightmost() {
+        return compounds.get(compounds.size() - 1);
+    }
+
+    /**
+     * Returns whether this selector contains a positional pseudo
+     * anywhere, in which case it must be evaluated as a set.
+     */
+    boolean needsContext() {
+        return needsContext;
+    }
+
+    /**
+     * Returns the {@link AncestorFilter} keys that the ancestors of a
+     * matching element must have. The array must not be modified.
+     */
+    int[] getAncestorKeys() {
+        return ancestorKeys;
+    }
+
+    /**
+     * Returns whether matching may backtrack: with two combinators that
+     * each scan any number of elements (as in {@code a b c}), a failing
+     * match can take time quadratic in the depth of the document.
+     */
+    boolean isBacktracking() {
+        return backtracking;
+    }
+
+    /**
+     * Returns whether the leftmost compound is related to the context
+     * as a sibling, in which case candidates are not descendants of
+     * the context.
+     */
+    boolean isSiblingRelative() {
+        return leading != null && leading.isSibling();
+    }
+
+    /**
+     * Returns the index of the first compound containing a positional
+     * pseudo, or -1 if none does.
+     */
+    int getFirstPositionalCompound() {
+        for (int i = 0; i < compounds.size(); ++i) {
+            if (compounds.get(i).getFirstPositional() >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the selector consisting of the compounds before
+     * {@code index}, followed by the first {@code count} simple
+     * selectors of the compound at {@code index}.
+     */
+    ComplexSelector prefix(int index, int count) {
+        ImmutableList<CompoundSelector> head = ImmutableList.<CompoundSelector>builder()
+                .addAll(compounds.subList(0, index))
+                .add(compounds.get(index).head(count))
+                .build();
+        return new ComplexSelector(leading, head, combinators.subList(0, index));
+    }
+
+    /**
+     * Returns the selector consisting of the compounds after
+     * {@code index}, led by the combinator that followed it.
+     */
+    ComplexSelector suffix(int index) {
+        return new ComplexSelector(combinators.get(index),
+                compounds.subList(index + 1, compounds.size()),
+                combinators.subList(index + 1, combinators.size()));
+    }
+
+    boolean matches(Element elem, Node context, MatchContext cx) {
+        return matchesAt(compounds.size() - 1, elem, context, cx);
+    }
+
+    private boolean matchesAt(int index, Element elem, Node context, MatchContext cx) {
+        cx.step();
+        if (!compounds.get(index).matches(elem, cx)) {
+            return false;
+        }
+        if (index == 0) {
+            return matchesLeading(elem, context);
+        }
+        switch (combinators.get(index - 1)) {
+        case CHILD: {
+            Element parent = Nodes.parentElement(elem);
+            return parent != null && matchesAt(index - 1, parent, context, cx);
+        }
+        case DESCENDANT:
+            for (Element anc = Nodes.parentElement(elem); anc != null; anc = Nodes.parentElement(anc)) {
+                if (matchesAt(index - 1, anc, context, cx)) {
+                    return true;
+                }
+            }
+            return false;
+        case ADJACENT: {
+            Element sib = Nodes.previousElement(elem);
+            return sib != null && matchesAt(index - 1, sib, context, cx);
+        }
+        case SIBLING:
+            for (Element sib = Nodes.previousElement(elem); sib != null; sib = Nodes.previousElement(sib)) {
+                if (matchesAt(index - 1, sib, context, cx)) {
+                    return true;
+                }
+            }
+            return false;
+        default:
+            throw new AssertionError(combinators.get(index - 1));
+        }
+    }
+
+    private boolean matchesLeading(Element elem, Node context) {
+        if (leading == null) {
+            return true;
+        }
+        switch (leading) {
+        case CHILD:
+            return elem.getParentNode() == context;
+        case ADJACENT:
+            return Nodes.previousElement(elem) == context;
+        case SIBLING:
+            for (Element sib = Nodes.previousElement(elem); sib != null; sib = Nodes.previousElement(sib)) {
+                if (sib == context) {
+                    return true;
+                }
+            }
+            return false;
+        default:
+            return Nodes.isDescendant(elem, context);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (leading != null) {
+            sb.append(leading).append(' ');
+        }
+        for (int i = 0; i < compounds.size(); ++i) {
+            if (i > 0) {
+                Combinator combinator = combinators.get(i - 1);
+                sb.append(combinator == Combinator.DESCENDANT ? " " : " " + combinator + " ");
+            }
+            sb.append(compounds.get(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import org.w3c.dom.Element;
+
+/**
+ * A sequence of simple selectors not separated by combinators, such as
+ * {@code p[id=hello]:first-child}. An empty sequence stands for the
+ * universal selector.
+ */
+final class CompoundSelector {
+    private final ImmutableList<SimpleSelector> simples;
+    private final int firstPositional;
+
+    CompoundSelector(List<SimpleSelector> simples) {
+        this.simples = ImmutableList.copyOf(simples);
+        int index = -1;
+        for (int i = 0; i < this.simples.size(); ++i) {
+            if (this.simples.get(i).isPositional()) {
+                index = i;
+                break;
+            }
+        }
+        this.firstPositional = index;
+    }
+
+    ImmutableList<SimpleSelector> getSimples() {
+        return simples;
+    }
+
+    /**
+     * Returns the index of the first positional pseudo in this
+     * compound, or -1 if there is none.
+     */
+    int getFirstPositional() {
+        return firstPositional;
+    }
+
+    boolean needsContext() {
+        for (SimpleSelector simple : simples) {
+            if (simple.needsContext()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matches(Element elem, MatchContext cx) {
+        for (int i = 0, n = simples.size(); i < n; ++i) {
+            if (!simples.get(i).matches(elem, cx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    CompoundSelector head(int count) {
+        return new CompoundSelector(simples.subList(0, count));
+    }
+
+    @Override
+    public String toString() {
+        return simples.isEmpty() ? "*" : Joiner.on("").join(simples);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The position (ordinal) of each element of a document in document
+ * order, numbered once so that results can be sorted and de-duplicated
+ * by comparing ints, rather than by calling
+ * {@code compareDocumentPosition} (which walks up the parents of both
+ * nodes) for every comparison. The ordinals are held in an identity
+ * hash table of primitive ints, since DOM nodes are not required to
+ * implement {@code hashCode} sensibly.
+ *
+ * <p>The numbering is not updated if the document changes; elements
+ * added since are simply not numbered. Instances are immutable, and may
+ * be shared between threads.
+ */
+public final class DocumentOrder {
+    private static final Comparator<Node> COMPARATOR = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            if (a == b) {
+                return 0;
+            }
+            short position = a.compareDocumentPosition(b);
+            if ((position & Node.DOCUMENT_POSITION_FOLLOWING) != 0) {
+                return -1;
+            }
+            if ((position & Node.DOCUMENT_POSITION_PRECEDING) != 0) {
+                return 1;
+            }
+            return 0;
+        }
+    };
+
+    private final Document doc;
+    private final Element[] elements;
+    private final Element[] keys;
+    private final int[] ordinals;
+
+    /**
+     * Numbers every element of the given document.
+     */
+    public DocumentOrder(Document doc) {
+        this(doc, collect(doc));
+    }
+
+    /**
+     * @param elements every element of the document, in document order
+     */
+    DocumentOrder(Document doc, List<Element> elements) {
+        this.doc = doc;
+        this.elements = elements.toArray(new Element[elements.size()]);
+        // A power of two at least twice the size, so probe runs stay short.
+        int capacity = Integer.highestOneBit(Math.max(2 * this.elements.length, 2) - 1) << 1;
+        this.keys = new Element[capacity];
+        this.ordinals = new int[capacity];
+        for (int i = 0; i < this.elements.length; ++i) {
+            int slot = slot(this.elements[i]);
+            while (keys[slot] != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            keys[slot] = this.elements[i];
+            ordinals[slot] = i;
+        }
+    }
+
+    private static List<Element> collect(Document doc) {
+        List<Element> elements = new ArrayList<>();
+        for (Element elem = Nodes.followingElement(doc, doc); elem != null;
+                elem = Nodes.followingElement(elem, doc)) {
+            elements.add(elem);
+        }
+        return elements;
+    }
+
+    private int slot(Object node) {
+        int hash = System.identityHashCode(node);
+        return (hash ^ (hash >>> 16)) & (keys.length - 1);
+    }
+
+    public Document getDocument() {
+        return doc;
+    }
+
+    /**
+     * Returns the number of elements numbered.
+     */
+    public int size() {
+        return elements.length;
+    }
+
+    /**
+     * Returns the element with the given ordinal.
+     *
+     * @throws IndexOutOfBoundsException if there is none
+     */
+    public Element get(int ordinal) {
+        return elements[ordinal];
+    }
+
+    /**
+     * Returns the ordinal of the given node, or -1 if it is not a
+     * numbered element.
+     */
+    public int indexOf(Node node) {
+        for (int slot = slot(node); keys[slot] != null; slot = (slot + 1) & (keys.length - 1)) {
+            if (keys[slot] == node) {
+                return ordinals[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the given elements in document order, without duplicates,
+     * or null if some are not numbered. Large results are sorted by
+     * marking their ordinals in a bit set, small ones by sorting their
+     * ordinals.
+     */
+    public List<Element> sort(Collection<? extends Element> elems) {
+        int[] found = new int[elems.size()];
+        int n = 0;
+        for (Element elem : elems) {
+            int ordinal = indexOf(elem);
+            if (ordinal < 0) {
+                return null;
+            }
+            found[n++] = ordinal;
+        }
+        List<Element> result = new ArrayList<>(n);
+        if (n > elements.length / 64) {
+            BitSet bits = new BitSet(elements.length);
+            for (int i = 0; i < n; ++i) {
+                bits.set(found[i]);
+            }
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                result.add(elements[i]);
+            }
+        } else {
+            Arrays.sort(found);
+            for (int i = 0; i < n; ++i) {
+                if (i == 0 || found[i] != found[i - 1]) {
+                    result.add(elements[found[i]]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given elements in document order, without duplicates,
+     * using the ordinals of {@code order} if it is not null and has
+     * numbered them all, or {@code compareDocumentPosition} otherwise.
+     */
+    public static List<Element> uniqueSort(Collection<? extends Element> elems,
+            DocumentOrder order) {
+        if (order != null) {
+            List<Element> result = order.sort(elems);
+            if (result != null) {
+                return result;
+            }
+        }
+        List<Element> result = unique(elems);
+        Collections.sort(result, COMPARATOR);
+        return result;
+    }
+
+    /**
+     * Returns the given elements without duplicates, in the order each
+     * first appears.
+     */
+    public static List<Element> unique(Collection<? extends Element> elems) {
+        Set<Element> seen = Sets.newIdentityHashSet();
+        List<Element> result = new ArrayList<>(elems.size());
+        for (Element elem : elems) {
+            if (seen.add(elem)) {
+                result.add(elem);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * An index of the elements of one document by tag name, {@code id},
+ * {@code class} token, and the values of any other attributes chosen
+ * when it is built. Each list of elements is in document order.
+ *
+ * <p>Its main use is {@link #getCandidates}, which finds the few
+ * elements a selector can match from the index, so that selection only
+ * has to check those, rather than walking the whole tree. This helps
+ * most on XML documents, where Sizzle cannot use the DOM's own id and
+ * class lookups, and so otherwise scans every element for selectors
+ * such as {@code [id=x]} or {@code .y}.
+ *
+ * <p>The index is built once, and is not updated if the document
+ * changes. Instances are immutable, and may be shared between threads.
+ */
+public final class ElementIndex {
+    private final Document doc;
+    private final DocumentOrder order;
+    private final ImmutableListMultimap<String, Element> byTag;
+    private final ImmutableListMultimap<String, String> tagsByLowerCase;
+    private final ImmutableListMultimap<String, Element> byId;
+    private final ImmutableListMultimap<String, Element> byClass;
+    private final ImmutableMap<String, ImmutableListMultimap<String, Element>> byAttribute;
+
+    /**
+     * Indexes every element of the given document.
+     *
+     * @param attributes the names of any attributes, besides {@code id}
+     * and {@code class}, whose values should be indexed
+     */
+    public ElementIndex(Document doc, String... attributes) {
+        this.doc = doc;
+        ImmutableListMultimap.Builder<String, Element> byTag = ImmutableListMultimap.builder();
+        ImmutableListMultimap.Builder<String, Element> byId = ImmutableListMultimap.builder();
+        ImmutableListMultimap.Builder<String, Element> byClass = ImmutableListMultimap.builder();
+        Map<String, ImmutableListMultimap.Builder<String, Element>> byAttribute
+                = Maps.newLinkedHashMap();
+        for (String name : attributes) {
+            byAttribute.put(name, ImmutableListMultimap.<String, Element>builder());
+        }
+        List<Element> elements = new ArrayList<>();
+        for (Element elem = Nodes.followingElement(doc, doc); elem != null;
+                elem = Nodes.followingElement(elem, doc)) {
+            elements.add(elem);
+            byTag.put(elem.getNodeName(), elem);
+            Attr id = elem.getAttributeNode("id");
+            if (id != null) {
+                byId.put(id.getValue(), elem);
+            }
+            Attr classes = elem.getAttributeNode("class");
+            if (classes != null) {
+                for (String token : splitClasses(classes.getValue())) {
+                    byClass.put(token, elem);
+                }
+            }
+            for (Map.Entry<String, ImmutableListMultimap.Builder<String, Element>> entry
+                    : byAttribute.entrySet()) {
+                Attr attr = elem.getAttributeNode(entry.getKey());
+                if (attr != null) {
+                    entry.getValue().put(attr.getValue(), elem);
+                }
+            }
+        }
+        this.order = new DocumentOrder(doc, elements);
+        this.byTag = byTag.build();
+        ImmutableListMultimap.Builder<String, String> tagsByLowerCase
+                = ImmutableListMultimap.builder();
+        for (String tag : this.byTag.keySet()) {
+            tagsByLowerCase.put(tag.toLowerCase(Locale.ROOT), tag);
+        }
+        this.tagsByLowerCase = tagsByLowerCase.build();
+        this.byId = byId.build();
+        this.byClass = byClass.build();
+        ImmutableMap.Builder<String, ImmutableListMultimap<String, Element>> built
+                = ImmutableMap.builder();
+        for (Map.Entry<String, ImmutableListMultimap.Builder<String, Element>> entry
+                : byAttribute.entrySet()) {
+            built.put(entry.getKey(), entry.getValue().build());
+        }
+        this.byAttribute = built.build();
+    }
+
+    /**
+     * Returns the distinct whitespace-separated tokens of a
+     * {@code class} attribute.
+     */
+    static ImmutableSet<String> splitClasses(String value) {
+        ImmutableSet.Builder<String> tokens = ImmutableSet.builder();
+        int start = -1;
+        for (int i = 0; i <= value.length(); ++i) {
+            if (i == value.length() || Nodes.isWhitespace(value.charAt(i))) {
+                if (start >= 0) {
+                    tokens.add(value.substring(start, i));
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        return tokens.build();
+    }
+
+    private static boolean isToken(String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            if (Nodes.isWhitespace(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Document getDocument() {
+        return doc;
+    }
+
+    /**
+     * Returns the document-order numbering of the elements, which is
+     * built along with the index.
+     */
+    public DocumentOrder getDocumentOrder() {
+        return order;
+    }
+
+    /**
+     * Returns the names of the attributes indexed besides {@code id}
+     * and {@code class}.
+     */
+    public ImmutableSet<String> getAttributes() {
+        return byAttribute.keySet();
+    }
+
+    /**
+     * Returns the elements with the given tag name, which is compared
+     * case-sensitively.
+     */
+    public List<Element> getElementsByTagName(String name) {
+        return byTag.get(name);
+    }
+
+    public List<Element> getElementsById(String id) {
+        return byId.get(id);
+    }
+
+    public List<Element> getElementsByClassName(String className) {
+        return byClass.get(className);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the attribute was not chosen
+     * to be indexed
+     */
+    public List<Element> getElementsByAttribute(String name, String value) {
+        ImmutableListMultimap<String, Element> values = byAttribute.get(name);
+        Preconditions.checkArgument(values != null, "Attribute not indexed: %s", name);
+        return values.get(value);
+    }
+
+    /**
+     * Returns, in document order, the indexed elements within
+     * {@code context} that include every element the selectors can
+     * match there, or null if the index cannot narrow them down. This
+     * is the case unless no selector in the list starts with a
+     * combinator or uses positional pseudos, and each has a compound
+     * with a type, id, or class selector, or an
+     * attribute selector that tests for an indexed value (with
+     * {@code =}, or {@code ~=} for {@code class}). For the rightmost
+     * compound, the elements found are the candidates; for a compound
+     * related to it by descendant and child combinators only, their
+     * descendants are. Whichever gives the fewest candidates is used;
+     * the candidates of several selectors are merged by their ordinals.
+     */
+    public List<Element> getCandidates(SelectorList selectors, Node context) {
+        return getCandidates(selectors, context, false);
+    }
+
+    /**
+     * Same as {@link #getCandidates(SelectorList, Node)}, but for use as
+     * a seed for Sizzle, which compares tag names differently: in the
+     * compounds left of the rightmost, it ignores case; in the rightmost,
+     * it may or may not, depending on how it finds its own candidates.
+     * So tag names in the other compounds are looked up ignoring case,
+     * and if a tag name in the rightmost compound differs only in case
+     * from one in the document, the index does not narrow that selector
+     * down at all.
+     */
+    public List<Element> getSizzleCandidates(SelectorList selectors, Node context) {
+        return getCandidates(selectors, context, true);
+    }
+
+    private List<Element> getCandidates(SelectorList selectors, Node context, boolean sizzle) {
+        if (context != doc && context.getOwnerDocument() != doc) {
+            return null;
+        }
+        List<ComplexSelector> list = selectors.getSelectors();
+        if (list.isEmpty() || selectors.isRelative() || selectors.needsContext()) {
+            return null;
+        }
+        List<Element> best;
+        if (list.size() == 1) {
+            best = getCandidates(list.get(0), sizzle);
+        } else {
+            List<Element> all = new ArrayList<>();
+            for (ComplexSelector selector : list) {
+                List<Element> found = getCandidates(selector, sizzle);
+                if (found == null) {
+                    return null;
+                }
+                all.addAll(found);
+            }
+            best = order.sort(all);
+        }
+        if (best == null || context == doc) {
+            return best;
+        }
+        List<Element> result = new ArrayList<>();
+        for (Element elem : best) {
+            if (Nodes.isDescendant(elem, context)) {
+                result.add(elem);
+            }
+        }
+        return result;
+    }
+
+    private List<Element> getCandidates(ComplexSelector selector, boolean sizzle) {
+        List<CompoundSelector> compounds = selector.getCompounds();
+        List<Combinator> combinators = selector.getCombinators();
+        int last = compounds.size() - 1;
+        if (sizzle && hasCaseVariant(compounds.get(last))) {
+            return null;
+        }
+        List<Element> best = lookup(compounds.get(last), false);
+        List<Element> outer = null;
+        for (int i = last - 1; i >= 0 && !combinators.get(i).isSibling(); --i) {
+            List<Element> found = lookup(compounds.get(i), sizzle);
+            if (found != null && (outer == null || found.size() < outer.size())) {
+                outer = found;
+            }
+        }
+        if (outer != null && (best == null || outer.size() < best.size())) {
+            List<Element> within = descendants(outer, best == null ? -1 : best.size());
+            if (within != null) {
+                best = within;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the indexed elements that match the simple selector with
+     * the fewest elements among those of the compound, or null if none
+     * can be looked up.
+     *
+     * @param ignoreCase whether to look up tag names ignoring case
+     */
+    private List<Element> lookup(CompoundSelector compound, boolean ignoreCase) {
+        List<Element> best = null;
+        for (SimpleSelector simple : compound.getSimples()) {
+            List<Element> found = lookup(simple, ignoreCase);
+            if (found != null && (best == null || found.size() < best.size())) {
+                best = found;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the descendants of the given elements, in document order,
+     * or null if there are more than {@code limit} (unless it is
+     * negative).
+     */
+    private static List<Element> descendants(List<Element> elems, int limit) {
+        List<Element> result = new ArrayList<>();
+        Element previous = null;
+        for (Element elem : elems) {
+            if (previous != null && Nodes.isDescendant(elem, previous)) {
+                continue;
+            }
+            previous = elem;
+            for (Element desc = Nodes.followingElement(elem, elem); desc != null;
+                    desc = Nodes.followingElement(desc, elem)) {
+                if (limit >= 0 && result.size() >= limit) {
+                    return null;
+                }
+                result.add(desc);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the compound has a type selector that differs only
+     * in case from some tag name in the document.
+     */
+    private boolean hasCaseVariant(CompoundSelector compound) {
+        for (SimpleSelector simple : compound.getSimples()) {
+            if (simple instanceof TypeSelector) {
+                String name = ((TypeSelector) simple).getName();
+                for (String tag : tagsByLowerCase.get(name.toLowerCase(Locale.ROOT))) {
+                    if (!tag.equals(name)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the elements whose tag name equals the given one, ignoring
+     * case, in document order.
+     */
+    private List<Element> getElementsByTagNameIgnoreCase(String name) {
+        ImmutableList<String> tags = tagsByLowerCase.get(name.toLowerCase(Locale.ROOT));
+        if (tags.size() <= 1) {
+            return tags.isEmpty() ? ImmutableList.<Element>of() : byTag.get(tags.get(0));
+        }
+        List<Element> all = new ArrayList<>();
+        for (String tag : tags) {
+            all.addAll(byTag.get(tag));
+        }
+        return order.sort(all);
+    }
+
+    private List<Element> lookup(SimpleSelector simple, boolean ignoreCase) {
+        if (simple instanceof TypeSelector) {
+            String name = ((TypeSelector) simple).getName();
+            return ignoreCase ? getElementsByTagNameIgnoreCase(name) : byTag.get(name);
+        }
+        if (simple instanceof IdSelector) {
+            return byId.get(((IdSelector) simple).getId());
+        }
+        if (simple instanceof ClassSelector) {
+            return byClass.get(((ClassSelector) simple).getClassName());
+        }
+        if (!(simple instanceof AttributeSelector)) {
+            return null;
+        }
+        AttributeSelector attr = (AttributeSelector) simple;
+        String name = attr.getName();
+        String value = attr.getValue();
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        switch (attr.getOperator()) {
+        case EQUALS:
+            if (name.equals("id")) {
+                return byId.get(value);
+            }
+            ImmutableListMultimap<String, Element> values = byAttribute.get(name);
+            return values == null ? null : values.get(value);
+        case INCLUDES:
+            return name.equals("class") && isToken(value) ? byClass.get(value) : null;
+        default:
+            return null;
+        }
+    }
+}
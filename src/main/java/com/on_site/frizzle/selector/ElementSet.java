@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.UnmodifiableIterator;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * An immutable set of elements of one document, held as a bit set over
+ * their {@link DocumentOrder} ordinals. Iteration is in document order.
+ * Union, intersection, and difference work a word (64 elements) at a
+ * time, so combining large results is cheap, and never hashes a DOM
+ * node; the set itself takes one bit per element of the document.
+ *
+ * <p>Sets can only be combined with others over the same numbering
+ * (that is, the same {@code DocumentOrder} instance).
+ */
+public final class ElementSet implements Iterable<Element> {
+    /**
+     * Collects the elements of a new set.
+     */
+    public static final class Builder {
+        private final DocumentOrder order;
+        private final BitSet bits;
+
+        private Builder(DocumentOrder order) {
+            this.order = Preconditions.checkNotNull(order);
+            this.bits = new BitSet(order.size());
+        }
+
+        /**
+         * @throws IllegalArgumentException if the element is not
+         * numbered
+         */
+        public Builder add(Element elem) {
+            int ordinal = order.indexOf(elem);
+            Preconditions.checkArgument(ordinal >= 0, "Element not numbered: %s", elem);
+            bits.set(ordinal);
+            return this;
+        }
+
+        public Builder addAll(Iterable<? extends Element> elems) {
+            for (Element elem : elems) {
+                add(elem);
+            }
+            return this;
+        }
+
+        public ElementSet build() {
+            return new ElementSet(order, (BitSet) bits.clone());
+        }
+    }
+
+    private final DocumentOrder order;
+    private final BitSet bits;
+    private final int size;
+
+    private ElementSet(DocumentOrder order, BitSet bits) {
+        this.order = order;
+        this.bits = bits;
+        this.size = bits.cardinality();
+    }
+
+    public static Builder builder(DocumentOrder order) {
+        return new Builder(order);
+    }
+
+    /**
+     * @throws IllegalArgumentException if some element is not numbered
+     */
+    public static ElementSet of(DocumentOrder order, Iterable<? extends Element> elems) {
+        return builder(order).addAll(elems).build();
+    }
+
+    public static ElementSet empty(DocumentOrder order) {
+        return new ElementSet(order, new BitSet());
+    }
+
+    public DocumentOrder getDocumentOrder() {
+        return order;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(Node node) {
+        int ordinal = order.indexOf(node);
+        return ordinal >= 0 && bits.get(ordinal);
+    }
+
+    private BitSet copyFor(ElementSet other) {
+        Preconditions.checkArgument(other.order == order,
+                "Sets are over different document numberings");
+        return (BitSet) bits.clone();
+    }
+
+    public ElementSet union(ElementSet other) {
+        BitSet result = copyFor(other);
+        result.or(other.bits);
+        return new ElementSet(order, result);
+    }
+
+    public ElementSet intersection(ElementSet other) {
+        BitSet result = copyFor(other);
+        result.and(other.bits);
+        return new ElementSet(order, result);
+    }
+
+    /**
+     * Returns the elements of this set that are not in {@code other}.
+     */
+    public ElementSet difference(ElementSet other) {
+        BitSet result = copyFor(other);
+        result.andNot(other.bits);
+        return new ElementSet(order, result);
+    }
+
+    @Override
+    public Iterator<Element> iterator() {
+        return new UnmodifiableIterator<Element>() {
+            private int next = bits.nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public Element next() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                Element elem = order.get(next);
+                next = bits.nextSetBit(next + 1);
+                return elem;
+            }
+        };
+    }
+
+    /**
+     * Returns the elements in document order.
+     */
+    public Element[] toArray() {
+        Element[] result = new Element[size];
+        int i = 0;
+        for (int ordinal = bits.nextSetBit(0); ordinal >= 0;
+                ordinal = bits.nextSetBit(ordinal + 1)) {
+            result[i++] = order.get(ordinal);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ElementSet)) {
+            return false;
+        }
+        ElementSet other = (ElementSet) obj;
+        return order == other.order && bits.equals(other.bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return bits.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ElementSet" + bits;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import org.w3c.dom.Element;
+
+/**
+ * An {@code #id} selector, which matches against the {@code id}
+ * attribute (since XML documents do not generally declare ID types).
+ */
+final class IdSelector extends SimpleSelector {
+    private final String id;
+
+    IdSelector(String id) {
+        this.id = id;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    @Override
+    boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    boolean matches(Element elem, MatchContext cx) {
+        return id.equals(elem.getAttribute("id"));
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.Locale;
+
+import org.w3c.dom.Element;
+
+/**
+ * The {@code :lang(code)} pseudo, which uses the nearest
+ * {@code xml:lang} or {@code lang} attribute.
+ */
+final class LangSelector extends PseudoClassSelector {
+    private final String lang;
+
+    LangSelector(String name, String argument, String lang) {
+        super(name, argument);
+        this.lang = lang.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    boolean matchesBuiltin(Element elem, MatchContext cx) {
+        for (Element cur = elem; cur != null; cur = Nodes.parentElement(cur)) {
+            String elemLang = cur.getAttribute("xml:lang");
+            if (elemLang.isEmpty()) {
+                elemLang = cur.getAttribute("lang");
+            }
+            if (!elemLang.isEmpty()) {
+                elemLang = elemLang.toLowerCase(Locale.ROOT);
+                return elemLang.equals(lang) || elemLang.startsWith(lang + "-");
+            }
+        }
+        return false;
+    }
+}
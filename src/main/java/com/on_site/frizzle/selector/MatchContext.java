@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Sets;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * State for a single top-level evaluation: resolved custom pseudos and
+ * memoised positional selections. Not thread-safe; a new instance is
+ * made for each call into {@link SelectorEvaluator}.
+ */
+final class MatchContext {
+    private final SelectorEvaluator evaluator;
+    private final Map<String, ? extends Function<String, ? extends Predicate<Element>>> pseudos;
+    private final Map<PseudoClassSelector, Optional<Predicate<Element>>> customs
+            = new IdentityHashMap<>();
+    private final Map<ComplexSelector, Set<Element>> selections = new IdentityHashMap<>();
+    private final SelectorEvaluator.Checkpoint checkpoint;
+    private AncestorFilter filter;
+    private Element previous;
+    private boolean unordered;
+    private int steps;
+
+    /**
+     * The number of steps between calls to the checkpoint, less one
+     * (a power of two, less one, so that it can be used as a mask).
+     */
+    private static final int CHECK_MASK = 1023;
+
+    MatchContext(SelectorEvaluator evaluator,
+            Map<String, ? extends Function<String, ? extends Predicate<Element>>> pseudos) {
+        this.evaluator = evaluator;
+        this.pseudos = pseudos;
+        this.checkpoint = evaluator.getCheckpoint();
+    }
+
+    /**
+     * Counts a step of matching, calling the evaluator's checkpoint (if
+     * it has one) every so many steps.
+     */
+    void step() {
+        if (checkpoint != null && (++steps & CHECK_MASK) == 0) {
+            checkpoint.check();
+        }
+    }
+
+    /**
+     * Returns the custom pseudo that overrides the given selector, or
+     * null if there is none. As in Sizzle, the pseudo is looked up
+     * first by its exact name and then by its lowercased name.
+     */
+    Predicate<Element> getCustomPseudo(PseudoClassSelector selector) {
+        if (pseudos.isEmpty()) {
+            return null;
+        }
+        Optional<Predicate<Element>> custom = customs.get(selector);
+        if (custom == null) {
+            String name = selector.getName();
+            Function<String, ? extends Predicate<Element>> pseudo = pseudos.get(name);
+            if (pseudo == null) {
+                pseudo = pseudos.get(name.toLowerCase(Locale.ROOT));
+            }
+            custom = pseudo == null ? Optional.<Predicate<Element>>absent()
+                    : Optional.<Predicate<Element>>of(pseudo.apply(selector.getArgument()));
+            customs.put(selector, custom);
+        }
+        return custom.orNull();
+    }
+
+    /**
+     * Returns whether {@code elem} follows the element last given to
+     * this method in document order (or is the same one), as it has
+     * for every element so far, in which case {@link #mightMatch} may
+     * be used for it. The ancestor filter is only worth keeping up to
+     * date for elements in document order (as in a walk, or a filter
+     * over a list in document order), since moving it then only
+     * rehashes the ancestors that differ; for a lone element, building
+     * it costs more than the walk up that it might save.
+     */
+    boolean isInOrder(Element elem) {
+        Element prev = previous;
+        previous = elem;
+        if (prev == null || unordered) {
+            return false;
+        }
+        if (filter == null) {
+            filter = new AncestorFilter();
+        }
+        if (filter.isNear(elem)) {
+            return true;
+        }
+        if (prev == elem) {
+            return false;
+        }
+        if ((prev.compareDocumentPosition(elem) & Node.DOCUMENT_POSITION_FOLLOWING) != 0) {
+            return true;
+        }
+        unordered = true;
+        return false;
+    }
+
+    /**
+     * Returns whether the ancestors of {@code elem}, which must be in
+     * order as given by {@link #isInOrder}, might match the given
+     * selector, using a filter shared by the matches made in this
+     * context.
+     */
+    boolean mightMatch(Element elem, ComplexSelector selector) {
+        filter.moveTo(elem);
+        return filter.mightMatch(selector);
+    }
+
+    boolean matches(Element elem, SelectorList selectors) {
+        return evaluator.matches(elem, selectors.getSelectors(), this);
+    }
+
+    boolean exists(SelectorList selectors, Node context) {
+        return evaluator.exists(selectors.getSelectors(), context, this);
+    }
+
+    /**
+     * Returns the (memoised) set of elements in the document matching
+     * a selector that needs context.
+     */
+    Set<Element> getSelection(ComplexSelector selector, Node document) {
+        Set<Element> selection = selections.get(selector);
+        if (selection == null) {
+            List<Element> elems = evaluator.selectPositional(selector, document, this);
+            selection = Sets.newIdentityHashSet();
+            selection.addAll(elems);
+            selections.put(selector, selection);
+        }
+        return selection;
+    }
+}
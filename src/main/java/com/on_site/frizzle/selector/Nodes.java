@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Allocation-free DOM traversal helpers. These walk sibling and parent
+ * links directly rather than going through {@code NodeList}s.
+ */
+final class Nodes {
+    private Nodes() {
+        /* Disable instantiation for static class. */
+    }
+
+    static Element previousElement(Node node) {
+        for (Node sib = node.getPreviousSibling(); sib != null; sib = sib.getPreviousSibling()) {
+            if (sib.getNodeType() == Node.ELEMENT_NODE) {
+                return (Element) sib;
+            }
+        }
+        return null;
+    }
+
+    static Element nextElement(Node node) {
+        for (Node sib = node.getNextSibling(); sib != null; sib = sib.getNextSibling()) {
+            if (sib.getNodeType() == Node.ELEMENT_NODE) {
+                return (Element) sib;
+            }
+        }
+        return null;
+    }
+
+    static Element parentElement(Node node) {
+        Node parent = node.getParentNode();
+        return parent != null && parent.getNodeType() == Node.ELEMENT_NODE
+                ? (Element) parent : null;
+    }
+
+    /**
+     * Returns the node following {@code node} in document order, without
+     * leaving the subtree rooted at {@code root}.
+     */
+    static Node following(Node node, Node root) {
+        Node next = node.getFirstChild();
+        if (next != null) {
+            return next;
+        }
+        for (Node cur = node; cur != root && cur != null; cur = cur.getParentNode()) {
+            next = cur.getNextSibling();
+            if (next != null) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the element following {@code node} in document order,
+     * without leaving the subtree rooted at {@code root}.
+     */
+    static Element followingElement(Node node, Node root) {
+        for (Node next = following(node, root); next != null; next = following(next, root)) {
+            if (next.getNodeType() == Node.ELEMENT_NODE) {
+                return (Element) next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether {@code node} is a strict descendant of
+     * {@code ancestor}.
+     */
+    static boolean isDescendant(Node node, Node ancestor) {
+        for (Node cur = node.getParentNode(); cur != null; cur = cur.getParentNode()) {
+            if (cur == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f';
+    }
+}
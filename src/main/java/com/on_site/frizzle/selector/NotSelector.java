@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import org.w3c.dom.Element;
+
+/**
+ * The {@code :not(selector)} pseudo, which accepts any selector list.
+ */
+final class NotSelector extends PseudoClassSelector {
+    private final SelectorList inner;
+
+    NotSelector(String name, String argument, SelectorList inner) {
+        super(name, argument);
+        this.inner = inner;
+    }
+
+    @Override
+    boolean matchesBuiltin(Element elem, MatchContext cx) {
+        return !cx.matches(elem, inner);
+    }
+
+    @Override
+    boolean needsContext() {
+        return inner.needsContext();
+    }
+
+    /**
+     * Returns whether the inner selectors are streamable themselves,
+     * and relate their compounds through ancestors only.
+     */
+    @Override
+    boolean isStreamable() {
+        for (ComplexSelector selector : inner.getSelectors()) {
+            if (selector.getLeading() != null) {
+                return false;
+            }
+            for (Combinator combinator : selector.getCombinators()) {
+                if (combinator.isSibling()) {
+                    return false;
+                }
+            }
+            for (CompoundSelector compound : selector.getCompounds()) {
+                for (SimpleSelector simple : compound.getSimples()) {
+                    if (!simple.isStreamable()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
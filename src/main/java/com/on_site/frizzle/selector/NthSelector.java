@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import org.w3c.dom.Element;
+
+/**
+ * The structural pseudos: {@code :first-child}, {@code :last-child},
+ * {@code :only-child}, {@code :nth-child(an+b)},
+ * {@code :nth-last-child(an+b)}, and their {@code -of-type}
+ * counterparts.
+ */
+final class NthSelector extends SimpleSelector {
+    enum Kind {
+        FIRST, LAST, ONLY, NTH, NTH_LAST
+    }
+
+    private final String source;
+    private final Kind kind;
+    private final boolean ofType;
+    private final int a;
+    private final int b;
+
+    NthSelector(String source, Kind kind, boolean ofType, int a, int b) {
+        this.source = source;
+        this.kind = kind;
+        this.ofType = ofType;
+        this.a = a;
+        this.b = b;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    boolean isOfType() {
+        return ofType;
+    }
+
+    /**
+     * Returns whether this selector only depends on the element's
+     * preceding siblings ({@code :first-child}, {@code :nth-child}, and
+     * their {@code -of-type} counterparts).
+     */
+    boolean isForward() {
+        return kind == Kind.FIRST || kind == Kind.NTH;
+    }
+
+    /**
+     * Tests the element's one-based index among its siblings (or its
+     * siblings of the same type), which the caller has counted, for a
+     * {@linkplain #isForward forward} selector.
+     */
+    boolean matchesForward(int index) {
+        return kind == Kind.FIRST ? index == 1 : matchesIndex(index);
+    }
+
+    @Override
+    boolean matches(Element elem, MatchContext cx) {
+        switch (kind) {
+        case FIRST:
+            return previous(elem) == null;
+        case LAST:
+            return next(elem) == null;
+        case ONLY:
+            return previous(elem) == null && next(elem) == null;
+        case NTH:
+            return matchesIndex(index(elem));
+        case NTH_LAST:
+            return matchesIndex(lastIndex(elem));
+        default:
+            throw new AssertionError(kind);
+        }
+    }
+
+    /**
+     * Tests a one-based index against {@code an+b}, with exactly the
+     * arithmetic Sizzle uses.
+     */
+    boolean matchesIndex(int index) {
+        int diff = index - b;
+        return diff == a || (a != 0 && diff % a == 0 && diff / a >= 0);
+    }
+
+    Element previous(Element elem) {
+        Element sib = Nodes.previousElement(elem);
+        if (ofType) {
+            while (sib != null && !sameType(sib, elem)) {
+                sib = Nodes.previousElement(sib);
+            }
+        }
+        return sib;
+    }
+
+    Element next(Element elem) {
+        Element sib = Nodes.nextElement(elem);
+        if (ofType) {
+            while (sib != null && !sameType(sib, elem)) {
+                sib = Nodes.nextElement(sib);
+            }
+        }
+        return sib;
+    }
+
+    private int index(Element elem) {
+        int index = 1;
+        for (Element sib = previous(elem); sib != null; sib = previous(sib)) {
+            ++index;
+        }
+        return index;
+    }
+
+    private int lastIndex(Element elem) {
+        int index = 1;
+        for (Element sib = next(elem); sib != null; sib = next(sib)) {
+            ++index;
+        }
+        return index;
+    }
+
+    private static boolean sameType(Element a, Element b) {
+        return a.getNodeName().equals(b.getNodeName());
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.w3c.dom.Element;
+
+/**
+ * Sizzle's positional pseudos ({@code :first}, {@code :last},
+ * {@code :eq(n)}, {@code :even}, {@code :odd}, {@code :lt(n)}, and
+ * {@code :gt(n)}). These pick elements by their index within the set
+ * matched so far, so they cannot be tested on single elements.
+ */
+final class PositionalSelector extends SimpleSelector {
+    enum Kind {
+        FIRST, LAST, EQ, EVEN, ODD, LT, GT;
+
+        static Kind forName(String name) {
+            switch (name) {
+            case "first":
+                return FIRST;
+            case "last":
+                return LAST;
+            case "eq":
+            case "nth":
+                return EQ;
+            case "even":
+                return EVEN;
+            case "odd":
+                return ODD;
+            case "lt":
+                return LT;
+            case "gt":
+                return GT;
+            default:
+                return null;
+            }
+        }
+    }
+
+    private final String source;
+    private final Kind kind;
+    private final Integer argument;
+
+    /**
+     * @param argument the numeric argument, or null if it was absent
+     * or not a number (in which case {@code :eq}, {@code :lt}, and
+     * {@code :gt} select nothing)
+     */
+    PositionalSelector(String source, Kind kind, Integer argument) {
+        this.source = source;
+        this.kind = kind;
+        this.argument = argument;
+    }
+
+    @Override
+    boolean matches(Element elem, MatchContext cx) {
+        throw new UnsupportedOperationException("positional pseudos filter sets, not elements");
+    }
+
+    @Override
+    boolean isPositional() {
+        return true;
+    }
+
+    List<Element> filter(List<Element> elems) {
+        int length = elems.size();
+        switch (kind) {
+        case FIRST:
+            return length == 0 ? elems : elems.subList(0, 1);
+        case LAST:
+            return length == 0 ? elems : elems.subList(length - 1, length);
+        case EQ: {
+            if (argument == null) {
+                return ImmutableList.of();
+            }
+            int index = argument < 0 ? argument + length : argument;
+            return index >= 0 && index < length
+                    ? elems.subList(index, index + 1) : ImmutableList.<Element>of();
+        }
+        case EVEN:
+        case ODD: {
+            List<Element> result = new ArrayList<>((length + 1) / 2);
+            for (int i = kind == Kind.EVEN ? 0 : 1; i < length; i += 2) {
+                result.add(elems.get(i));
+            }
+            return result;
+        }
+        case LT: {
+            if (argument == null) {
+                return ImmutableList.of();
+            }
+            int end = argument < 0 ? argument + length : Math.min(argument, length);
+            return elems.subList(0, Math.max(end, 0));
+        }
+        case GT: {
+            if (argument == null) {
+                return ImmutableList.of();
+            }
+            int start = (argument < 0 ? argument + length : argument) + 1;
+            return elems.subList(Math.min(Math.max(start, 0), length), length);
+        }
+        default:
+            throw new AssertionError(kind);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.Locale;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The built-in argumentless Sizzle pseudos. Those that depend on
+ * browser-only state (such as {@code :focus} or {@code :checked}) never
+ * match a Java DOM element, just as they don't when Sizzle runs over
+ * one.
+ */
+final class PseudoSelector extends PseudoClassSelector {
+    enum Kind {
+        ROOT, EMPTY, PARENT, HEADER, INPUT, BUTTON, NEVER;
+
+        static Kind forName(String name) {
+            switch (name) {
+            case "root":
+                return ROOT;
+            case "empty":
+                return EMPTY;
+            case "parent":
+                return PARENT;
+            case "header":
+                return HEADER;
+            case "input":
+                return INPUT;
+            case "button":
+                return BUTTON;
+            case "target":
+            case "focus":
+            case "enabled":
+            case "disabled":
+            case "checked":
+            case "selected":
+            case "text":
+            case "radio":
+            case "checkbox":
+            case "file":
+            case "password":
+            case "image":
+            case "submit":
+            case "reset":
+                return NEVER;
+            default:
+                return null;
+            }
+        }
+    }
+
+    private final Kind kind;
+
+    PseudoSelector(String name, Kind kind) {
+        super(name, null);
+        this.kind = kind;
+    }
+
+    /**
+     * Returns true except for {@code :empty} and {@code :parent}, which
+     * depend on the element's children.
+     */
+    @Override
+    boolean isStreamable() {
+        return kind != Kind.EMPTY && kind != Kind.PARENT;
+    }
+
+    @Override
+    boolean matchesBuiltin(Element elem, MatchContext cx) {
+        switch (kind) {
+        case ROOT:
+            return elem == elem.getOwnerDocument().getDocumentElement();
+        case EMPTY:
+            return isEmpty(elem);
+        case PARENT:
+            return !isEmpty(elem);
+        case HEADER:
+            return isHeader(elem.getNodeName());
+        case INPUT:
+            switch (elem.getNodeName().toLowerCase(Locale.ROOT)) {
+            case "input":
+            case "select":
+            case "textarea":
+            case "button":
+                return true;
+            default:
+                return false;
+            }
+        case BUTTON:
+            return elem.getNodeName().equalsIgnoreCase("button");
+        case NEVER:
+            return false;
+        default:
+            throw new AssertionError(kind);
+        }
+    }
+
+    /**
+     * Sizzle considers an element empty if it has no children other
+     * than comments and processing instructions.
+     */
+    private static boolean isEmpty(Element elem) {
+        for (Node child = elem.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() < Node.ENTITY_NODE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHeader(String name) {
+        return name.length() == 2 && (name.charAt(0) == 'h' || name.charAt(0) == 'H')
+                && Character.isDigit(name.charAt(1));
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Matches many selector lists (rules) against a document in a single
+ * walk, reporting which rules each element matches, the way browser
+ * style engines apply style sheets. The rules are bucketed by a key of
+ * their rightmost compound (in order of preference: an id, a class, the
+ * name of an attribute that must be present, or a tag name), so each
+ * element is only checked against the rules that could match it; the
+ * cost grows with the size of the document plus the number of candidate
+ * rules, rather than with their product. Rules that require particular
+ * ancestors are also checked against a Bloom filter of the element's
+ * ancestors, kept up to date during the walk, before walking up to them.
+ *
+ * <p>The results are those {@link SelectorEvaluator#select} would give
+ * for each rule. Rules with positional pseudos are evaluated as sets
+ * (once per walk) and then looked up. Rules may not start with a
+ * combinator, since they are not related to any one context.
+ *
+ * <p>Instances are immutable, and so are thread-safe provided the map of
+ * custom pseudos is.
+ */
+public final class RuleEvaluator {
+    /**
+     * Receives each element that matches any rule, in document order.
+     */
+    public interface Handler {
+        /**
+         * @param rules the indexes of the matching rules, in ascending
+         * order
+         */
+        void match(Element element, int[] rules);
+    }
+
+    private static final class Entry {
+        final int rule;
+        final ComplexSelector selector;
+        final boolean positional;
+
+        Entry(int rule, ComplexSelector selector) {
+            this.rule = rule;
+            this.selector = selector;
+            this.positional = selector.getFirstPositionalCompound() >= 0;
+        }
+    }
+
+    private final int size;
+    private final SelectorEvaluator evaluator;
+    private final Map<String, ? extends Function<String, ? extends Predicate<Element>>> pseudos;
+    private final ImmutableListMultimap<String, Entry> byId;
+    private final ImmutableListMultimap<String, Entry> byClass;
+    private final ImmutableListMultimap<String, Entry> byAttribute;
+    private final ImmutableListMultimap<String, Entry> byTag;
+    private final ImmutableList<Entry> universal;
+    private final boolean hasAncestorKeys;
+
+    public RuleEvaluator(List<SelectorList> rules) {
+        this(rules, ImmutableMap.<String, Function<String, Predicate<Element>>>of());
+    }
+
+    /**
+     * @param pseudos custom pseudos, keyed by name
+     * @throws IllegalArgumentException if some rule starts with a
+     * combinator
+     */
+    public RuleEvaluator(List<SelectorList> rules,
+            Map<String, ? extends Function<String, ? extends Predicate<Element>>> pseudos) {
+        this.size = rules.size();
+        this.pseudos = pseudos;
+        this.evaluator = new SelectorEvaluator(pseudos);
+        ImmutableListMultimap.Builder<String, Entry> byId = ImmutableListMultimap.builder();
+        ImmutableListMultimap.Builder<String, Entry> byClass = ImmutableListMultimap.builder();
+        ImmutableListMultimap.Builder<String, Entry> byAttribute = ImmutableListMultimap.builder();
+        ImmutableListMultimap.Builder<String, Entry> byTag = ImmutableListMultimap.builder();
+        ImmutableList.Builder<Entry> universal = ImmutableList.builder();
+        boolean hasAncestorKeys = false;
+        for (int i = 0; i < rules.size(); ++i) {
+            SelectorList rule = rules.get(i);
+            Preconditions.checkArgument(!rule.isRelative(),
+                    "Rule starts with a combinator: %s", rule);
+            for (ComplexSelector selector : rule.getSelectors()) {
+                Entry entry = new Entry(i, selector);
+                hasAncestorKeys |= selector.getAncestorKeys().length > 0;
+                String id = null;
+                String className = null;
+                String attribute = null;
+                String tag = null;
+                for (SimpleSelector simple : selector.getRightmost().getSimples()) {
+                    if (simple instanceof IdSelector) {
+                        id = ((IdSelector) simple).getId();
+                    } else if (simple instanceof ClassSelector) {
+                        className = ((ClassSelector) simple).getClassName();
+                    } else if (simple instanceof AttributeSelector) {
+                        AttributeSelector attr = (AttributeSelector) simple;
+                        if (attr.getOperator() != AttributeSelector.Operator.NOT_EQUALS) {
+                            attribute = attr.getName();
+                        }
+                    } else if (simple instanceof TypeSelector) {
+                        tag = ((TypeSelector) simple).getName();
+                    }
+                }
+                if (id != null) {
+                    byId.put(id, entry);
+                } else if (className != null) {
+                    byClass.put(className, entry);
+                } else if (attribute != null) {
+                    byAttribute.put(attribute, entry);
+                } else if (tag != null) {
+                    byTag.put(tag, entry);
+                } else {
+                    universal.add(entry);
+                }
+            }
+        }
+        this.byId = byId.build();
+        this.byClass = byClass.build();
+        this.byAttribute = byAttribute.build();
+        this.byTag = byTag.build();
+        this.universal = universal.build();
+        this.hasAncestorKeys = hasAncestorKeys;
+    }
+
+    /**
+     * Returns the number of rules.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Walks the elements within {@code context} (a document or element)
+     * once, handing each one that matches any rule to {@code handler}.
+     */
+    public void evaluate(Node context, Handler handler) {
+        MatchContext cx = new MatchContext(evaluator, pseudos);
+        AncestorFilter filter = hasAncestorKeys ? new AncestorFilter() : null;
+        BitSet matched = new BitSet(size);
+        for (Element elem = Nodes.followingElement(context, context); elem != null;
+                elem = Nodes.followingElement(elem, context)) {
+            if (filter != null) {
+                filter.moveTo(elem);
+            }
+            if (!byId.isEmpty()) {
+                Attr id = elem.getAttributeNode("id");
+                if (id != null) {
+                    check(byId.get(id.getValue()), elem, context, cx, filter, matched);
+                }
+            }
+            if (!byClass.isEmpty()) {
+                Attr classes = elem.getAttributeNode("class");
+                if (classes != null) {
+                    for (String token : ElementIndex.splitClasses(classes.getValue())) {
+                        check(byClass.get(token), elem, context, cx, filter, matched);
+                    }
+                }
+            }
+            if (!byAttribute.isEmpty()) {
+                NamedNodeMap attrs = elem.getAttributes();
+                for (int i = 0; i < attrs.getLength(); ++i) {
+                    check(byAttribute.get(attrs.item(i).getNodeName()), elem, context, cx,
+                            filter, matched);
+                }
+            }
+            check(byTag.get(elem.getNodeName()), elem, context, cx, filter, matched);
+            check(universal, elem, context, cx, filter, matched);
+            if (!matched.isEmpty()) {
+                int[] rules = new int[matched.cardinality()];
+                int n = 0;
+                for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+                    rules[n++] = i;
+                }
+                matched.clear();
+                handler.match(elem, rules);
+            }
+        }
+    }
+
+    private static void check(List<Entry> entries, Element elem, Node context, MatchContext cx,
+            AncestorFilter filter, BitSet matched) {
+        for (Entry entry : entries) {
+            if (matched.get(entry.rule)
+                    || filter != null && !filter.mightMatch(entry.selector)) {
+                continue;
+            }
+            if (entry.positional ? cx.getSelection(entry.selector, context).contains(elem)
+                    : entry.selector.matches(elem, context, cx)) {
+                matched.set(entry.rule);
+            }
+        }
+    }
+
+    /**
+     * Returns the elements within {@code context} that match each rule,
+     * in document order, indexed as the rules are.
+     */
+    public List<List<Element>> selectAll(Node context) {
+        final List<List<Element>> result = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            result.add(new ArrayList<Element>());
+        }
+        evaluate(context, new Handler() {
+            @Override
+            public void match(Element element, int[] rules) {
+                for (int rule : rules) {
+                    result.get(rule).add(element);
+                }
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Evaluates {@link SelectorList}s directly against {@code org.w3c.dom}
+ * nodes, without going through Sizzle. Selection walks the context
+ * subtree once in document order, matching each element right to left
+ * (after checking a Bloom filter of its ancestors, kept up to date along
+ * the way, where the selectors require particular ancestors and for as
+ * long as it rejects candidates); selectors with positional pseudos
+ * are evaluated as sets, following Sizzle's semantics.
+ *
+ * <p>An evaluator holds no state of its own besides the custom pseudos
+ * it was given, the two sorting settings, and the checkpoint below, so
+ * it is thread-safe provided that map and the checkpoint are, and the
+ * settings are not changed while it is in use.
+ */
+public final class SelectorEvaluator {
+    /**
+     * Called now and then while a selector is evaluated (about once
+     * every thousand steps of matching), so that a long evaluation can
+     * be stopped by throwing an unchecked exception, which is then
+     * thrown out of the evaluator's method.
+     */
+    public interface Checkpoint {
+        void check();
+    }
+
+    private final Map<String, ? extends Function<String, ? extends Predicate<Element>>> pseudos;
+    private DocumentOrder order;
+    private boolean ordered = true;
+    private Checkpoint checkpoint;
+
+    public SelectorEvaluator() {
+        this(ImmutableMap.<String, Function<String, Predicate<Element>>>of());
+    }
+
+    /**
+     * @param pseudos custom pseudos, keyed by name; these are consulted
+     * on every evaluation, so later additions to the map take effect
+     */
+    public SelectorEvaluator(
+            Map<String, ? extends Function<String, ? extends Predicate<Element>>> pseudos) {
+        this.pseudos = pseudos;
+    }
+
+    /**
+     * Sets the numbering to sort results with, or null to compare the
+     * positions of nodes directly. Results with elements that the
+     * numbering does not cover are sorted the slow way.
+     */
+    public void setDocumentOrder(DocumentOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * Sets whether {@link #select} returns its elements in document
+     * order (the default). Only selectors with positional pseudos, or
+     * lists that mix them with others, need sorting; turning this off
+     * skips that final sort, though the result is still free of
+     * duplicates. Positional pseudos themselves still see their sets in
+     * document order.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Sets the checkpoint to call during evaluation, or null for none.
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    private MatchContext newContext() {
+        return new MatchContext(this, pseudos);
+    }
+
+    /**
+     * Returns the elements within {@code context} (a document or
+     * element) that match the selectors, in document order.
+     */
+    public List<Element> select(SelectorList selectors, Node context) {
+        return select(selectors.getSelectors(), context, newContext(), ordered);
+    }
+
+    /**
+     * Returns the same elements as {@link #select}, but lazily: unless
+     * some selector has a positional pseudo (which is evaluated as a
+     * set), each step of an iterator walks the context subtree only as
+     * far as the next match. Each call to {@code iterator()} starts a
+     * new walk. The subtree must not be modified while an iterator is
+     * in use.
+     */
+    public Iterable<Element> iterate(SelectorList selectors, Node context) {
+        return iterate(selectors, context, null);
+    }
+
+    /**
+     * Returns the same elements as {@link #select}, checking only the
+     * given candidates, such as those found by
+     * {@link ElementIndex#getCandidates}. They must be in document
+     * order, lie within {@code context}, and include every element that
+     * matches there. Candidates are ignored for selectors that start
+     * with a combinator or have positional pseudos.
+     */
+    public List<Element> select(SelectorList selectors, Node context,
+            Iterable<Element> candidates) {
+        return Lists.newArrayList(iterate(selectors, context, candidates));
+    }
+
+    /**
+     * Returns the same elements as {@link #select(SelectorList, Node,
+     * Iterable)}, lazily, as {@link #iterate(SelectorList, Node)} does.
+     *
+     * @param candidates the candidates to check, or null to walk the
+     * context subtree
+     */
+    public Iterable<Element> iterate(final SelectorList selectors, final Node context,
+            final Iterable<Element> candidates) {
+        return new Iterable<Element>() {
+            @Override
+            public Iterator<Element> iterator() {
+                List<ComplexSelector> list = selectors.getSelectors();
+                MatchContext cx = newContext();
+                for (ComplexSelector selector : list) {
+                    if (selector.getFirstPositionalCompound() >= 0) {
+                        return select(list, context, cx, ordered).iterator();
+                    }
+                }
+                return new Matches(list, context, cx,
+                        candidates == null || selectors.isRelative()
+                                ? null : candidates.iterator());
+            }
+        };
+    }
+
+    /**
+     * Returns whether the element matches any of the selectors.
+     */
+    public boolean matches(Element elem, SelectorList selectors) {
+        return matches(elem, selectors.getSelectors(), newContext());
+    }
+
+    /**
+     * Returns the elements among {@code nodes} that match the
+     * selectors, in their original order. Nodes other than elements
+     * are skipped.
+     */
+    public List<Element> filter(SelectorList selectors, Iterable<? extends Node> nodes) {
+        MatchContext cx = newContext();
+        List<Element> result = new ArrayList<>();
+        for (Node node : nodes) {
+            if (node instanceof Element && matches((Element) node, selectors.getSelectors(), cx)) {
+                result.add((Element) node);
+            }
+        }
+        return result;
+    }
+
+    List<Element> select(List<ComplexSelector> selectors, Node context, MatchContext cx) {
+        return select(selectors, context, cx, true);
+    }
+
+    private List<Element> select(List<ComplexSelector> selectors, Node context,
+            MatchContext cx, boolean ordered) {
+        List<ComplexSelector> simple = new ArrayList<>(selectors.size());
+        List<ComplexSelector> positional = new ArrayList<>(0);
+        for (ComplexSelector selector : selectors) {
+            (selector.getFirstPositionalCompound() >= 0 ? positional : simple).add(selector);
+        }
+        List<Element> result = new ArrayList<>();
+        if (!simple.isEmpty()) {
+            collect(simple, context, cx, result, Integer.MAX_VALUE);
+        }
+        if (positional.isEmpty()) {
+            return result;
+        }
+        for (ComplexSelector selector : positional) {
+            result.addAll(selectPositional(selector, context, cx));
+        }
+        return ordered ? uniqueSort(result) : DocumentOrder.unique(result);
+    }
+
+    boolean exists(List<ComplexSelector> selectors, Node context, MatchContext cx) {
+        for (ComplexSelector selector : selectors) {
+            if (selector.getFirstPositionalCompound() >= 0) {
+                return !select(selectors, context, cx).isEmpty();
+            }
+        }
+        List<Element> result = new ArrayList<>(1);
+        collect(selectors, context, cx, result, 1);
+        return !result.isEmpty();
+    }
+
+    boolean matches(Element elem, List<ComplexSelector> selectors, MatchContext cx) {
+        Document doc = elem.getOwnerDocument();
+        boolean inOrder = usesFilter(selectors) && cx.isInOrder(elem);
+        for (ComplexSelector selector : selectors) {
+            if (selector.getFirstPositionalCompound() >= 0) {
+                if (cx.getSelection(selector, doc).contains(elem)) {
+                    return true;
+                }
+            } else if (inOrder && usesFilter(selector)) {
+                // Moving the filter costs up to one walk up the tree, so
+                // it only pays off where matching could walk up many
+                // times, and once the subject compound matches.
+                if (selector.getRightmost().matches(elem, cx) && cx.mightMatch(elem, selector)
+                        && selector.matches(elem, doc, cx)) {
+                    return true;
+                }
+            } else if (selector.matches(elem, doc, cx)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean usesFilter(List<ComplexSelector> selectors) {
+        for (ComplexSelector selector : selectors) {
+            if (usesFilter(selector)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean usesFilter(ComplexSelector selector) {
+        return selector.isBacktracking() && selector.getAncestorKeys().length > 0;
+    }
+
+    /**
+     * Walks the subtree that can hold matches in document order, adding
+     * each element that matches any selector, until {@code limit}
+     * elements have been found.
+     */
+    private static void collect(List<ComplexSelector> selectors, Node context, MatchContext cx,
+            List<Element> result, int limit) {
+        Matches matches = new Matches(selectors, context, cx, null);
+        while (result.size() < limit && matches.hasNext()) {
+            result.add(matches.next());
+        }
+    }
+
+    /**
+     * The elements that match any of a list of selectors without
+     * positional pseudos, found one at a time by walking the subtree
+     * that can hold matches in document order (or by checking the given
+     * candidates).
+     */
+    private static final class Matches extends AbstractIterator<Element> {
+        /**
+         * The number of candidates in a row that the ancestor filter
+         * may let through before it is dropped for the rest of the walk,
+         * since keeping it up to date then costs more than it saves.
+         */
+        private static final int MAX_MISSES = 64;
+
+        private final List<ComplexSelector> selectors;
+        private final Node context;
+        private final MatchContext cx;
+        private final Node root;
+        private final Iterator<Element> candidates;
+        private AncestorFilter filter;
+        private int misses;
+        private Node last;
+
+        Matches(List<ComplexSelector> selectors, Node context, MatchContext cx,
+                Iterator<Element> candidates) {
+            this.selectors = selectors;
+            this.context = context;
+            this.cx = cx;
+            this.candidates = candidates;
+            Node root = context;
+            for (ComplexSelector selector : selectors) {
+                if (selector.isSiblingRelative() && context.getParentNode() != null) {
+                    root = context.getParentNode();
+                    break;
+                }
+            }
+            this.root = root;
+            this.last = root;
+            this.filter = candidates == null && hasAncestorKeys(selectors)
+                    ? new AncestorFilter() : null;
+        }
+
+        private static boolean hasAncestorKeys(List<ComplexSelector> selectors) {
+            for (ComplexSelector selector : selectors) {
+                if (selector.getAncestorKeys().length > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Element advance() {
+            if (candidates != null) {
+                return candidates.hasNext() ? candidates.next() : null;
+            }
+            Element elem = Nodes.followingElement(last, root);
+            if (elem != null && filter != null) {
+                filter.moveTo(elem);
+            }
+            last = elem;
+            return elem;
+        }
+
+        @Override
+        protected Element computeNext() {
+            for (Element elem = advance(); elem != null; elem = advance()) {
+                for (ComplexSelector selector : selectors) {
+                    if (root != context && !selector.isSiblingRelative()
+                            && !Nodes.isDescendant(elem, context)) {
+                        continue;
+                    }
+                    if (filter != null) {
+                        if (!filter.mightMatch(selector)) {
+                            misses = 0;
+                            continue;
+                        }
+                        if (++misses == MAX_MISSES) {
+                            filter = null;
+                        }
+                    }
+                    if (selector.matches(elem, context, cx)) {
+                        return elem;
+                    }
+                }
+            }
+            return endOfData();
+        }
+    }
+
+    /**
+     * Evaluates a selector containing a positional pseudo. The part up
+     * to the first positional pseudo is selected as usual; the
+     * positional pseudos and any remaining simple selectors of that
+     * compound then filter the resulting set in order; finally, the
+     * remainder of the selector is selected relative to each surviving
+     * element.
+     */
+    List<Element> selectPositional(ComplexSelector selector, Node context, MatchContext cx) {
+        int index = selector.getFirstPositionalCompound();
+        CompoundSelector compound = selector.getCompounds().get(index);
+        int first = compound.getFirstPositional();
+        List<Element> set = select(ImmutableList.of(selector.prefix(index, first)), context, cx);
+        ImmutableList<SimpleSelector> simples = compound.getSimples();
+        for (int i = first; i < simples.size(); ++i) {
+            SimpleSelector simple = simples.get(i);
+            if (simple.isPositional()) {
+                set = ((PositionalSelector) simple).filter(set);
+            } else {
+                List<Element> filtered = new ArrayList<>(set.size());
+                for (Element elem : set) {
+                    if (simple.matches(elem, cx)) {
+                        filtered.add(elem);
+                    }
+                }
+                set = filtered;
+            }
+        }
+        if (index == selector.getCompounds().size() - 1) {
+            return set;
+        }
+        List<ComplexSelector> rest = ImmutableList.of(selector.suffix(index));
+        List<Element> result = new ArrayList<>();
+        for (Element elem : set) {
+            result.addAll(select(rest, elem, cx));
+        }
+        return uniqueSort(result);
+    }
+
+    /**
+     * Removes duplicates from the given elements and sorts them into
+     * document order.
+     */
+    List<Element> uniqueSort(List<Element> elems) {
+        return DocumentOrder.uniqueSort(elems, order);
+    }
+}
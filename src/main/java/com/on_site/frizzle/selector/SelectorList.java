@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A parsed, comma-separated list of selectors, in the grammar accepted
+ * by Sizzle. Instances are immutable, and so may be freely shared
+ * between threads and documents.
+ */
+public final class SelectorList {
+    private final String source;
+    private final ImmutableList<ComplexSelector> selectors;
+    private final boolean needsContext;
+    private final boolean relative;
+    private final ImmutableSet<String> subjectTypes;
+
+    SelectorList(String source, List<ComplexSelector> selectors) {
+        this.source = source;
+        this.selectors = ImmutableList.copyOf(selectors);
+        boolean needsContext = false;
+        boolean relative = false;
+        for (ComplexSelector selector : selectors) {
+            needsContext |= selector.needsContext();
+            relative |= selector.getLeading() != null;
+        }
+        this.needsContext = needsContext;
+        this.relative = relative;
+        this.subjectTypes = findSubjectTypes(selectors);
+    }
+
+    private static ImmutableSet<String> findSubjectTypes(List<ComplexSelector> selectors) {
+        ImmutableSet.Builder<String> types = ImmutableSet.builder();
+        for (ComplexSelector selector : selectors) {
+            String type = null;
+            for (SimpleSelector simple : selector.getRightmost().getSimples()) {
+                if (simple instanceof TypeSelector) {
+                    type = ((TypeSelector) simple).getName().toLowerCase(Locale.ROOT);
+                    break;
+                }
+            }
+            if (type == null) {
+                return null;
+            }
+            types.add(type);
+        }
+        return types.build();
+    }
+
+    /**
+     * Parses the given selector.
+     *
+     * @throws IllegalArgumentException if the selector is not
+     * syntactically valid; the message follows Sizzle's format
+     */
+    public static SelectorList parse(String selector) {
+        return SelectorParser.parse(selector);
+    }
+
+    ImmutableList<ComplexSelector> getSelectors() {
+        return selectors;
+    }
+
+    /**
+     * Returns whether the list is empty (i.e., was parsed from an
+     * empty or all-whitespace string), and so matches nothing.
+     */
+    public boolean isEmpty() {
+        return selectors.isEmpty();
+    }
+
+    /**
+     * Returns whether the selectors use positional pseudos, which
+     * means that whether an element matches depends on what else
+     * matches.
+     */
+    public boolean needsContext() {
+        return needsContext;
+    }
+
+    /**
+     * Returns whether any of the selectors starts with a combinator (as
+     * in {@code > p}), which relates it to the context node.
+     */
+    public boolean isRelative() {
+        return relative;
+    }
+
+    /**
+     * Returns the tag names (in lower case) that every matching element
+     * must have, ignoring case, or null if the rightmost compound of
+     * some selector has no type selector. This lets callers narrow down
+     * the candidates for a match cheaply.
+     */
+    public ImmutableSet<String> getSubjectTypes() {
+        return subjectTypes;
+    }
+
+    /**
+     * Returns the source text this list was parsed from.
+     */
+    @Override
+    public String toString() {
+        return source;
+    }
+}
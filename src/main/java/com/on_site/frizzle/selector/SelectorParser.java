@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.CharMatcher;
+
+/**
+ * Recursive-descent parser for the selector grammar accepted by Sizzle
+ * (CSS3 selectors plus Sizzle's own pseudos and the {@code !=}
+ * attribute operator). Errors are reported with the same message
+ * format that Sizzle uses.
+ */
+final class SelectorParser {
+    private static final String WS = "[\\x20\\t\\r\\n\\f]";
+    private static final Pattern NTH = Pattern.compile("(?i)(even|odd|(([+-]|)(\\d*)n|)" + WS
+            + "*(?:([+-]|)" + WS + "*(\\d+)|))");
+    private static final Pattern CHILD = Pattern.compile(
+            "(?i)(only|first|last|nth|nth-last)-(child|of-type)");
+    private static final CharMatcher WHITESPACE = CharMatcher.anyOf(" \t\r\n\f");
+
+    private final String source;
+    private int pos;
+
+    private SelectorParser(String source) {
+        this.source = source;
+    }
+
+    static SelectorList parse(String selector) {
+        return new SelectorList(selector, new SelectorParser(selector).parseSelectors());
+    }
+
+    static IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException("Syntax error, unrecognized expression: " + msg);
+    }
+
+    private IllegalArgumentException error() {
+        return error(source);
+    }
+
+    private boolean atEnd() {
+        return pos >= source.length();
+    }
+
+    private char peek() {
+        return source.charAt(pos);
+    }
+
+    private boolean skipWhitespace() {
+        int start = pos;
+        while (!atEnd() && Nodes.isWhitespace(peek())) {
+            ++pos;
+        }
+        return pos > start;
+    }
+
+    private void expect(char c) {
+        if (atEnd() || peek() != c) {
+            throw error();
+        }
+        ++pos;
+    }
+
+    private List<ComplexSelector> parseSelectors() {
+        List<ComplexSelector> selectors = new ArrayList<>();
+        skipWhitespace();
+        if (atEnd()) {
+            return selectors;
+        }
+        while (true) {
+            selectors.add(parseComplex());
+            if (atEnd()) {
+                return selectors;
+            }
+            expect(',');
+            skipWhitespace();
+        }
+    }
+
+    private ComplexSelector parseComplex() {
+        Combinator leading = parseCombinator();
+        List<CompoundSelector> compounds = new ArrayList<>();
+        List<Combinator> combinators = new ArrayList<>();
+        compounds.add(parseCompound());
+        while (true) {
+            boolean whitespace = skipWhitespace();
+            if (atEnd() || peek() == ',') {
+                return new ComplexSelector(leading, compounds, combinators);
+            }
+            Combinator combinator = parseCombinator();
+            if (combinator == null) {
+                if (!whitespace) {
+                    throw error();
+                }
+                combinator = Combinator.DESCENDANT;
+            }
+            combinators.add(combinator);
+            compounds.add(parseCompound());
+        }
+    }
+
+    private Combinator parseCombinator() {
+        if (atEnd()) {
+            return null;
+        }
+        char c = peek();
+        if (c == '>' || c == '+' || c == '~') {
+            ++pos;
+            skipWhitespace();
+            return Combinator.forSymbol(c);
+        }
+        return null;
+    }
+
+    private CompoundSelector parseCompound() {
+        int start = pos;
+        List<SimpleSelector> simples = new ArrayList<>();
+        if (!atEnd() && peek() == '*') {
+            ++pos;
+        } else if (isIdentifierStart()) {
+            simples.add(new TypeSelector(parseIdentifier()));
+        }
+        while (!atEnd()) {
+            char c = peek();
+            if (c == '#') {
+                ++pos;
+                simples.add(new IdSelector(parseIdentifier()));
+            } else if (c == '.') {
+                ++pos;
+                simples.add(new ClassSelector(parseIdentifier()));
+            } else if (c == '[') {
+                simples.add(parseAttribute());
+            } else if (c == ':') {
+                simples.add(parsePseudo());
+            } else {
+                break;
+            }
+        }
+        if (pos == start) {
+            throw error();
+        }
+        return new CompoundSelector(simples);
+    }
+
+    private SimpleSelector parseAttribute() {
+        expect('[');
+        skipWhitespace();
+        String name = parseIdentifier();
+        skipWhitespace();
+        AttributeSelector.Operator op = AttributeSelector.Operator.EXISTS;
+        String value = "";
+        if (!atEnd() && peek() != ']') {
+            int opStart = pos;
+            if ("*^$|!~".indexOf(peek()) >= 0) {
+                ++pos;
+            }
+            expect('=');
+            op = AttributeSelector.Operator.forSymbol(source.substring(opStart, pos));
+            skipWhitespace();
+            value = !atEnd() && (peek() == '"' || peek() == '\'') ? parseString() : parseIdentifier();
+            skipWhitespace();
+        }
+        expect(']');
+        return new AttributeSelector(name, op, value);
+    }
+
+    private SimpleSelector parsePseudo() {
+        int start = pos;
+        expect(':');
+        String name = parseIdentifier();
+        if (CHILD.matcher(name).matches()) {
+            return parseNth(start, name.toLowerCase(Locale.ROOT));
+        }
+        String argument = !atEnd() && peek() == '(' ? parseArgument() : null;
+        String lower = name.toLowerCase(Locale.ROOT);
+
+        PositionalSelector.Kind positional = PositionalSelector.Kind.forName(lower);
+        if (positional != null) {
+            return new PositionalSelector(source.substring(start, pos), positional,
+                    parseInteger(argument));
+        }
+        switch (lower) {
+        case "not":
+            return new NotSelector(name, argument, parseNested(argument));
+        case "has":
+            return new HasSelector(name, argument, parseNested(argument));
+        case "contains":
+            return new ContainsSelector(name, argument, unescape(requireArgument(argument)));
+        case "lang": {
+            String lang = requireArgument(argument);
+            if (!isIdentifier(lang)) {
+                throw error("unsupported lang: " + lang);
+            }
+            return new LangSelector(name, argument, unescape(lang));
+        }
+        default:
+            PseudoSelector.Kind kind = PseudoSelector.Kind.forName(lower);
+            return kind != null ? new PseudoSelector(name, kind)
+                    : new CustomPseudoSelector(name, argument);
+        }
+    }
+
+    private SimpleSelector parseNth(int start, String name) {
+        String argument = !atEnd() && peek() == '(' ? parseArgument() : null;
+        String text = source.substring(start, pos);
+        int dash = name.indexOf("-", name.startsWith("nth-last") ? 4 : 0);
+        String type = name.substring(0, dash);
+        boolean ofType = name.endsWith("of-type");
+        NthSelector.Kind kind;
+        switch (type) {
+        case "first":
+            kind = NthSelector.Kind.FIRST;
+            break;
+        case "last":
+            kind = NthSelector.Kind.LAST;
+            break;
+        case "only":
+            kind = NthSelector.Kind.ONLY;
+            break;
+        case "nth":
+            kind = NthSelector.Kind.NTH;
+            break;
+        default:
+            kind = NthSelector.Kind.NTH_LAST;
+            break;
+        }
+
+        if (kind != NthSelector.Kind.NTH && kind != NthSelector.Kind.NTH_LAST) {
+            if (argument != null) {
+                throw error(text);
+            }
+            return new NthSelector(text, kind, ofType, 0, 0);
+        }
+        String arg = argument == null ? "" : WHITESPACE.trimFrom(argument);
+        Matcher m = NTH.matcher(arg);
+        if (arg.isEmpty() || !m.matches()) {
+            throw error(text);
+        }
+        int a;
+        if (m.group(2) != null && !m.group(2).isEmpty()) {
+            a = Integer.parseInt(m.group(3) + (m.group(4).isEmpty() ? "1" : m.group(4)));
+        } else {
+            a = arg.equalsIgnoreCase("even") || arg.equalsIgnoreCase("odd") ? 2 : 0;
+        }
+        int b;
+        if (m.group(6) != null) {
+            b = Integer.parseInt(m.group(5) + m.group(6));
+        } else {
+            b = arg.equalsIgnoreCase("odd") ? 1 : 0;
+        }
+        return new NthSelector(text, kind, ofType, a, b);
+    }
+
+    private String parseArgument() {
+        expect('(');
+        if (!atEnd() && (peek() == '"' || peek() == '\'')) {
+            int save = pos;
+            String value = parseString();
+            if (!atEnd() && peek() == ')') {
+                ++pos;
+                return value;
+            }
+            pos = save;
+        }
+        int start = pos;
+        int depth = 0;
+        while (true) {
+            if (atEnd()) {
+                throw error();
+            }
+            char c = peek();
+            if (c == '\\') {
+                pos += 2;
+                continue;
+            }
+            if (c == '"' || c == '\'') {
+                parseString();
+                continue;
+            }
+            if (c == '(' || c == '[') {
+                ++depth;
+            } else if (c == ')' || c == ']') {
+                if (depth == 0) {
+                    if (c != ')') {
+                        throw error();
+                    }
+                    break;
+                }
+                --depth;
+            }
+            ++pos;
+        }
+        String argument = source.substring(start, pos);
+        ++pos;
+        return argument;
+    }
+
+    private static String requireArgument(String argument) {
+        if (argument == null) {
+            throw error("missing argument");
+        }
+        return argument;
+    }
+
+    private static SelectorList parseNested(String argument) {
+        SelectorList inner = parse(requireArgument(argument));
+        if (inner.isEmpty()) {
+            throw error(argument);
+        }
+        return inner;
+    }
+
+    /**
+     * Parses a positional argument the way JavaScript's unary plus
+     * would, except that non-integers yield null (matching nothing).
+     */
+    private static Integer parseInteger(String argument) {
+        if (argument == null) {
+            return null;
+        }
+        String trimmed = WHITESPACE.trimFrom(argument);
+        if (trimmed.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.valueOf(trimmed.startsWith("+") ? trimmed.substring(1) : trimmed);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String parseString() {
+        char quote = peek();
+        ++pos;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (atEnd()) {
+                throw error();
+            }
+            char c = peek();
+            ++pos;
+            if (c == quote) {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                appendEscape(sb);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                || c == '_' || c == '-' || c > 0xa0;
+    }
+
+    private boolean isIdentifierStart() {
+        return !atEnd() && (isIdentifierChar(peek()) || peek() == '\\');
+    }
+
+    private static boolean isIdentifier(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                ++i;
+            } else if (!isIdentifierChar(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String parseIdentifier() {
+        if (!isIdentifierStart()) {
+            throw error();
+        }
+        StringBuilder sb = new StringBuilder();
+        while (!atEnd()) {
+            char c = peek();
+            if (c == '\\') {
+                ++pos;
+                appendEscape(sb);
+            } else if (isIdentifierChar(c)) {
+                sb.append(c);
+                ++pos;
+            } else {
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends the character escaped by a backslash at {@code pos - 1}:
+     * either up to six hex digits (optionally followed by a single
+     * whitespace character) or any other single character.
+     */
+    private void appendEscape(StringBuilder sb) {
+        if (atEnd()) {
+            throw error();
+        }
+        int start = pos;
+        while (pos < source.length() && pos - start < 6 && Character.digit(peek(), 16) >= 0) {
+            ++pos;
+        }
+        if (pos == start) {
+            sb.append(peek());
+            ++pos;
+            return;
+        }
+        int codePoint = Integer.parseInt(source.substring(start, pos), 16);
+        if (!atEnd() && Nodes.isWhitespace(peek())) {
+            ++pos;
+        }
+        sb.appendCodePoint(codePoint == 0 || codePoint > Character.MAX_CODE_POINT
+                ? 0xfffd : codePoint);
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        SelectorParser parser = new SelectorParser(s);
+        StringBuilder sb = new StringBuilder();
+        while (!parser.atEnd()) {
+            char c = parser.peek();
+            ++parser.pos;
+            if (c == '\\') {
+                parser.appendEscape(sb);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
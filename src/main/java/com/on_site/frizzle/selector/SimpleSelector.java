@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import org.w3c.dom.Element;
+
+/**
+ * One simple selector (type, id, class, attribute, or pseudo) within a
+ * compound selector. Instances are immutable.
+ */
+abstract class SimpleSelector {
+    abstract boolean matches(Element elem, MatchContext cx);
+
+    /**
+     * Returns whether this is one of Sizzle's positional pseudos (such
+     * as {@code :first} or {@code :eq(n)}), which select from the set
+     * of matched elements rather than testing each element on its own.
+     */
+    boolean isPositional() {
+        return false;
+    }
+
+    /**
+     * Returns whether matching this selector requires a selection from
+     * the document, either because it is positional or because it
+     * contains a positional selector (e.g., {@code :not(:first)}).
+     */
+    boolean needsContext() {
+        return isPositional();
+    }
+
+    /**
+     * Returns whether this selector can be decided from the element's
+     * name and attributes and those of its ancestors alone, which is
+     * all that {@link StreamEvaluator} keeps of the document.
+     */
+    boolean isStreamable() {
+        return false;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle.selector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Evaluates a {@link SelectorList} against a stream of StAX events,
+ * without building the document. Only selectors that can be decided as
+ * soon as an element's start tag has been read are supported (see
+ * {@link #isStreamable}): type, id, class, and attribute selectors, all
+ * four combinators, {@code :first-child}, {@code :nth-child}, and their
+ * {@code -of-type} counterparts, {@code :lang}, {@code :root}, and
+ * {@code :not} of such selectors (without sibling combinators). Results
+ * are the same as {@link SelectorEvaluator#select} would give on the
+ * whole document.
+ *
+ * <p>Matching runs left to right. Each open element has a frame
+ * recording which prefixes of the selectors (up to and including each
+ * compound) it is the subject of; an element's own frame is worked out
+ * from its parent's, that of its previous sibling, and the union of
+ * those of all its preceding siblings and ancestors. Memory therefore
+ * depends on the depth of the document, not its size.
+ *
+ * <p>Matched elements are handed over as elements of a skeleton
+ * document, which holds the open elements with their attributes but
+ * without any other content. Without fragments, each element is handed
+ * over as soon as its start tag has been read, with no children; with
+ * fragments, its whole subtree is built first, and the element is handed
+ * over when it ends (still in document order, so an element nested in
+ * another match follows it). Either way, its ancestors are still in
+ * place during the callback, and it is detached from them afterwards,
+ * unless the handler has moved it elsewhere (for instance, into a
+ * document of its own with {@code adoptNode}).
+ *
+ * <p>An evaluator is immutable, and so is thread-safe.
+ */
+public final class StreamEvaluator {
+    /**
+     * Receives the matched elements, in document order.
+     */
+    public interface Handler {
+        void match(Element elem);
+    }
+
+    private static final Map<String, Function<String, Predicate<Element>>> NO_PSEUDOS
+            = ImmutableMap.of();
+
+    private final SelectorList selectors;
+    private final boolean fragments;
+
+    /**
+     * The index of the first prefix state of each selector; the state
+     * for compound {@code i} of selector {@code s} is
+     * {@code offsets[s] + i}.
+     */
+    private final int[] offsets;
+
+    /**
+     * @param fragments whether to build the subtree of each matched
+     * element before handing it over
+     * @throws IllegalArgumentException if the selectors are not
+     * {@linkplain #isStreamable streamable}
+     */
+    public StreamEvaluator(SelectorList selectors, boolean fragments) {
+        Preconditions.checkArgument(isStreamable(selectors),
+                "Selector cannot be evaluated on a stream: %s", selectors);
+        this.selectors = selectors;
+        this.fragments = fragments;
+        ImmutableList<ComplexSelector> list = selectors.getSelectors();
+        this.offsets = new int[list.size()];
+        int offset = 0;
+        for (int i = 0; i < list.size(); ++i) {
+            offsets[i] = offset;
+            offset += list.get(i).getCompounds().size();
+        }
+    }
+
+    /**
+     * Returns whether the selectors can be evaluated on a stream, that
+     * is, whether an element's match can be decided from the
+     * elements that start before it: its ancestors and preceding
+     * siblings. Positional pseudos and selectors that start with a
+     * combinator never can.
+     */
+    public static boolean isStreamable(SelectorList selectors) {
+        if (selectors.needsContext() || selectors.isRelative()) {
+            return false;
+        }
+        for (ComplexSelector selector : selectors.getSelectors()) {
+            for (CompoundSelector compound : selector.getCompounds()) {
+                for (SimpleSelector simple : compound.getSimples()) {
+                    if (!simple.isStreamable() && !(simple instanceof NthSelector
+                            && ((NthSelector) simple).isForward())) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    public SelectorList getSelectors() {
+        return selectors;
+    }
+
+    /**
+     * Reads the stream up to the end of the document, handing each
+     * matching element over to {@code handler}. The reader is left
+     * open.
+     */
+    public void evaluate(XMLStreamReader reader, Handler handler) throws XMLStreamException {
+        new Run(reader, handler).run();
+    }
+
+    /**
+     * The state of one open element (or of the document).
+     */
+    private static final class Frame {
+        final Node node;
+
+        /** Prefix states this element is the subject of. */
+        final BitSet matched;
+
+        /** Union of the prefix states of all the element's ancestors. */
+        final BitSet ancestors;
+
+        /** Prefix states of the last element child seen so far. */
+        BitSet lastChild = new BitSet();
+
+        /** Union of the prefix states of all element children so far. */
+        final BitSet children = new BitSet();
+
+        int childCount;
+        Map<String, Integer> typeCounts;
+
+        /** Whether this element is part of a fragment being built. */
+        boolean inFragment;
+
+        Frame(Node node, BitSet matched, BitSet ancestors) {
+            this.node = node;
+            this.matched = matched;
+            this.ancestors = ancestors;
+        }
+
+        /**
+         * Counts a new element child of the given type, returning its
+         * one-based index among the children of that type.
+         */
+        int countType(String type) {
+            if (typeCounts == null) {
+                typeCounts = Maps.newHashMap();
+            }
+            Integer count = typeCounts.get(type);
+            int index = count == null ? 1 : count + 1;
+            typeCounts.put(type, index);
+            return index;
+        }
+    }
+
+    /**
+     * A single pass over a stream.
+     */
+    private final class Run {
+        private final XMLStreamReader reader;
+        private final Handler handler;
+        private final Document doc;
+        private final MatchContext cx = new MatchContext(new SelectorEvaluator(), NO_PSEUDOS);
+        private final Deque<Frame> stack = new ArrayDeque<>();
+
+        /** Matches within the fragment being built, in document order. */
+        private final List<Element> pending = new ArrayList<>();
+
+        Run(XMLStreamReader reader, Handler handler) {
+            this.reader = reader;
+            this.handler = handler;
+            try {
+                this.doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                        .newDocument();
+            } catch (ParserConfigurationException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void run() throws XMLStreamException {
+            stack.push(new Frame(doc, new BitSet(), new BitSet()));
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    startElement();
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    endElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if (stack.peek().inFragment) {
+                        stack.peek().node.appendChild(doc.createTextNode(reader.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    if (stack.peek().inFragment) {
+                        stack.peek().node.appendChild(
+                                doc.createCDATASection(reader.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    if (stack.peek().inFragment) {
+                        stack.peek().node.appendChild(doc.createComment(reader.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if (stack.peek().inFragment) {
+                        stack.peek().node.appendChild(doc.createProcessingInstruction(
+                                reader.getPITarget(), reader.getPIData()));
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+
+        private void startElement() {
+            Frame parent = stack.peek();
+            Element elem = doc.createElement(qualify(reader.getPrefix(), reader.getLocalName()));
+            for (int i = 0, n = reader.getNamespaceCount(); i < n; ++i) {
+                String prefix = reader.getNamespacePrefix(i);
+                String uri = reader.getNamespaceURI(i);
+                elem.setAttribute(qualify("xmlns", prefix), uri == null ? "" : uri);
+            }
+            for (int i = 0, n = reader.getAttributeCount(); i < n; ++i) {
+                elem.setAttribute(qualify(reader.getAttributePrefix(i),
+                        reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+            }
+            parent.node.appendChild(elem);
+
+            int index = ++parent.childCount;
+            int typeIndex = parent.countType(elem.getNodeName());
+            BitSet ancestors = (BitSet) parent.ancestors.clone();
+            ancestors.or(parent.matched);
+            BitSet matched = new BitSet();
+            boolean match = false;
+            ImmutableList<ComplexSelector> list = selectors.getSelectors();
+            for (int s = 0; s < list.size(); ++s) {
+                ComplexSelector selector = list.get(s);
+                ImmutableList<CompoundSelector> compounds = selector.getCompounds();
+                for (int i = 0; i < compounds.size(); ++i) {
+                    int state = offsets[s] + i;
+                    if (i > 0 && !related(selector.getCombinators().get(i - 1), state - 1,
+                            parent, ancestors)) {
+                        continue;
+                    }
+                    if (matches(compounds.get(i), elem, index, typeIndex)) {
+                        matched.set(state);
+                        match |= i == compounds.size() - 1;
+                    }
+                }
+            }
+            parent.lastChild = matched;
+            parent.children.or(matched);
+
+            Frame frame = new Frame(elem, matched, ancestors);
+            frame.inFragment = parent.inFragment;
+            stack.push(frame);
+            if (match) {
+                if (!fragments) {
+                    handler.match(elem);
+                } else {
+                    frame.inFragment = true;
+                    pending.add(elem);
+                }
+            }
+        }
+
+        private void endElement() {
+            Frame frame = stack.pop();
+            Frame parent = stack.peek();
+            if (parent.inFragment) {
+                return;
+            }
+            if (frame.inFragment) {
+                for (Element elem : pending) {
+                    handler.match(elem);
+                }
+                pending.clear();
+            }
+            /* The handler may have moved the element elsewhere. */
+            if (frame.node.getParentNode() == parent.node) {
+                parent.node.removeChild(frame.node);
+            }
+        }
+
+        /**
+         * Returns whether the prefix state {@code state} holds for the
+         * element that the combinator relates the new element to.
+         */
+        private boolean related(Combinator combinator, int state, Frame parent,
+                BitSet ancestors) {
+            switch (combinator) {
+            case DESCENDANT:
+                return ancestors.get(state);
+            case CHILD:
+                return parent.matched.get(state);
+            case ADJACENT:
+                return parent.lastChild.get(state);
+            case SIBLING:
+                return parent.children.get(state);
+            default:
+                throw new AssertionError(combinator);
+            }
+        }
+
+        private boolean matches(CompoundSelector compound, Element elem, int index,
+                int typeIndex) {
+            for (SimpleSelector simple : compound.getSimples()) {
+                if (simple instanceof NthSelector) {
+                    NthSelector nth = (NthSelector) simple;
+                    if (!nth.matchesForward(nth.isOfType() ? typeIndex : index)) {
+                        return false;
+                    }
+                } else if (!simple.matches(elem, cx)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static String qualify(String prefix, String name) {
+        if (prefix == null || prefix.isEmpty()) {
+            return name;
+        }
+        return name == null || name.isEmpty() ? prefix : prefix + ":" + name;
+    }
+}
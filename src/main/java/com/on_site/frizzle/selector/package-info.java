@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * A pure-Java implementation of Sizzle's selector engine, which parses
+ * the same selector grammar and evaluates it directly against
+ * {@code org.w3c.dom} nodes.
+ *
+ * <p>The main classes of interest are:
+ *
+ * <ul>
+ * <li>{@link com.on_site.frizzle.selector.SelectorList}, an immutable
+ *     parsed selector.
+ * <li>{@link com.on_site.frizzle.selector.SelectorEvaluator}, which
+ *     matches parsed selectors against DOM nodes.
+ * <li>{@link com.on_site.frizzle.selector.StreamEvaluator}, which
+ *     matches the selectors it can against a stream of StAX events.
+ * <li>{@link com.on_site.frizzle.selector.ElementIndex}, which narrows
+ *     down the candidates for a selector by looking them up by tag
+ *     name, id, class, or attribute value.
+ * <li>{@link com.on_site.frizzle.selector.DocumentOrder} and
+ *     {@link com.on_site.frizzle.selector.ElementSet}, which number the
+ *     elements of a document in order, and hold sets of them as bits.
+ * <li>{@link com.on_site.frizzle.selector.RuleEvaluator}, which matches
+ *     many selectors against a document in a single walk.
+ * </ul>
+ */
+package com.on_site.frizzle.selector;
@@ -26,6 +26,7 @@ package com.on_site.util;
 import java.io.Closeable;
 
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
 
 /**
  * "RAII" wrapper for {@link Context}.
@@ -39,6 +40,14 @@ public class ContextCloseable implements Closeable {
         cx = Context.enter();
     }
 
+    /**
+     * Enters a context from the given factory, or, if the thread is
+     * already in a context, that one.
+     */
+    public ContextCloseable(ContextFactory factory) {
+        cx = factory.enterContext();
+    }
+
     @Override
     public void close() {
         Context.exit();
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Sets up the globals that Sizzle expects of a browser, for running it
+ * under Nashorn. This runs before sizzle.js, in a global of its own,
+ * with frizzleHost (a NashornHost) already set; afterwards, frizzleApi()
+ * returns the object that NashornEngine calls, as a NashornSizzle.
+ *
+ * DOM nodes are wrapped in script objects that have the properties and
+ * methods Sizzle uses (the same ones that Rhino finds on them), each
+ * getting its own Java node as needed. The host keeps each node's
+ * wrapper, so that a node always has the same one.
+ */
+
+var window = this;
+
+(function (global) {
+    var host = global.frizzleHost;
+
+    /*
+     * The results array of the outermost call in progress, which is the
+     * one whose order may not matter (see NashornHost.uniqueSort).
+     */
+    var topResults = null;
+
+    function NodeWrapper(node) {
+        this.javaNode = node;
+    }
+
+    function ElementWrapper(node) {
+        this.javaNode = node;
+    }
+
+    function DocumentWrapper(node) {
+        this.javaNode = node;
+    }
+
+    function AttrWrapper(node) {
+        this.javaNode = node;
+    }
+
+    ElementWrapper.prototype = Object.create(NodeWrapper.prototype);
+    DocumentWrapper.prototype = Object.create(NodeWrapper.prototype);
+    AttrWrapper.prototype = Object.create(NodeWrapper.prototype);
+
+    function wrap(node) {
+        if (node == null) {
+            return null;
+        }
+        var wrapper = host.getWrapper(node);
+        if (wrapper == null) {
+            switch (node.getNodeType()) {
+            case 1:
+                wrapper = new ElementWrapper(node);
+                break;
+            case 2:
+                wrapper = new AttrWrapper(node);
+                break;
+            case 9:
+                wrapper = new DocumentWrapper(node);
+                break;
+            default:
+                wrapper = new NodeWrapper(node);
+            }
+            host.putWrapper(node, wrapper);
+        }
+        return wrapper;
+    }
+
+    function unwrap(wrapper) {
+        return wrapper == null ? null : wrapper.javaNode;
+    }
+
+    function wrapAll(nodes) {
+        var wrappers = new Array(nodes.length);
+        for (var i = 0; i < nodes.length; ++i) {
+            wrappers[i] = wrap(nodes[i]);
+        }
+        return wrappers;
+    }
+
+    function unwrapAll(wrappers) {
+        var nodes = new Array(wrappers.length);
+        for (var i = 0; i < wrappers.length; ++i) {
+            nodes[i] = wrappers[i].javaNode;
+        }
+        return nodes;
+    }
+
+    function getElementsByTagName(name) {
+        return wrapAll(host.toArray(this.javaNode.getElementsByTagName(name)));
+    }
+
+    /*
+     * Returns a property that reads or writes one of an element's
+     * attributes.
+     */
+    function attributeProperty(name) {
+        return {
+            get: function () {
+                return this.javaNode.getAttribute(name);
+            },
+            set: function (value) {
+                this.javaNode.setAttribute(name, String(value));
+            }
+        };
+    }
+
+    Object.defineProperties(NodeWrapper.prototype, {
+        nodeType: {get: function () { return this.javaNode.getNodeType(); }},
+        nodeName: {get: function () { return this.javaNode.getNodeName(); }},
+        nodeValue: {get: function () { return this.javaNode.getNodeValue(); }},
+        localName: {get: function () { return this.javaNode.getLocalName(); }},
+        namespaceURI: {get: function () { return this.javaNode.getNamespaceURI(); }},
+        textContent: {get: function () { return this.javaNode.getTextContent(); }},
+        parentNode: {get: function () { return wrap(this.javaNode.getParentNode()); }},
+        firstChild: {get: function () { return wrap(this.javaNode.getFirstChild()); }},
+        lastChild: {get: function () { return wrap(this.javaNode.getLastChild()); }},
+        previousSibling: {get: function () { return wrap(this.javaNode.getPreviousSibling()); }},
+        nextSibling: {get: function () { return wrap(this.javaNode.getNextSibling()); }},
+        ownerDocument: {get: function () { return wrap(this.javaNode.getOwnerDocument()); }},
+        childNodes: {get: function () { return wrapAll(host.getChildNodes(this.javaNode)); }}
+    });
+
+    NodeWrapper.prototype.hasChildNodes = function () {
+        return this.javaNode.hasChildNodes();
+    };
+
+    NodeWrapper.prototype.appendChild = function (child) {
+        this.javaNode.appendChild(child.javaNode);
+        return child;
+    };
+
+    NodeWrapper.prototype.insertBefore = function (child, ref) {
+        this.javaNode.insertBefore(child.javaNode, unwrap(ref));
+        return child;
+    };
+
+    NodeWrapper.prototype.removeChild = function (child) {
+        this.javaNode.removeChild(child.javaNode);
+        return child;
+    };
+
+    Object.defineProperties(ElementWrapper.prototype, {
+        tagName: {get: function () { return this.javaNode.getTagName(); }},
+        id: attributeProperty("id"),
+        className: attributeProperty("class"),
+        innerHTML: {
+            get: function () {
+                return host.getInnerHTML(this.javaNode);
+            },
+            set: function (value) {
+                host.setInnerHTML(this.javaNode, String(value));
+            }
+        }
+    });
+
+    ElementWrapper.prototype.getAttribute = function (name) {
+        return this.javaNode.getAttribute(name);
+    };
+
+    ElementWrapper.prototype.getAttributeNode = function (name) {
+        return wrap(this.javaNode.getAttributeNode(name));
+    };
+
+    ElementWrapper.prototype.hasAttribute = function (name) {
+        return this.javaNode.hasAttribute(name);
+    };
+
+    ElementWrapper.prototype.setAttribute = function (name, value) {
+        this.javaNode.setAttribute(name, String(value));
+    };
+
+    ElementWrapper.prototype.removeAttribute = function (name) {
+        this.javaNode.removeAttribute(name);
+    };
+
+    ElementWrapper.prototype.getElementsByTagName = getElementsByTagName;
+
+    Object.defineProperties(DocumentWrapper.prototype, {
+        documentElement: {get: function () { return wrap(this.javaNode.getDocumentElement()); }}
+    });
+
+    DocumentWrapper.prototype.getElementsByTagName = getElementsByTagName;
+
+    DocumentWrapper.prototype.getElementById = function (id) {
+        return wrap(this.javaNode.getElementById(id));
+    };
+
+    DocumentWrapper.prototype.createElement = function (name) {
+        return wrap(this.javaNode.createElement(name));
+    };
+
+    DocumentWrapper.prototype.createComment = function (data) {
+        return wrap(this.javaNode.createComment(data));
+    };
+
+    DocumentWrapper.prototype.createTextNode = function (data) {
+        return wrap(this.javaNode.createTextNode(data));
+    };
+
+    Object.defineProperties(AttrWrapper.prototype, {
+        name: {get: function () { return this.javaNode.getName(); }},
+        value: {get: function () { return this.javaNode.getValue(); }},
+        specified: {get: function () { return this.javaNode.getSpecified(); }}
+    });
+
+    global.document = wrap(host.getDocument());
+
+    /*
+     * Runs fn with results as the top-level results, and returns them as
+     * DOM nodes.
+     */
+    function run(results, fn) {
+        var outer = topResults;
+        topResults = results;
+        try {
+            fn();
+        } finally {
+            topResults = outer;
+        }
+        return unwrapAll(results);
+    }
+
+    function wrapContext(context) {
+        return context == null ? global.document : wrap(context);
+    }
+
+    function wrapSeed(seed) {
+        return seed == null ? undefined : wrapAll(seed);
+    }
+
+    global.frizzleApi = function () {
+        var Sizzle = global.Sizzle;
+
+        /*
+         * Replaces Sizzle's own, which compares nodes by walking up their
+         * parents through the wrappers, for every comparison.
+         */
+        Sizzle.uniqueSort = function (results) {
+            var sorted = host.uniqueSort(unwrapAll(results), results === topResults);
+            results.length = sorted.length;
+            for (var i = 0; i < sorted.length; ++i) {
+                results[i] = wrap(sorted[i]);
+            }
+            return results;
+        };
+
+        return {
+            setDocument: function (doc) {
+                global.document = wrap(doc);
+                Sizzle.setDocument(global.document);
+            },
+
+            setCacheLength: function (cacheLength) {
+                Sizzle.selectors.cacheLength = cacheLength;
+            },
+
+            createPseudo: function (name, pseudo) {
+                Sizzle.selectors.pseudos[name] = Sizzle.selectors.createPseudo(function (arg) {
+                    var predicate = pseudo.apply(typeof arg === "string" ? arg : null);
+                    return function (elem) {
+                        return predicate.apply(elem.javaNode);
+                    };
+                });
+            },
+
+            compile: function (selector) {
+                return Sizzle.compile(selector);
+            },
+
+            select: function (compiled, context, seed) {
+                var results = [];
+                return run(results, function () {
+                    Sizzle.select(compiled, wrapContext(context), results, wrapSeed(seed));
+                });
+            },
+
+            sizzle: function (selector, context, seed) {
+                var results = [];
+                return run(results, function () {
+                    Sizzle(selector, wrapContext(context), results, wrapSeed(seed));
+                });
+            },
+
+            matches: function (selector, elements) {
+                return unwrapAll(Sizzle(selector, global.document, null, wrapAll(elements)));
+            },
+
+            matchesSelector: function (element, selector) {
+                return Sizzle.matchesSelector(wrap(element), selector);
+            }
+        };
+    };
+})(this);
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Benchmark for descendant-combinator matching on a deeply nested
+ * document, where most candidates fail only after walking up their
+ * ancestors (unless the ancestor Bloom filter rejects them first), for
+ * {@code select} and {@code matchesSelector} on the pure-Java engine.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class AncestorFilterBenchmark extends BenchmarkFixture {
+    private static final int DEPTH = 400;
+    private static final int LEAVES = 10;
+    private static final int WARMUP = 50;
+    private static final int ITERATIONS = 20;
+
+    private static Document buildDocument() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < DEPTH; ++i) {
+            sb.append("<section class=\"s").append(i % 10).append("\">");
+            for (int j = 0; j < LEAVES; ++j) {
+                sb.append("<item class=\"x").append(j).append("\"/>");
+            }
+        }
+        for (int i = 0; i < DEPTH; ++i) {
+            sb.append("</section>");
+        }
+        return parse(sb);
+    }
+
+    @DataProvider
+    public static Object[][] selectors() {
+        return new Object[][] {
+            {"article item"},
+            {"section.s3 chapter item.x1"},
+            {"chapter section item"},
+            {"section.s1 section.s2 > item"},
+        };
+    }
+
+    @Test(dataProvider = "selectors")
+    public void benchmarkDeep(final String selector) throws Exception {
+        final Frizzle frizzle = new Frizzle(buildDocument(), Engine.NATIVE);
+        final Element[] items = frizzle.select("item");
+        int count = frizzle.select(selector).length;
+        long select = time(WARMUP, ITERATIONS, frizzle, selector);
+        long matches = time(WARMUP, ITERATIONS, new Task() {
+            @Override
+            public void run() {
+                for (Element item : items) {
+                    frizzle.matchesSelector(item, selector);
+                }
+            }
+        });
+        report("%-30s %5d matches: select %7d us, matchesSelector x%d %7d us", selector, count,
+                select / 1000, items.length, matches / 1000);
+    }
+}
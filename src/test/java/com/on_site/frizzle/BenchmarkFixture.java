@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.on_site.util.DOMUtil;
+import org.mozilla.javascript.Context;
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.w3c.dom.Document;
+
+/**
+ * What the {@code *Benchmark} classes have in common: a Rhino context
+ * entered on the test thread for the whole class (as {@link FrizzleTest}
+ * does for each test), documents built from repeated records, a timing
+ * loop, runs in fresh JVMs for cold-start figures, and reporting.
+ */
+abstract class BenchmarkFixture {
+    /**
+     * The context entered on the test thread.
+     */
+    protected Context cx;
+
+    /**
+     * Work to be timed.
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Appends the markup of one record of a document.
+     */
+    interface Records {
+        void append(StringBuilder sb, int i);
+    }
+
+    @BeforeClass
+    public void enterContext() {
+        cx = Context.enter();
+    }
+
+    @AfterClass
+    public void exitContext() {
+        cx = null;
+        Context.exit();
+    }
+
+    static Document parse(CharSequence xml) {
+        return DOMUtil.documentFromString(xml.toString());
+    }
+
+    /**
+     * Returns the markup of a document whose root element, named
+     * {@code root}, holds {@code count} records.
+     */
+    static String buildXml(String root, int count, Records records) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('<').append(root).append('>');
+        for (int i = 0; i < count; ++i) {
+            records.append(sb, i);
+        }
+        sb.append("</").append(root).append('>');
+        return sb.toString();
+    }
+
+    /**
+     * Same as {@link #buildXml}, parsed.
+     */
+    static Document buildDocument(String root, int count, Records records) {
+        return parse(buildXml(root, count, records));
+    }
+
+    /**
+     * Runs the task {@code warmup} times, then returns the average time
+     * it takes, in nanoseconds, over another {@code iterations} runs.
+     */
+    static long time(int warmup, int iterations, Task task) throws Exception {
+        for (int i = 0; i < warmup; ++i) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * Same as {@link #time(int, int, Task)}, for selecting the given
+     * selector.
+     */
+    static long time(int warmup, int iterations, final Frizzle frizzle, final String selector)
+            throws Exception {
+        return time(warmup, iterations, new Task() {
+            @Override
+            public void run() {
+                frizzle.select(selector);
+            }
+        });
+    }
+
+    /**
+     * Runs the {@code main} method of the given class in a fresh JVM,
+     * with the same class path, and returns the figures (separated by
+     * spaces) on the last line of its output.
+     */
+    static long[] runJvm(Class<?> main, String... args)
+            throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        String[] command = new String[args.length + 4];
+        command[0] = java;
+        command[1] = "-cp";
+        command[2] = System.getProperty("java.class.path");
+        command[3] = main.getName();
+        System.arraycopy(args, 0, command, 4, args.length);
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .start();
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), Charsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                output.append(line).append('\n');
+            }
+        }
+        Assert.assertEquals(process.waitFor(), 0, output.toString());
+        String[] lines = output.toString().trim().split("\n");
+        String[] fields = lines[lines.length - 1].trim().split(" ");
+        long[] result = new long[fields.length];
+        for (int i = 0; i < fields.length; ++i) {
+            result[i] = Long.parseLong(fields[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #runJvm}, run {@code runs} times; returns the
+     * median of each figure.
+     */
+    static long[] runJvms(int runs, Class<?> main, String... args)
+            throws IOException, InterruptedException {
+        long[][] results = new long[runs][];
+        for (int i = 0; i < runs; ++i) {
+            results[i] = runJvm(main, args);
+        }
+        long[] medians = new long[results[0].length];
+        for (int j = 0; j < medians.length; ++j) {
+            long[] values = new long[runs];
+            for (int i = 0; i < runs; ++i) {
+                values[i] = results[i][j];
+            }
+            Arrays.sort(values);
+            medians[j] = values[runs / 2];
+        }
+        return medians;
+    }
+
+    static void report(String format, Object... args) {
+        Reporter.log(String.format(format, args), true);
+    }
+}
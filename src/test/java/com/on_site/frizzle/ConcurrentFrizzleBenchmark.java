@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmark for {@link ConcurrentFrizzle}: the same batch of queries is
+ * spread over an increasing number of threads (with one pooled instance
+ * per thread), to show how throughput scales with cores. A single query
+ * split with {@code selectParallel} is also timed against a plain
+ * {@code select}.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class ConcurrentFrizzleBenchmark extends BenchmarkFixture {
+    private static final int SECTIONS = 200;
+    private static final int ITEMS = 10;
+    private static final int QUERIES = 400;
+    private static final String[] SELECTORS = {
+        "div.section > p:nth-child(2n)", "div p.note", "p + p.note", "div:has(p.note) > p",
+    };
+
+    private static Document buildDocument() {
+        StringBuilder sb = new StringBuilder("<html><body>");
+        for (int i = 0; i < SECTIONS; ++i) {
+            sb.append("<div class=\"section\">");
+            for (int j = 0; j < ITEMS; ++j) {
+                sb.append(j % 4 == 0 ? "<p class=\"note\">" : "<p>").append(j).append("</p>");
+            }
+            sb.append("</div>");
+        }
+        sb.append("</body></html>");
+        return parse(sb);
+    }
+
+    @DataProvider
+    public static Object[][] threads() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new Object[][] {{1}, {2}, {4}, {Math.max(cores, 8)}};
+    }
+
+    @Test(dataProvider = "threads")
+    public void benchmarkThroughput(int threads) throws Exception {
+        final ConcurrentFrizzle frizzle = ConcurrentFrizzle.builder(buildDocument())
+                .engine(Engine.SIZZLE)
+                .poolSize(threads)
+                .warmUp(SELECTORS)
+                .build();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (ConcurrentFrizzle closing = frizzle) {
+            long start = System.nanoTime();
+            List<Future<?>> futures = Lists.newArrayList();
+            for (int i = 0; i < threads; ++i) {
+                final int first = i;
+                final int count = QUERIES / threads;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < count; ++j) {
+                            frizzle.select(SELECTORS[(first + j) % SELECTORS.length]);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long nanos = System.nanoTime() - start;
+            report("%2d threads: %8.1f queries/s", threads, QUERIES * 1e9 / nanos);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dataProvider = "threads")
+    public void benchmarkSelectParallel(int threads) {
+        try (ConcurrentFrizzle frizzle = ConcurrentFrizzle.builder(buildDocument())
+                .engine(Engine.SIZZLE)
+                .poolSize(threads)
+                .build()) {
+            String selector = SELECTORS[0];
+            frizzle.select(selector);
+            frizzle.selectParallel(selector);
+
+            long start = System.nanoTime();
+            frizzle.select(selector);
+            long sequential = System.nanoTime() - start;
+            start = System.nanoTime();
+            frizzle.selectParallel(selector);
+            long parallel = System.nanoTime() - start;
+            report("%2d threads: select %6d us, selectParallel %6d us", threads,
+                    sequential / 1000, parallel / 1000);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import com.on_site.frizzle.selector.ElementIndex;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmark for sorting results into document order: a list that mixes
+ * positional pseudos with other selectors, and so has to be sorted, is
+ * selected with nodes compared directly, with the ordinals of an
+ * {@link ElementIndex}, and without sorting at all.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class DocumentOrderBenchmark extends BenchmarkFixture {
+    private static final int SECTIONS = 500;
+    private static final int ITEMS = 40;
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 5;
+    private static final String SELECTOR = "item:odd, section > item:nth-child(3n)";
+
+    private static Document buildDocument() {
+        return buildDocument("catalog", SECTIONS, new Records() {
+            @Override
+            public void append(StringBuilder sb, int i) {
+                sb.append("<section>");
+                for (int j = 0; j < ITEMS; ++j) {
+                    sb.append("<item>").append(j).append("</item>");
+                }
+                sb.append("</section>");
+            }
+        });
+    }
+
+    @Test(dataProvider = "engines", dataProviderClass = FrizzleTest.class)
+    public void benchmarkSort(Engine engine) throws Exception {
+        Document doc = buildDocument();
+        Frizzle frizzle = new Frizzle(doc, engine);
+        int count = frizzle.select(SELECTOR).length;
+        long compared = time(WARMUP, ITERATIONS, frizzle, SELECTOR);
+
+        frizzle.setIndex(new ElementIndex(doc));
+        Assert.assertEquals(frizzle.select(SELECTOR).length, count);
+        long numbered = time(WARMUP, ITERATIONS, frizzle, SELECTOR);
+
+        frizzle.setOrdered(false);
+        Assert.assertEquals(frizzle.select(SELECTOR).length, count);
+        long unordered = time(WARMUP, ITERATIONS, frizzle, SELECTOR);
+        report("%-6s %d elements: compared %6d ms, numbered %6d ms, unordered %6d ms", engine,
+                count, compared / 1000000, numbered / 1000000, unordered / 1000000);
+    }
+}
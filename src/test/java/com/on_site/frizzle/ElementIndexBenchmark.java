@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.on_site.frizzle.selector.ElementIndex;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmark for {@link ElementIndex}: id, class, and attribute lookups
+ * on a large XML document (where Sizzle has no fast paths of its own),
+ * with and without an index, on each available engine.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class ElementIndexBenchmark extends BenchmarkFixture {
+    private static final int ITEMS = 20000;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 20;
+
+    private static Document buildDocument() {
+        return buildDocument("catalog", ITEMS, new Records() {
+            @Override
+            public void append(StringBuilder sb, int i) {
+                sb.append("<item id=\"item").append(i).append("\" sku=\"").append(i % 1000)
+                        .append("\"").append(i % 500 == 0 ? " class=\"featured\"" : "")
+                        .append("><name>").append(i).append("</name></item>");
+            }
+        });
+    }
+
+    @DataProvider
+    public static Object[][] selectors() {
+        String[] selectors = {"[id=item12345]", "#item12345 > name", ".featured",
+                "item[sku=42]"};
+        List<Object[]> result = new ArrayList<>();
+        for (Object[] engine : FrizzleTest.engines()) {
+            for (String selector : selectors) {
+                result.add(new Object[] {engine[0], selector});
+            }
+        }
+        return result.toArray(new Object[result.size()][]);
+    }
+
+    @Test(dataProvider = "selectors")
+    public void benchmarkLookup(Engine engine, String selector) throws Exception {
+        Document doc = buildDocument();
+        Frizzle frizzle = new Frizzle(doc, engine);
+        int count = frizzle.select(selector).length;
+        long scan = time(WARMUP, ITERATIONS, frizzle, selector);
+
+        long start = System.nanoTime();
+        frizzle.setIndex(new ElementIndex(doc, "sku"));
+        long build = System.nanoTime() - start;
+        Assert.assertEquals(frizzle.select(selector).length, count);
+        long indexed = time(WARMUP, ITERATIONS, frizzle, selector);
+        report("%-7s %-20s scan %7d us, indexed %7d us (%.0fx; built in %d ms)", engine,
+                selector, scan / 1000, indexed / 1000, (double) scan / indexed,
+                build / 1000000);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.on_site.frizzle.selector.ElementIndex;
+import com.on_site.frizzle.selector.ElementSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Benchmark for {@link ElementSet}: "A but not B, intersected with C"
+ * over three large results, combined as identity hash sets of the
+ * selected arrays and as bit sets.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class ElementSetBenchmark extends BenchmarkFixture {
+    private static final int ROWS = 100000;
+    private static final int ITERATIONS = 20;
+
+    private static Document buildDocument() {
+        return buildDocument("table", ROWS, new Records() {
+            @Override
+            public void append(StringBuilder sb, int i) {
+                sb.append("<row class=\"").append(i % 2 == 0 ? "a" : "")
+                        .append(i % 3 == 0 ? " b" : "").append(i % 5 == 0 ? " c" : "")
+                        .append("\"/>");
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkSetAlgebra() throws Exception {
+        Document doc = buildDocument();
+        Frizzle frizzle = new Frizzle(doc, Engine.NATIVE);
+        frizzle.setIndex(new ElementIndex(doc));
+        final Element[] a = frizzle.select(".a");
+        final Element[] b = frizzle.select(".b");
+        final Element[] c = frizzle.select(".c");
+        final ElementSet setA = frizzle.selectSet(".a");
+        final ElementSet setB = frizzle.selectSet(".b");
+        final ElementSet setC = frizzle.selectSet(".c");
+
+        final int[] hashed = new int[1];
+        long hashTime = time(0, ITERATIONS, new Task() {
+            @Override
+            public void run() {
+                Set<Element> result = Sets.newIdentityHashSet();
+                Collections.addAll(result, a);
+                Set<Element> exclude = Sets.newIdentityHashSet();
+                Collections.addAll(exclude, b);
+                result.removeAll(exclude);
+                Set<Element> retain = Sets.newIdentityHashSet();
+                Collections.addAll(retain, c);
+                result.retainAll(retain);
+                List<Element> list = Lists.newArrayList(result);
+                hashed[0] = list.size();
+            }
+        });
+
+        final ElementSet[] bits = new ElementSet[1];
+        long bitTime = time(0, ITERATIONS, new Task() {
+            @Override
+            public void run() {
+                bits[0] = setA.difference(setB).intersection(setC);
+            }
+        });
+        Assert.assertEquals(bits[0].size(), hashed[0]);
+        report("%d rows: hash sets %6d us, bit sets %6d us", ROWS, hashTime / 1000,
+                bitTime / 1000);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmark comparing the engines on the same workload: the time to
+ * set up an instance, the time to its first selections (before the
+ * script engine's JIT has warmed up), and the time per round of a mix
+ * of selectors once warm. Engines that are not available in this JVM
+ * are skipped.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class EngineBenchmark extends BenchmarkFixture {
+    private static final int INSTANCES = 50;
+    private static final int WARMUP = 50;
+    private static final int ROUNDS = 50;
+    private static final String[] SELECTORS = {
+        "ul > li.c3", "li:nth-child(2n+1)", "ul li:first-child + li", "li:not(.c0)",
+        "ul:has(li.c9)", "[class^=c1]", "li.c4:last", "ul:nth-of-type(3) > li"};
+
+    /**
+     * Returns a document of 50 lists of 20 items each, with the items in
+     * ten classes.
+     */
+    private static Document buildDocument() {
+        return buildDocument("root", 50, new Records() {
+            @Override
+            public void append(StringBuilder sb, int i) {
+                sb.append("<ul>");
+                for (int j = 0; j < 20; ++j) {
+                    sb.append("<li class=\"c").append(j % 10).append("\"/>");
+                }
+                sb.append("</ul>");
+            }
+        });
+    }
+
+    private static int runMix(Frizzle frizzle) {
+        int count = 0;
+        for (String selector : SELECTORS) {
+            count += frizzle.select(selector).length;
+        }
+        return count;
+    }
+
+    @Test(dataProvider = "engines", dataProviderClass = FrizzleTest.class)
+    public void benchmarkEngine(final Engine engine) throws Exception {
+        final Document doc = buildDocument();
+        Frizzle reference = new Frizzle(doc, Engine.SIZZLE);
+
+        long start = System.nanoTime();
+        final Frizzle frizzle = new Frizzle(doc, engine);
+        long first = System.nanoTime() - start;
+
+        long instance = time(0, INSTANCES, new Task() {
+            @Override
+            public void run() {
+                new Frizzle(doc, engine);
+            }
+        });
+
+        start = System.nanoTime();
+        int count = runMix(frizzle);
+        long cold = System.nanoTime() - start;
+        Assert.assertEquals(count, runMix(reference));
+
+        long warm = time(WARMUP, ROUNDS, new Task() {
+            @Override
+            public void run() {
+                runMix(frizzle);
+            }
+        });
+        report("%-7s first instance %5d ms, instance %6d us, cold mix %5d ms, warm mix %6d us",
+                engine, first / 1000000, instance / 1000, cold / 1000000, warm / 1000);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmark for Sizzle's per-element caches, which live in
+ * {@link ExpandoStore}. Sizzle only uses those caches for documents it
+ * considers to be HTML (i.e., whose root element is {@code HTML}), so
+ * the same deep tree is queried both as HTML and as XML (which
+ * recomputes every combinator from scratch, as all documents did
+ * before the store existed).
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class ExpandoBenchmark extends BenchmarkFixture {
+    private static final int DEPTH = 6;
+    private static final int FANOUT = 3;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 20;
+
+    private static Document buildDocument(String root) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('<').append(root).append("><BODY>");
+        buildTree(sb, DEPTH);
+        sb.append("</BODY></").append(root).append('>');
+        return parse(sb);
+    }
+
+    private static void buildTree(StringBuilder sb, int depth) {
+        sb.append("<DIV>");
+        for (int i = 0; i < FANOUT; ++i) {
+            if (depth == 0) {
+                sb.append("<SPAN/>");
+            } else {
+                buildTree(sb, depth - 1);
+            }
+        }
+        sb.append("</DIV>");
+    }
+
+    @DataProvider
+    public static Object[][] selectors() {
+        return new Object[][] {
+            {"BODY DIV DIV DIV SPAN"},
+            {"DIV > DIV > DIV SPAN"},
+            {"DIV DIV SPAN + SPAN"},
+            {"SPAN:nth-child(2)"},
+        };
+    }
+
+    @Test(dataProvider = "selectors")
+    public void benchmarkCombinators(String selector) throws Exception {
+        Frizzle xml = new Frizzle(buildDocument("html"), Engine.SIZZLE);
+        Frizzle html = new Frizzle(buildDocument("HTML"), Engine.SIZZLE);
+        Assert.assertEquals(html.select(selector).length, xml.select(selector).length);
+
+        long uncached = time(WARMUP, ITERATIONS, xml, selector);
+        long cached = time(WARMUP, ITERATIONS, html, selector);
+        report("%-24s uncached %8d us, cached %8d us (%.1fx)", selector, uncached / 1000,
+                cached / 1000, (double) uncached / cached);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmark for the Sizzle engine under a few {@link FrizzleOptions}
+ * setups: the defaults, one for a long-running server (highest
+ * optimization level, large caches), one for a short job (interpreted,
+ * small caches), and one with a time limit and cancellation, which
+ * shows what counting instructions costs. For each, a fresh JVM reports the time
+ * to its first selection (which includes compiling Sizzle, unless the
+ * precompiled class can be used), the time to set up each further
+ * instance, and the time to run a mix of 200 different selectors, more
+ * than Sizzle's default {@code cacheLength}. The median of several
+ * runs is reported.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class FrizzleOptionsBenchmark extends BenchmarkFixture {
+    private static final int RUNS = 3;
+    private static final int INSTANCES = 200;
+    private static final int SELECTORS = 200;
+    private static final int ROUNDS = 20;
+
+    private static final ImmutableMap<String, FrizzleOptions> SETUPS
+            = ImmutableMap.<String, FrizzleOptions>builder()
+                    .put("default", FrizzleOptions.DEFAULT)
+                    .put("server", FrizzleOptions.builder()
+                            .optimizationLevel(9)
+                            .cacheLength(500)
+                            .wrapperCacheSize(100000)
+                            .build())
+                    .put("short job", FrizzleOptions.builder()
+                            .optimizationLevel(-1)
+                            .cacheLength(10)
+                            .wrapperCacheSize(1000)
+                            .build())
+                    .put("guarded", FrizzleOptions.builder()
+                            .timeLimit(1, TimeUnit.MINUTES)
+                            .cancellable(true)
+                            .build())
+                    .build();
+
+    /**
+     * Returns a document of 10 lists of 20 items each, with the items
+     * in ten classes.
+     */
+    private static Document getListDoc() {
+        return buildDocument("root", 10, new Records() {
+            @Override
+            public void append(StringBuilder sb, int i) {
+                sb.append("<ul>");
+                for (int j = 0; j < 20; ++j) {
+                    sb.append("<li class=\"c").append(j % 10).append("\"/>");
+                }
+                sb.append("</ul>");
+            }
+        });
+    }
+
+    /**
+     * Run in the child JVM: prints the milliseconds to the first
+     * selection, the microseconds per further instance, and the
+     * milliseconds per round of the selector mix.
+     */
+    public static void main(String[] args) throws Exception {
+        long start = System.nanoTime();
+        FrizzleOptions options = SETUPS.get(args[0]);
+        Document small = parse("<html><body><p/></body></html>");
+        if (new Frizzle(small, Engine.SIZZLE, options).select("body > p").length != 1) {
+            throw new AssertionError();
+        }
+        long first = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < INSTANCES; ++i) {
+            new Frizzle(small, Engine.SIZZLE, options);
+        }
+        long instance = (System.nanoTime() - start) / INSTANCES;
+
+        Document doc = getListDoc();
+        Frizzle frizzle = new Frizzle(doc, Engine.SIZZLE, options);
+        String[] selectors = new String[SELECTORS];
+        for (int i = 0; i < SELECTORS; ++i) {
+            selectors[i] = String.format("ul > li.c%d:nth-child(%dn+1)", i % 10, i / 10 + 1);
+        }
+        for (String selector : selectors) {
+            frizzle.select(selector);
+        }
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (String selector : selectors) {
+                frizzle.select(selector);
+            }
+        }
+        long mix = (System.nanoTime() - start) / ROUNDS;
+
+        System.out.println(first / 1000000 + " " + instance / 1000 + " " + mix / 1000000);
+    }
+
+    @Test
+    public void benchmarkOptions() throws Exception {
+        for (String setup : SETUPS.keySet()) {
+            long[] times = runJvms(RUNS, FrizzleOptionsBenchmark.class, setup);
+            report("%s: first select %d ms, instance %d us, %d selectors %d ms", setup,
+                    times[0], times[1], SELECTORS, times[2]);
+        }
+    }
+}
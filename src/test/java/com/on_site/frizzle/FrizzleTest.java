@@ -23,17 +23,47 @@
 
 package com.on_site.frizzle;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.on_site.frizzle.selector.DocumentOrder;
+import com.on_site.frizzle.selector.ElementIndex;
+import com.on_site.frizzle.selector.ElementSet;
+import com.on_site.frizzle.selector.SelectorList;
 import com.on_site.util.DOMUtil;
 import org.mozilla.javascript.Context;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Factory;
 import org.testng.annotations.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
 
 /**
  * Test case for {@link Frizzle}. Just some basic tests I was testing
@@ -43,14 +73,34 @@ import org.w3c.dom.Element;
  * @author Chris K. Jester-Young
  */
 public class FrizzleTest {
+    private final Engine engine;
     private Document testDoc;
     private Frizzle frizzle;
 
+    @Factory(dataProvider = "engines")
+    public FrizzleTest(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Returns the engines that are available in this JVM.
+     */
+    @DataProvider
+    public static Object[][] engines() {
+        List<Object[]> result = new ArrayList<>();
+        for (Engine engine : Engine.values()) {
+            if (engine.isAvailable()) {
+                result.add(new Object[] {engine});
+            }
+        }
+        return result.toArray(new Object[result.size()][]);
+    }
+
     @BeforeMethod
     public void setUp() {
         Context.enter();
         testDoc = getTestDoc();
-        frizzle = new Frizzle(testDoc);
+        frizzle = new Frizzle(testDoc, engine);
     }
 
     @AfterMethod
@@ -83,6 +133,15 @@ public class FrizzleTest {
         }
     }
 
+    private enum GetIdOrTagName implements Function<Element, String> {
+        INSTANCE;
+
+        @Override
+        public String apply(Element elem) {
+            return elem.hasAttribute("id") ? elem.getAttribute("id") : elem.getTagName();
+        }
+    }
+
     private static class GetTagAttr implements Function<Element, String> {
         private final String attr;
 
@@ -145,6 +204,492 @@ public class FrizzleTest {
         assertTags(":not(:root)", "head", "title", "body", "p", "p");
     }
 
+    @Test
+    public void testPositional() {
+        assertAttr("p:first", "id", "hello");
+        assertAttr("p:last", "id", "goodbye");
+        assertAttr("p:eq(-1)", "id", "goodbye");
+        assertTags(":header");
+    }
+
+    @Test
+    public void testNthChild() {
+        assertTags(":nth-child(2)", "body", "p");
+        assertTags("body :last-child", "p");
+        assertTags("title:only-child", "title");
+    }
+
+    @Test
+    public void testSiblings() {
+        assertAttr("p + p", "id", "goodbye");
+        assertTags("head ~ *", "body");
+    }
+
+    @Test
+    public void testHas() {
+        assertTags(":has(> p)", "body");
+        assertTags(":contains(Goodbye)", "html", "body", "p");
+    }
+
+    @Test
+    public void testCustomPseudo() {
+        frizzle.createPseudo("idStarts", new Pseudo() {
+            @Override
+            public Predicate<Element> apply(final String prefix) {
+                return new Predicate<Element>() {
+                    @Override
+                    public boolean apply(Element elem) {
+                        return elem.getAttribute("id").startsWith(prefix);
+                    }
+                };
+            }
+        });
+        assertAttr("p:idStarts(good)", "id", "goodbye");
+    }
+
+    @Test
+    public void testMatchesSelector() {
+        Element p = frizzle.select("p")[0];
+        Assert.assertEquals(frizzle.matchesSelector(p, "body > p"), true);
+        Assert.assertEquals(frizzle.matchesSelector(p, "head p"), false);
+    }
+
+    @Test
+    public void testSelectWithContext() {
+        Element body = frizzle.select("body")[0];
+        Assert.assertEquals(frizzle.select("> p", body).length, 2);
+        Assert.assertEquals(frizzle.select("title", body).length, 0);
+    }
+
+    @Test
+    public void testCompiledSelect() {
+        for (String expr : new String[] {"p", " body > p ", "p:last", "head ~ *",
+                "[id=hello], title", ":not(:root)"}) {
+            Assert.assertEquals(frizzle.select(Frizzle.compile(expr)), frizzle.select(expr));
+        }
+        Element body = frizzle.select("body")[0];
+        Assert.assertEquals(frizzle.select(Frizzle.compile("> p:first"), body),
+                frizzle.select("> p:first", body));
+    }
+
+    @Test
+    public void testCompiledMatches() {
+        CompiledSelector selector = Frizzle.compile("p[id=goodbye], title");
+        Element[] all = frizzle.select("*");
+        Assert.assertEquals(frizzle.matches(selector, all),
+                frizzle.matches("p[id=goodbye], title", all));
+        Assert.assertEquals(frizzle.matchesSelector(frizzle.select("title")[0], selector), true);
+        Assert.assertEquals(frizzle.matchesSelector(frizzle.select("body")[0], selector), false);
+    }
+
+    @Test
+    public void testLazySelect() {
+        Element body = frizzle.select("body")[0];
+        for (String expr : new String[] {"p", "body > p", "p:last", "head ~ *",
+                "[id=hello], title", "div", ":nth-child(2)"}) {
+            Element[] all = frizzle.select(expr);
+            Assert.assertEquals(ImmutableList.copyOf(frizzle.iterate(expr)),
+                    ImmutableList.copyOf(all));
+            Assert.assertEquals(ImmutableList.copyOf(frizzle.iterate(Frizzle.compile(expr))),
+                    ImmutableList.copyOf(all));
+            Assert.assertEquals(frizzle.selectFirst(expr), all.length == 0 ? null : all[0]);
+            Assert.assertEquals(frizzle.exists(Frizzle.compile(expr)), all.length > 0);
+            Assert.assertEquals(frizzle.count(expr), all.length);
+        }
+        Assert.assertEquals(frizzle.count("> p", body), 2);
+        Assert.assertEquals(frizzle.selectFirst(Frizzle.compile("p"), body).getAttribute("id"),
+                "hello");
+        Assert.assertEquals(frizzle.exists("title", body), false);
+    }
+
+    @Test
+    public void testCompiledAcrossDocuments() {
+        CompiledSelector selector = Frizzle.compile("body > p");
+        Assert.assertEquals(frizzle.select(selector).length, 2);
+        Frizzle other = new Frizzle(DOMUtil.documentFromString(
+                "<html><body><p/><div><p/></div></body></html>"), engine);
+        Assert.assertEquals(other.select(selector).length, 1);
+        Assert.assertEquals(frizzle.select(selector).length, 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCompileSyntaxError() {
+        Frizzle.compile("p:nth-child()");
+    }
+
+    @Test
+    public void testSetDocument() {
+        Document other = DOMUtil.documentFromString(
+                "<html><body><p id=\"only\">Only</p><div/></body></html>");
+        frizzle.setDocument(other);
+        assertAttr("p", "id", "only");
+        assertTags("p + *", "div");
+        assertText("body", "Only");
+        Element[] all = frizzle.select("*");
+        Assert.assertEquals(all[0].getOwnerDocument(), other);
+        Assert.assertEquals(frizzle.matches("p:first, div", all).length, 2);
+        Assert.assertEquals(frizzle.matchesSelector(all[2], "body > p"), true);
+
+        frizzle.setDocument(testDoc);
+        assertAttr("p", "id", "hello", "goodbye");
+        Assert.assertEquals(frizzle.select("*")[0].getOwnerDocument(), testDoc);
+    }
+
+    @Test
+    public void testInstancesAreIndependent() {
+        Document upper = DOMUtil.documentFromString(
+                "<HTML><BODY><P id=\"a\"/><P id=\"b\"/></BODY></HTML>");
+        Frizzle first = new Frizzle(upper, engine);
+        Frizzle second = new Frizzle(upper, engine);
+        first.createPseudo("second", new Pseudo() {
+            @Override
+            public Predicate<Element> apply(String argument) {
+                return new Predicate<Element>() {
+                    @Override
+                    public boolean apply(Element elem) {
+                        return elem.getAttribute("id").equals("b");
+                    }
+                };
+            }
+        });
+        Assert.assertEquals(first.select("P:second").length, 1);
+        Assert.assertEquals(second.select("BODY > P").length, 2);
+        try {
+            second.select("P:second");
+            Assert.fail("Pseudo leaked into another instance");
+        } catch (RuntimeException e) {
+            // Expected: the pseudo is unknown there.
+        }
+        Assert.assertEquals(new Frizzle(testDoc, engine).select("body > p").length, 2);
+    }
+
+    @Test
+    public void testWrapperCacheStats() {
+        frizzle.select("p + p");
+        frizzle.select("body > p");
+        CacheStats stats = frizzle.getWrapperCacheStats();
+        if (engine != Engine.NATIVE) {
+            Assert.assertTrue(stats.hitCount() > 0);
+            Assert.assertTrue(stats.missCount() > 0);
+        } else {
+            Assert.assertEquals(stats.requestCount(), 0);
+        }
+    }
+
+    @Test
+    public void testOptions() {
+        List<FrizzleOptions> optionsList = ImmutableList.of(
+                FrizzleOptions.builder().optimizationLevel(-1).cacheLength(5).build(),
+                FrizzleOptions.builder().optimizationLevel(9).cacheLength(5000).build(),
+                FrizzleOptions.builder().languageVersion(Context.VERSION_1_8).build(),
+                FrizzleOptions.builder().wrapperCacheSize(0).build(),
+                FrizzleOptions.builder().timeLimit(1, TimeUnit.MINUTES)
+                        .instructionLimit(Long.MAX_VALUE).cancellable(true).build());
+        String[] selectors = {"p", "body > p:first", "p:not(.b)", "p + p", "p:has(em)"};
+        for (FrizzleOptions options : optionsList) {
+            Frizzle tuned = new Frizzle(testDoc, engine, options);
+            Assert.assertSame(tuned.getOptions(), options);
+            for (String selector : selectors) {
+                Assert.assertEquals(tuned.select(selector), frizzle.select(selector),
+                        selector + " with " + options);
+            }
+            if (options.getWrapperCacheSize() == 0 && engine == Engine.SIZZLE) {
+                Assert.assertEquals(tuned.getWrapperCacheStats().requestCount(), 0);
+            }
+        }
+    }
+
+    /*
+     * The observer runs on a thread of its own, since setUp has entered a
+     * context on this one, and calls from within a context run in that
+     * context rather than one from the options.
+     */
+    @Test
+    public void testInstructionObserver() throws Exception {
+        final int[] observed = new int[1];
+        final boolean[] stop = new boolean[1];
+        final FrizzleOptions options = FrizzleOptions.builder()
+                .instructionObserver(100, new FrizzleOptions.InstructionObserver() {
+                    @Override
+                    public void observe(int instructionCount) {
+                        observed[0] += instructionCount;
+                        if (stop[0]) {
+                            throw new IllegalStateException("Stopped");
+                        }
+                    }
+                })
+                .build();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Frizzle observing = new Frizzle(testDoc, engine, options);
+                    observed[0] = 0;
+                    Assert.assertEquals(observing.select("body > p").length, 2);
+                    if (engine == Engine.SIZZLE) {
+                        Assert.assertTrue(observed[0] > 0);
+                    } else {
+                        Assert.assertEquals(observed[0], 0);
+                    }
+
+                    stop[0] = true;
+                    if (engine == Engine.SIZZLE) {
+                        try {
+                            observing.select("body > p");
+                            Assert.fail("Observer did not stop the script");
+                        } catch (IllegalStateException e) {
+                            Assert.assertEquals(e.getMessage(), "Stopped");
+                        }
+                    } else {
+                        Assert.assertEquals(observing.select("body > p").length, 2);
+                    }
+                    stop[0] = false;
+                    Assert.assertEquals(observing.select("body > p").length, 2);
+                    return null;
+                }
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs the task on a thread of its own, as testInstructionObserver
+     * does, so that Rhino counts instructions with the options' factory.
+     */
+    private static <T> T callOnOwnThread(Callable<T> task) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(task).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns a pseudo that matches every element, but runs the given
+     * task on the first element it sees (with each argument).
+     */
+    private static Pseudo stallingPseudo(final Runnable task) {
+        return new Pseudo() {
+            @Override
+            public Predicate<Element> apply(String argument) {
+                return new Predicate<Element>() {
+                    private boolean stalled;
+
+                    @Override
+                    public boolean apply(Element elem) {
+                        if (!stalled) {
+                            stalled = true;
+                            task.run();
+                        }
+                        return true;
+                    }
+                };
+            }
+        };
+    }
+
+    /*
+     * The first match takes longer than the limit; the call then stops
+     * at its next checkpoint, well before the end of the document.
+     */
+    @Test
+    public void testTimeLimit() throws Exception {
+        final Document doc = getListDoc("html");
+        final FrizzleOptions options = FrizzleOptions.builder()
+                .timeLimit(100, TimeUnit.MILLISECONDS)
+                .build();
+        QueryAbortedException e = callOnOwnThread(new Callable<QueryAbortedException>() {
+            @Override
+            public QueryAbortedException call() {
+                Frizzle limited = new Frizzle(doc, engine, options);
+                limited.createPseudo("slow", stallingPseudo(new Runnable() {
+                    @Override
+                    public void run() {
+                        Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+                    }
+                }));
+                try {
+                    limited.select("BODY LI:slow");
+                    return null;
+                } catch (QueryAbortedException e) {
+                    // Each call has a budget of its own.
+                    Assert.assertEquals(limited.select("BODY > UL").length, 50);
+                    return e;
+                }
+            }
+        });
+        Assert.assertNotNull(e, "Call was not stopped");
+        Assert.assertEquals(e.getReason(), QueryAbortedException.Reason.TIME_LIMIT);
+    }
+
+    /*
+     * Only Rhino counts instructions; the other engines ignore the limit.
+     */
+    @Test
+    public void testInstructionLimit() throws Exception {
+        final Document doc = getListDoc("html");
+        final FrizzleOptions options = FrizzleOptions.builder()
+                .instructionLimit(1000)
+                .build();
+        callOnOwnThread(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Frizzle limited = new Frizzle(doc, engine, options);
+                if (engine == Engine.SIZZLE) {
+                    try {
+                        limited.select("BODY LI:not(.c1)");
+                        Assert.fail("Call was not stopped");
+                    } catch (QueryAbortedException e) {
+                        Assert.assertEquals(e.getReason(),
+                                QueryAbortedException.Reason.INSTRUCTION_LIMIT);
+                    }
+                } else {
+                    Assert.assertEquals(limited.select("BODY LI:not(.c1)").length, 650);
+                }
+                return null;
+            }
+        });
+    }
+
+    /*
+     * The call waits in its first match until the test thread has
+     * cancelled it, and then stops at its next checkpoint.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        final Document doc = getListDoc("html");
+        final FrizzleOptions options = FrizzleOptions.builder().cancellable(true).build();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final Frizzle[] cancellable = new Frizzle[1];
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<QueryAbortedException> future = executor.submit(
+                    new Callable<QueryAbortedException>() {
+                @Override
+                public QueryAbortedException call() {
+                    cancellable[0] = new Frizzle(doc, engine, options);
+                    cancellable[0].createPseudo("wait", stallingPseudo(new Runnable() {
+                        @Override
+                        public void run() {
+                            started.countDown();
+                            Uninterruptibles.awaitUninterruptibly(cancelled, 10, TimeUnit.SECONDS);
+                        }
+                    }));
+                    try {
+                        cancellable[0].select("BODY LI:wait");
+                        return null;
+                    } catch (QueryAbortedException e) {
+                        // Cancelling only stops the call that was in progress.
+                        Assert.assertEquals(cancellable[0].select("BODY LI:wait").length, 1000);
+                        return e;
+                    }
+                }
+            });
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            cancellable[0].cancel();
+            cancelled.countDown();
+            QueryAbortedException e = future.get();
+            Assert.assertNotNull(e, "Call was not stopped");
+            Assert.assertEquals(e.getReason(), QueryAbortedException.Reason.CANCELLED);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testCancelNotCancellable() {
+        frizzle.cancel();
+    }
+
+    /*
+     * Sizzle treats documents whose root is HTML (in upper case) as
+     * HTML, and then keeps caches on each element it visits.
+     */
+    @Test
+    public void testHtmlDocument() {
+        frizzle.setDocument(DOMUtil.documentFromString(
+                "<HTML><BODY><DIV><P/><P/></DIV><P/></BODY></HTML>"));
+        for (int i = 0; i < 2; ++i) {
+            assertTags("BODY P", "P", "P", "P");
+            assertTags("DIV > P + P", "P");
+            assertTags("P:nth-child(2)", "P", "P");
+        }
+    }
+
+    /*
+     * Sizzle finds :nth-child positions through childNodes, which keep
+     * the last position they reached; that must not outlive a change to
+     * the children between calls.
+     */
+    @Test
+    public void testNthChildAfterChange() {
+        Document doc = DOMUtil.documentFromString(
+                "<HTML><BODY><P id=\"x\"/><P id=\"a\"/><P id=\"b\"/></BODY></HTML>");
+        frizzle.setDocument(doc);
+        assertAttr("P:nth-child(2n)", "id", "a");
+        Element body = frizzle.select("BODY")[0];
+        body.removeChild(body.getFirstChild());
+        for (String id : new String[] {"c", "d", "e"}) {
+            Element p = doc.createElement("P");
+            p.setAttribute("id", id);
+            body.appendChild(p);
+        }
+        assertAttr("P:nth-child(2n)", "id", "b", "d");
+    }
+
+    @Test
+    public void testSession() {
+        try (Frizzle.Session session = frizzle.openSession()) {
+            Assert.assertSame(session.getFrizzle(), frizzle);
+            Element[] ps = frizzle.select("p");
+            Assert.assertEquals(ps.length, 2);
+            Assert.assertEquals(frizzle.attr(ps[1], "id"), "goodbye");
+            Assert.assertEquals(frizzle.getText(ps[0]), "Hello, world!");
+            Assert.assertEquals(frizzle.matchesSelector(ps[0], "body > p"), true);
+            Assert.assertEquals(frizzle.select("title").length, 1);
+        }
+        assertTags("title", "title");
+        Frizzle.Session session = frizzle.openSession();
+        Assert.assertEquals(frizzle.select(Frizzle.compile("p:last")).length, 1);
+        session.close();
+        session.close();
+        try (Frizzle.Session again = frizzle.openSession()) {
+            assertTags("title", "title");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testSessionAlreadyOpen() {
+        try (Frizzle.Session session = frizzle.openSession()) {
+            frizzle.openSession();
+        }
+    }
+
+    @Test
+    public void testCallStats() {
+        Element p = frizzle.select("p")[0];
+        frizzle.matchesSelector(p, "p");
+        frizzle.matchesSelector(p, "body p");
+        Map<String, CallStats> stats = frizzle.getCallStats();
+        if (engine != Engine.NATIVE) {
+            Assert.assertEquals(stats.get("Sizzle").getCallCount(), 1);
+            Assert.assertEquals(stats.get("Sizzle.matchesSelector").getCallCount(), 2);
+            Assert.assertEquals(stats.get("Sizzle.compile").getCallCount(), 0);
+            Assert.assertTrue(stats.get("Sizzle.matchesSelector").getTotalNanos() > 0);
+        } else {
+            Assert.assertTrue(stats.isEmpty());
+        }
+    }
+
     @Test
     public void testDescendents() {
         assertTags("html *", "head", "title", "body", "p", "p");
@@ -217,6 +762,33 @@ public class FrizzleTest {
         assertAttr("p", "id", "hello", "goodbye");
     }
 
+    @Test
+    public void testAppendText() throws IOException {
+        StringBuilder sb = new StringBuilder("> ");
+        frizzle.appendText(frizzle.select("p"), sb);
+        frizzle.appendText(frizzle.select("title")[0], sb);
+        Assert.assertEquals(sb.toString(), "> Hello, world!Goodbye, world!Testing 1 2 3");
+    }
+
+    @Test
+    public void testDocumentText() {
+        Document doc = DOMUtil.documentFromString(
+                "<!-- x --><a>1<!-- 2 --><?pi 3?><![CDATA[4]]><b>5</b></a>");
+        Assert.assertEquals(frizzle.getText(doc.getChildNodes()), "145");
+    }
+
+    @Test
+    public void testBooleanAttr() {
+        Element p = frizzle.select("p")[0];
+        Assert.assertEquals(frizzle.attr(p, "disabled"), "");
+        frizzle.setDocument(DOMUtil.documentFromString(
+                "<HTML><BODY><INPUT checked=\"checked\"/></BODY></HTML>"));
+        Element input = frizzle.select("INPUT")[0];
+        Assert.assertEquals(frizzle.attr(input, "checked"), "checked");
+        Assert.assertEquals(frizzle.attr(input, "disabled"), null);
+        Assert.assertEquals(frizzle.attr(input, "type"), "");
+    }
+
     @Test
     public void testContainsMiss() {
         Element title = frizzle.select("title")[0];
@@ -230,4 +802,456 @@ public class FrizzleTest {
         Element p = frizzle.select("p")[0];
         Assert.assertEquals(frizzle.contains(body, p), true);
     }
+
+    /**
+     * Returns a document of 50 lists of 20 items each, parsed with
+     * {@code DocumentBuilder} (which builds its nodes lazily).
+     */
+    private static Document getListDoc(String root) throws Exception {
+        StringBuilder html = new StringBuilder("<" + root + "><BODY>");
+        for (int i = 0; i < 50; ++i) {
+            html.append("<UL>");
+            for (int j = 0; j < 20; ++j) {
+                html.append("<LI class=\"c").append(j % 3).append("\">").append(j)
+                        .append("</LI>");
+            }
+            html.append("</UL>");
+        }
+        html.append("</BODY></" + root + ">");
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(html.toString())));
+    }
+
+    @Test
+    public void testElementIndex() throws Exception {
+        String[] selectors = {"[id=hello]", "#goodbye", ".toplevel", "[class=toplevel]",
+                "body.toplevel > p", "p:not([id=hello])", "p", "div", "[id=nope]", "p:first",
+                "head ~ *", "title, p"};
+        Element body = frizzle.select("body")[0];
+        List<List<Element>> expected = Lists.newArrayList();
+        for (String selector : selectors) {
+            expected.add(ImmutableList.copyOf(frizzle.select(selector)));
+            expected.add(ImmutableList.copyOf(frizzle.select(selector, body)));
+        }
+
+        ElementIndex index = new ElementIndex(testDoc);
+        frizzle.setIndex(index);
+        Assert.assertSame(frizzle.getIndex(), index);
+        Assert.assertEquals(index.getCandidates(SelectorList.parse("[id=hello]"), testDoc),
+                ImmutableList.of(frizzle.selectFirst("#hello")));
+        Assert.assertEquals(index.getCandidates(SelectorList.parse(".toplevel"), body).size(), 0);
+        Assert.assertNull(index.getCandidates(SelectorList.parse("p:first"), testDoc));
+        Assert.assertNull(index.getCandidates(SelectorList.parse("> p"), body));
+        for (int i = 0; i < selectors.length; ++i) {
+            Assert.assertEquals(ImmutableList.copyOf(frizzle.select(selectors[i])),
+                    expected.get(2 * i), selectors[i]);
+            Assert.assertEquals(ImmutableList.copyOf(frizzle.iterate(selectors[i], body)),
+                    expected.get(2 * i + 1), selectors[i]);
+            Assert.assertEquals(
+                    ImmutableList.copyOf(frizzle.select(Frizzle.compile(selectors[i]), body)),
+                    expected.get(2 * i + 1), selectors[i]);
+        }
+
+        Document list = getListDoc("list");
+        frizzle.setDocument(list);
+        Assert.assertNull(frizzle.getIndex());
+        Element[] c1 = frizzle.select("[class=c1]");
+        frizzle.setIndex(new ElementIndex(list, "class"));
+        Assert.assertEquals(frizzle.getIndex().getElementsByAttribute("class", "c1").size(),
+                c1.length);
+        Assert.assertEquals(frizzle.select("[class=c1]"), c1);
+        Assert.assertEquals(frizzle.select("UL > .c1"), c1);
+        Assert.assertEquals(frizzle.select("[class~=c1]"), c1);
+    }
+
+    @Test
+    public void testDocumentOrder() {
+        Element[] all = frizzle.select("*");
+        DocumentOrder order = new DocumentOrder(testDoc);
+        Assert.assertEquals(order.size(), all.length);
+        for (int i = 0; i < all.length; ++i) {
+            Assert.assertEquals(order.indexOf(all[i]), i);
+            Assert.assertSame(order.get(i), all[i]);
+        }
+        Assert.assertEquals(order.indexOf(testDoc), -1);
+        Assert.assertEquals(order.sort(ImmutableList.of(all[3], all[1], all[3], all[0])),
+                ImmutableList.of(all[0], all[1], all[3]));
+        Assert.assertNull(order.sort(ImmutableList.of(all[0], testDoc.createElement("new"))));
+
+        String selector = "p:last, title, p:first, body";
+        List<String> expected = ImmutableList.of("title", "body", "hello", "goodbye");
+        Assert.assertEquals(Lists.transform(ImmutableList.copyOf(frizzle.select(selector)),
+                GetIdOrTagName.INSTANCE), expected);
+        frizzle.setIndex(new ElementIndex(testDoc));
+        Assert.assertEquals(Lists.transform(ImmutableList.copyOf(frizzle.select(selector)),
+                GetIdOrTagName.INSTANCE), expected);
+        frizzle.setOrdered(false);
+        Assert.assertEquals(ImmutableSet.copyOf(Lists.transform(
+                ImmutableList.copyOf(frizzle.select(selector)), GetIdOrTagName.INSTANCE)),
+                ImmutableSet.copyOf(expected));
+        Assert.assertEquals(frizzle.select(selector).length, expected.size());
+    }
+
+    @Test
+    public void testElementSet() throws Exception {
+        Document list = getListDoc("list");
+        frizzle.setDocument(list);
+        frizzle.setIndex(new ElementIndex(list));
+        ElementSet c1 = frizzle.selectSet(".c1");
+        ElementSet odd = frizzle.selectSet("LI:nth-child(odd)");
+        ElementSet firstList = frizzle.selectSet("LI", frizzle.selectFirst("UL"));
+        Assert.assertEquals(c1.toArray(), frizzle.select(".c1"));
+        Assert.assertEquals(c1.union(odd).toArray(), frizzle.select(".c1, LI:nth-child(odd)"));
+        Assert.assertEquals(c1.intersection(odd).toArray(), frizzle.select(".c1:nth-child(odd)"));
+        Assert.assertEquals(c1.difference(odd).toArray(),
+                frizzle.select(".c1:not(:nth-child(odd))"));
+        Assert.assertEquals(c1.intersection(firstList).size(), 7);
+        Assert.assertTrue(c1.contains(frizzle.selectFirst(".c1")));
+        Assert.assertFalse(c1.contains(frizzle.selectFirst(".c2")));
+        Assert.assertEquals(ImmutableList.copyOf(c1), ImmutableList.copyOf(c1.toArray()));
+
+        ElementSet lists = frizzle.selectSet("UL:nth-child(-n+2), BODY");
+        Assert.assertEquals(frizzle.selectSet(".c2", lists), frizzle.selectSet(".c2"));
+        Assert.assertEquals(frizzle.selectSet("> LI:first-child", lists).size(), 2);
+        Assert.assertEquals(frizzle.selectSet(Frizzle.compile("LI:first"), lists).size(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testElementSetWithoutIndex() {
+        frizzle.selectSet("p");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testElementIndexOtherDocument() {
+        frizzle.setIndex(new ElementIndex(getTestDoc()));
+    }
+
+    @Test
+    public void testElementIndexTagCase() {
+        Document doc = DOMUtil.documentFromString("<root>"
+                + "<A id='x'><item id='i1'/></A>"
+                + "<a><item id='i2'/><B id='b1'/></a>"
+                + "<b id='b2'/><ITEM id='i3'/>"
+                + "</root>");
+        String[] selectors = {"a item", "A item", "a > item", "A > item", "root item",
+                "a item, b", "item", "ITEM", "a", "[id=x]", "a[id=x]", "A[id=x]", "b, B",
+                "#x item", "a *", "root > b"};
+        frizzle.setDocument(doc);
+        List<List<String>> expected = Lists.newArrayList();
+        for (String selector : selectors) {
+            expected.add(Lists.transform(ImmutableList.copyOf(frizzle.select(selector)),
+                    GetIdOrTagName.INSTANCE));
+        }
+        frizzle.setIndex(new ElementIndex(doc));
+        for (int i = 0; i < selectors.length; ++i) {
+            Assert.assertEquals(Lists.transform(ImmutableList.copyOf(
+                    frizzle.select(selectors[i])), GetIdOrTagName.INSTANCE),
+                    expected.get(i), selectors[i]);
+            Assert.assertEquals(Lists.transform(ImmutableList.copyOf(
+                    frizzle.select(Frizzle.compile(selectors[i]))), GetIdOrTagName.INSTANCE),
+                    expected.get(i), selectors[i]);
+        }
+    }
+
+    @Test
+    public void testAncestorFilter() {
+        StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            xml.append("<d id=\"x").append(i).append("\" class=\"l").append(i)
+                    .append(i == 50 ? "\" title=\"t" : "").append("\"><p/>");
+        }
+        for (int i = 0; i < 100; ++i) {
+            xml.append("</d>");
+        }
+        Document deep = DOMUtil.documentFromString(xml.toString());
+        frizzle.setDocument(deep);
+        Assert.assertEquals(frizzle.select("d.l3 d.l7 > p").length, 1);
+        Assert.assertEquals(frizzle.select(".l3 .l7 p").length, 93);
+        Assert.assertEquals(frizzle.select(".l7 .l3 p").length, 0);
+        Assert.assertEquals(frizzle.select("[title=t] p").length, 50);
+        Assert.assertEquals(frizzle.select("#x20 ~ p, #x98 > p").length, 1);
+        Assert.assertEquals(frizzle.select("d:not(.l10 d)").length, 11);
+        Assert.assertEquals(frizzle.select("d:not(.l10 .l20 d)").length, 21);
+        Assert.assertEquals(frizzle.select(".l0 p, .l3 .l95 p").length, 100);
+        Assert.assertEquals(frizzle.select("d > p, .l3 .l95 > p").length, 100);
+        Assert.assertEquals(frizzle.select("p", frizzle.selectFirst("#x60")).length, 40);
+        Assert.assertEquals(frizzle.select(".l3 p", frizzle.selectFirst("#x60")).length, 40);
+
+        Element[] ps = frizzle.select("p");
+        for (int i = ps.length - 1; i >= 0; --i) {
+            Assert.assertEquals(frizzle.matchesSelector(ps[i], ".l3 .l7 p"), i >= 7);
+        }
+        Assert.assertEquals(RuleSet.builder().add(".l3 .l7 p", ".l7 .l3 p").build()
+                .select(deep)[0], frizzle.select(".l3 .l7 p"));
+    }
+
+    @Test
+    public void testRuleSet() throws Exception {
+        String[] rules = {"p", "#hello", ".toplevel", "body > p", "head title",
+                "p:first-child", "[id=goodbye]", "*:not(p)", "p:last", "#hello + p",
+                "html > *", "p, title", ":header", "div"};
+        RuleSet ruleSet = RuleSet.builder().add(rules).build();
+        Assert.assertEquals(ruleSet.size(), rules.length);
+        Element[][] matches = ruleSet.select(testDoc);
+        for (int i = 0; i < rules.length; ++i) {
+            Assert.assertEquals(matches[i], frizzle.select(rules[i]), rules[i]);
+        }
+
+        Element body = frizzle.selectFirst("body");
+        matches = ruleSet.select(body);
+        for (int i = 0; i < rules.length; ++i) {
+            Assert.assertEquals(matches[i], frizzle.select(rules[i], body), rules[i]);
+        }
+
+        Document list = getListDoc("list");
+        frizzle.setDocument(list);
+        final Map<Element, int[]> classified = Maps.newLinkedHashMap();
+        RuleSet.builder()
+                .add("LI.c1", "UL > LI:nth-child(odd)", "LI:first")
+                .add(Frizzle.compile("LI:contains(7)"))
+                .build()
+                .match(list, new RuleSet.Handler() {
+                    @Override
+                    public void match(Element element, int[] rules) {
+                        classified.put(element, rules);
+                    }
+                });
+        Element[] items = frizzle.select("LI");
+        Assert.assertEquals(classified.size(), 50 * 15);
+        Assert.assertEquals(classified.get(items[0]), new int[] {1, 2});
+        Assert.assertEquals(classified.get(items[1]), new int[] {0});
+        Assert.assertEquals(classified.get(items[7]), new int[] {0, 3});
+        Assert.assertFalse(classified.containsKey(items[3]));
+        Assert.assertFalse(classified.containsKey(items[20 + 3]));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRuleSetRelative() {
+        RuleSet.builder().add("p", "> p").build();
+    }
+
+    @Test
+    public void testConcurrentSelect() throws Exception {
+        Document doc = getListDoc("HTML");
+
+        final ConcurrentFrizzle concurrent = ConcurrentFrizzle.builder(doc)
+                .engine(engine)
+                .poolSize(4)
+                .warmUp("LI:nth-child(odd)")
+                .index()
+                .build();
+        Assert.assertEquals(concurrent.getPoolSize(), 4);
+        final String[] selectors = {"LI:nth-child(3n+1)", "UL > LI.c2:last-child",
+                "LI:nth-last-child(2)", "UL:first-child LI"};
+        final Frizzle single = new Frizzle(doc, engine);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (ConcurrentFrizzle closing = concurrent) {
+            List<Future<Boolean>> results = Lists.newArrayList();
+            for (int i = 0; i < 64; ++i) {
+                final String selector = selectors[i % selectors.length];
+                final Element[] expected = single.select(selector);
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return Arrays.equals(concurrent.select(selector), expected);
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSelectParallel() throws Exception {
+        ForkJoinPool wide = new ForkJoinPool(8);
+        try {
+            for (String root : new String[] {"HTML", "root"}) {
+                Document doc = getListDoc(root);
+                Frizzle single = new Frizzle(doc, engine);
+                ConcurrentFrizzle own = ConcurrentFrizzle.builder(doc)
+                        .engine(engine)
+                        .poolSize(3)
+                        .build();
+                ConcurrentFrizzle shared = ConcurrentFrizzle.builder(doc)
+                        .engine(engine)
+                        .poolSize(2)
+                        .forkJoinPool(wide)
+                        .build();
+                for (ConcurrentFrizzle concurrent : ImmutableList.of(own, shared)) {
+                    try (ConcurrentFrizzle closing = concurrent) {
+                        for (String selector : new String[] {"LI:nth-child(3n+1)",
+                                "BODY > UL, LI.c2", "UL + UL > LI:last-child", "LI:first", "*"}) {
+                            Element[] expected = single.select(selector);
+                            Assert.assertEquals(concurrent.selectParallel(selector), expected,
+                                    selector);
+                            Assert.assertEquals(concurrent.selectParallel(selector, "UL"),
+                                    expected, selector);
+                            Assert.assertEquals(concurrent.selectParallel(selector, "LI, BODY"),
+                                    expected, selector);
+                        }
+                    }
+                }
+                Assert.assertFalse(wide.isShutdown());
+                Assert.assertEquals(own.select("UL").length, single.select("UL").length);
+                try {
+                    own.selectParallel("LI");
+                    Assert.fail("Fork/join pool was not shut down");
+                } catch (IllegalStateException e) {
+                    // Expected: closing shut down the pool it made.
+                }
+            }
+        } finally {
+            wide.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamMatcher() throws Exception {
+        String xml = "<root id=\"r\" xml:lang=\"en-GB\">"
+                + "<list id=\"l1\"><item id=\"i1\" status=\"open\">a<b id=\"b1\"/></item>"
+                + "<item id=\"i2\">b</item><note id=\"n1\"/><item id=\"i3\" status=\"open\"/>"
+                + "</list><list id=\"l2\" class=\"x y\"><item id=\"i4\" status=\"shut\"/>"
+                + "<!-- c --><item id=\"i5\" status=\"open\"><item id=\"i6\"/></item></list>"
+                + "</root>";
+        Frizzle frizzle = new Frizzle(DOMUtil.documentFromString(xml), engine);
+        for (String selector : new String[] {"list > item[status=open]", "item item",
+                "root list.y item", ":root", "item:first-child, note + item", "item ~ item",
+                "list:nth-child(2) item:nth-of-type(2n)", "item:not([status=open]), b",
+                "*:lang(en)", "nothing"}) {
+            List<String> expected = Lists.transform(
+                    ImmutableList.copyOf(frizzle.select(selector)), new GetTagAttr("id"));
+            for (boolean fragments : new boolean[] {false, true}) {
+                final List<String> ids = Lists.newArrayList();
+                new StreamMatcher(selector, fragments).match(new StringReader(xml),
+                        new StreamMatcher.Handler() {
+                            @Override
+                            public void match(Element element) {
+                                ids.add(element.getAttribute("id"));
+                            }
+                        });
+                Assert.assertEquals(ids, expected, selector);
+            }
+        }
+    }
+
+    @Test
+    public void testStreamMatcherFragments() throws Exception {
+        final List<String> texts = Lists.newArrayList();
+        new StreamMatcher("item", true).match(new StringReader(
+                "<list><item>1<b>2</b></item><item><![CDATA[3]]><item>4</item></item></list>"),
+                new StreamMatcher.Handler() {
+                    @Override
+                    public void match(Element element) {
+                        texts.add(frizzle.getText(element));
+                    }
+                });
+        Assert.assertEquals(texts, ImmutableList.of("12", "34", "4"));
+        Assert.assertFalse(StreamMatcher.isStreamable("item:last-child"));
+        Assert.assertFalse(StreamMatcher.isStreamable("list:has(item)"));
+        Assert.assertFalse(StreamMatcher.isStreamable("item:first"));
+        Assert.assertFalse(StreamMatcher.isStreamable(":not(:first-child)"));
+    }
+
+    @Test
+    public void testRecordPipeline() throws Exception {
+        StringBuilder xml = new StringBuilder("<feed><header><record id=\"h\"/></header>");
+        for (int i = 0; i < 200; ++i) {
+            xml.append("<record id=\"r").append(i).append("\">");
+            for (int j = 0; j < i % 5; ++j) {
+                xml.append("<item status=\"").append(j % 2 == 0 ? "open" : "shut")
+                        .append("\"><record/></item>");
+            }
+            xml.append("</record>");
+        }
+        xml.append("</feed>");
+
+        RecordPipeline pipeline = RecordPipeline.builder("feed > record")
+                .query("item[status=open]", "record > item")
+                .engine(engine)
+                .workers(3)
+                .queueCapacity(2)
+                .build();
+        final Map<Long, RecordPipeline.Record> records = new ConcurrentHashMap<>();
+        pipeline.run(new StringReader(xml.toString()), new RecordPipeline.Consumer() {
+            @Override
+            public void accept(RecordPipeline.Record record) {
+                records.put(record.getIndex(), record);
+            }
+        });
+        Assert.assertEquals(records.size(), 200);
+        for (long i = 0; i < 200; ++i) {
+            RecordPipeline.Record record = records.get(i);
+            Assert.assertEquals(record.getElement().getAttribute("id"), "r" + i);
+            Assert.assertEquals(record.getResults("item[status=open]").length, (i % 5 + 1) / 2);
+            Assert.assertEquals(record.getResults("record > item").length, i % 5);
+        }
+
+        /* Records nested in other records are not records of their own. */
+        records.clear();
+        RecordPipeline.builder("record").engine(engine).build().run(
+                new StringReader(xml.toString()), new RecordPipeline.Consumer() {
+                    @Override
+                    public void accept(RecordPipeline.Record record) {
+                        records.put(record.getIndex(), record);
+                    }
+                });
+        Assert.assertEquals(records.size(), 201);
+    }
+
+    @Test
+    public void testRecordPipelineRoot() throws Exception {
+        StringBuilder xml = new StringBuilder("<feed>");
+        for (int i = 0; i < 6; ++i) {
+            String name = i % 3 == 2 ? "HTML" : "rec";
+            xml.append("<").append(name).append(" id=\"r").append(i).append("\">")
+                    .append("<item id=\"i").append(i).append("\" checked=\"\"/>")
+                    .append("</").append(name).append(">");
+        }
+        xml.append("</feed>");
+
+        final Map<Long, RecordPipeline.Record> records = new ConcurrentHashMap<>();
+        RecordPipeline.builder("feed > *")
+                .query(":root", "item:not(:root)", "[checked]", "#i1, #i2")
+                .engine(engine)
+                .workers(1)
+                .build()
+                .run(new StringReader(xml.toString()), new RecordPipeline.Consumer() {
+                    @Override
+                    public void accept(RecordPipeline.Record record) {
+                        records.put(record.getIndex(), record);
+                    }
+                });
+        Assert.assertEquals(records.size(), 6);
+        for (long i = 0; i < 6; ++i) {
+            RecordPipeline.Record record = records.get(i);
+            Assert.assertEquals(record.getResults(":root"),
+                    new Element[] {record.getElement()}, "record " + i);
+            Frizzle fresh = new Frizzle(record.getDocument(), engine);
+            for (CompiledSelector query : record.getResults().keySet()) {
+                Assert.assertEquals(record.getResults(query), fresh.select(query),
+                        "record " + i + ", " + query);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testRecordPipelineFailure() throws Exception {
+        StringBuilder xml = new StringBuilder("<feed>");
+        for (int i = 0; i < 100; ++i) {
+            xml.append("<record/>");
+        }
+        xml.append("</feed>");
+        RecordPipeline.builder("record").engine(engine).workers(2).queueCapacity(1).build()
+                .run(new StringReader(xml.toString()), new RecordPipeline.Consumer() {
+                    @Override
+                    public void accept(RecordPipeline.Record record) {
+                        throw new IllegalStateException();
+                    }
+                });
+    }
 }
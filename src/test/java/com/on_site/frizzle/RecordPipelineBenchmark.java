@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+/**
+ * Benchmark for {@link RecordPipeline}: the time taken to run a few
+ * queries over every record of a feed, against the time taken just to
+ * split the feed into records, which is the floor the pipeline should
+ * approach given enough workers. The pipeline is run once untimed, to
+ * warm up.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class RecordPipelineBenchmark extends BenchmarkFixture {
+    private static final int RECORDS = 20000;
+
+    private static String buildFeed() {
+        return buildXml("feed", RECORDS, new Records() {
+            @Override
+            public void append(StringBuilder sb, int i) {
+                sb.append("<record id=\"r").append(i).append("\"><title>Record ").append(i)
+                        .append("</title>");
+                for (int j = 0; j < 5; ++j) {
+                    sb.append("<item status=\"").append(j % 2 == 0 ? "open" : "shut")
+                            .append("\">").append(j).append("</item>");
+                }
+                sb.append("</record>");
+            }
+        });
+    }
+
+    @DataProvider
+    public static Object[][] workers() {
+        return new Object[][] {{1}, {2}, {Runtime.getRuntime().availableProcessors()}};
+    }
+
+    @Test(dataProvider = "workers")
+    public void benchmarkPipeline(int workers) throws Exception {
+        final String feed = buildFeed();
+        final AtomicLong count = new AtomicLong();
+        long split = time(0, 1, new Task() {
+            @Override
+            public void run() throws Exception {
+                new StreamMatcher("feed > record", true).match(new StringReader(feed),
+                        new StreamMatcher.Handler() {
+                            @Override
+                            public void match(Element element) {
+                                count.incrementAndGet();
+                            }
+                        });
+            }
+        });
+        Assert.assertEquals(count.get(), RECORDS);
+
+        final RecordPipeline pipeline = RecordPipeline.builder("feed > record")
+                .query("title", "record > item[status=open]", "item:nth-child(2n)")
+                .engine(Engine.SIZZLE)
+                .workers(workers)
+                .build();
+        final RecordPipeline.Consumer consumer = new RecordPipeline.Consumer() {
+            @Override
+            public void accept(RecordPipeline.Record record) {
+                count.addAndGet(record.getResults("record > item[status=open]").length);
+            }
+        };
+        long piped = time(1, 1, new Task() {
+            @Override
+            public void run() throws Exception {
+                count.set(0);
+                pipeline.run(new StringReader(feed), consumer);
+            }
+        });
+        Assert.assertEquals(count.get(), 3L * RECORDS);
+        report("%2d workers: split %6d ms, pipeline %6d ms", workers, split / 1000000,
+                piped / 1000000);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Benchmark for {@link RuleSet}: classifying a document against 400
+ * selectors in one walk, compared with selecting each of them in turn
+ * with the pure-Java engine.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class RuleSetBenchmark extends BenchmarkFixture {
+    private static final int ITEMS = 5000;
+    private static final int RULES = 400;
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    private static Document buildDocument() {
+        return buildDocument("catalog", ITEMS, new Records() {
+            @Override
+            public void append(StringBuilder sb, int i) {
+                sb.append("<item id=\"item").append(i).append("\" class=\"k").append(i % 100)
+                        .append(" g").append(i % 7).append("\" sku=\"").append(i % 1000)
+                        .append("\"><name>").append(i).append("</name><price>").append(i % 50)
+                        .append("</price></item>");
+            }
+        });
+    }
+
+    private static List<String> buildRules() {
+        List<String> rules = new ArrayList<>();
+        for (int i = 0; rules.size() < RULES; ++i) {
+            switch (i % 5) {
+                case 0: rules.add("item.k" + i % 100 + " > name"); break;
+                case 1: rules.add("#item" + i * 11); break;
+                case 2: rules.add(".g" + i % 7 + "[sku=" + i + "]"); break;
+                case 3: rules.add("catalog > item.k" + i % 100 + ".g" + i % 7); break;
+                default: rules.add("item[sku=" + i + "] price"); break;
+            }
+        }
+        return rules;
+    }
+
+    @Test
+    public void benchmarkRuleSet() throws Exception {
+        final Document doc = buildDocument();
+        List<String> rules = buildRules();
+        final Frizzle frizzle = new Frizzle(doc, Engine.NATIVE);
+        final List<CompiledSelector> compiled = new ArrayList<>();
+        for (String rule : rules) {
+            compiled.add(Frizzle.compile(rule));
+        }
+        final RuleSet ruleSet = RuleSet.builder()
+                .add(compiled.toArray(new CompiledSelector[0]))
+                .build();
+
+        Element[][] expected = new Element[RULES][];
+        for (int i = 0; i < RULES; ++i) {
+            expected[i] = frizzle.select(compiled.get(i));
+        }
+        Element[][] actual = ruleSet.select(doc);
+        for (int i = 0; i < RULES; ++i) {
+            Assert.assertEquals(actual[i], expected[i], rules.get(i));
+        }
+
+        long separate = time(WARMUP, ITERATIONS, new Task() {
+            @Override
+            public void run() {
+                for (CompiledSelector selector : compiled) {
+                    frizzle.select(selector);
+                }
+            }
+        });
+        long combined = time(WARMUP, ITERATIONS, new Task() {
+            @Override
+            public void run() {
+                ruleSet.select(doc);
+            }
+        });
+        report("%d rules over %d items: one by one %d ms, rule set %d ms (%.0fx)", RULES, ITEMS,
+                separate / 1000000, combined / 1000000, (double) separate / combined);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmark for {@link SizzleSnapshot}: setting up a Sizzle scope for a
+ * document by running Sizzle, against restoring a snapshot, both for
+ * the first few scopes (as in a short-lived process) and once warmed
+ * up.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class SizzleSnapshotBenchmark extends BenchmarkFixture {
+    private static final int COLD = 10;
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 1000;
+
+    @BeforeClass
+    public void setWrapFactory() {
+        cx.setWrapFactory(new DOMWrapFactory());
+    }
+
+    @Test
+    public void benchmarkSetup() throws Exception {
+        final Script sizzle = Class.forName("com.on_site.frizzle.SizzleScript")
+                .asSubclass(Script.class).getDeclaredConstructor().newInstance();
+        final Document doc = parse("<html><body><p/></body></html>");
+        SizzleSnapshot.get(doc, sizzle);
+        final SizzleSnapshot snapshot = SizzleSnapshot.get(doc, sizzle);
+        Assert.assertNotNull(snapshot);
+        Task run = new Task() {
+            @Override
+            public void run() {
+                SizzleEngine.newScope(cx, doc, sizzle);
+            }
+        };
+        Task restore = new Task() {
+            @Override
+            public void run() throws Exception {
+                Scriptable toplevel = SizzleEngine.newToplevel(cx);
+                snapshot.restore(toplevel, doc);
+            }
+        };
+
+        long coldRun = time(0, COLD, run);
+        long coldRestore = time(0, COLD, restore);
+        long warmRun = time(WARMUP, ITERATIONS, run);
+        long warmRestore = time(WARMUP, ITERATIONS, restore);
+        report("first %d scopes: running Sizzle %d us, restoring %d us", COLD, coldRun / 1000,
+                coldRestore / 1000);
+        report("warmed up: running Sizzle %d us, restoring %d us (%.1fx)", warmRun / 1000,
+                warmRestore / 1000, (double) warmRun / warmRestore);
+    }
+}
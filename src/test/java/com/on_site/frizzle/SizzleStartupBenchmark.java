@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 On-Site.com.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, AND NON-
+ * INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES, OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT, OR OTHERWISE, ARISING FROM, OUT OF, OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.on_site.frizzle;
+
+import java.io.File;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Benchmark for cold start with the Sizzle engine: the time from a
+ * fresh JVM's {@code main} to its first selection, with Sizzle loaded
+ * from the class the build compiles it to, and with that class hidden
+ * so that {@code sizzle.js} is compiled at run time instead. Each run
+ * is a separate JVM, and the median of several is reported.
+ *
+ * <p>Run with {@code mvn test -Pbenchmark} or {@code ant benchmark}.
+ */
+public class SizzleStartupBenchmark extends BenchmarkFixture {
+    private static final int RUNS = 7;
+    private static final String PRECOMPILED = "precompiled";
+    private static final String SOURCE = "source";
+
+    /**
+     * Loads classes from the class path itself, rather than delegating
+     * to the application class loader, so that it can hide the
+     * precompiled Sizzle class.
+     */
+    private static final class Loader extends URLClassLoader {
+        private final boolean hideSizzle;
+
+        Loader(URL[] urls, boolean hideSizzle) {
+            super(urls, ClassLoader.getSystemClassLoader().getParent());
+            this.hideSizzle = hideSizzle;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (hideSizzle && name.equals("com.on_site.frizzle.SizzleScript")) {
+                throw new ClassNotFoundException(name);
+            }
+            return super.findClass(name);
+        }
+    }
+
+    /**
+     * Run in the child JVM: prints the milliseconds taken to set up the
+     * Sizzle engine and run one selection.
+     */
+    public static void main(String[] args) throws Exception {
+        long start = System.nanoTime();
+        List<URL> urls = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(toURL(entry));
+        }
+        try (Loader loader = new Loader(urls.toArray(new URL[0]), args[0].equals(SOURCE))) {
+            Class.forName(SizzleStartupBenchmark.class.getName(), true, loader)
+                    .getMethod("firstSelect").invoke(null);
+        }
+        System.out.println((System.nanoTime() - start) / 1000000);
+    }
+
+    private static URL toURL(String entry) throws MalformedURLException {
+        return new File(entry).toURI().toURL();
+    }
+
+    public static void firstSelect() throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader("<html><body><p/></body></html>")));
+        if (new Frizzle(doc, Engine.SIZZLE).select("body > p").length != 1) {
+            throw new AssertionError();
+        }
+    }
+
+    @Test
+    public void benchmarkStartup() throws Exception {
+        long source = runJvms(RUNS, SizzleStartupBenchmark.class, SOURCE)[0];
+        long precompiled = runJvms(RUNS, SizzleStartupBenchmark.class, PRECOMPILED)[0];
+        report("first select: compiling sizzle.js %d ms, precompiled %d ms", source,
+                precompiled);
+    }
+}